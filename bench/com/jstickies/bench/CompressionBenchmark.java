@@ -0,0 +1,87 @@
+/*
+ * Benchmark reporting the compression ratio and the CPU cost of NoteCompression at every Deflater level, with and without the preset
+ * dictionary, so that a level can be chosen for the jstickies.compression system property. Notes are compressed and decompressed in memory.
+ *
+ * The notes are read from a note folder if one is given, else notes with random text are generated.
+ *
+ * Usage : java com.jstickies.bench.CompressionBenchmark [note folder | notes] [text length] [rounds]
+ */
+
+package com.jstickies.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.NoteCodec;
+import com.jstickies.data.NoteCompression;
+import com.jstickies.data.NoteData;
+import com.jstickies.data.store.FileNoteStore;
+import com.jstickies.data.store.NoteStore;
+
+public class CompressionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int textLength = (args.length > 1)? Integer.parseInt(args[1]) : 500;
+		int rounds = (args.length > 2)? Integer.parseInt(args[2]) : 10;
+
+		NoteData[] data;
+		if(args.length > 0 && new File(args[0]).isDirectory()) {
+			JStickies.NOTE_STORE = NoteStore.getStore(new File(args[0]));
+			data = JStickies.NOTE_STORE.loadAll();
+			System.out.println("Notes : " + data.length + " from " + args[0] + ", rounds : " + rounds);
+		}
+		else {
+			int notes = (args.length > 0)? Integer.parseInt(args[0]) : 1000;
+			File folder = new File(System.getProperty("java.io.tmpdir"), "jstickies-bench");
+			folder.mkdirs();
+			JStickies.NOTE_STORE = new FileNoteStore(folder); //Used for generating file names
+			data = NoteCodecBenchmark.generate(notes, textLength, new Random(42));
+			System.out.println("Notes : " + notes + ", text length : " + textLength + ", rounds : " + rounds);
+		}
+
+		byte[][] encoded = new byte[data.length][];
+		long bytes = 0;
+		for(int i=0; i<data.length; i++) {
+			encoded[i] = NoteCodec.encode(data[i]);
+			bytes += encoded[i].length;
+		}
+		System.out.println("Uncompressed : " + bytes / Math.max(data.length, 1) + " bytes/note");
+
+		run(encoded, 6, true, rounds); //Warm up
+		for(int level=1; level<=9; level++) {
+			run(encoded, level, false, rounds);
+			run(encoded, level, true, rounds);
+		}
+	}
+
+	private static void run(byte[][] encoded, int level, boolean useDictionary, int rounds) throws IOException {
+		byte[][] compressed = new byte[encoded.length][];
+		long inputBytes = 0, outputBytes = 0;
+
+		long start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(int i=0; i<encoded.length; i++)
+				compressed[i] = NoteCompression.compress(encoded[i], level, useDictionary);
+		long compressTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(int i=0; i<compressed.length; i++)
+				if(NoteCompression.isCompressed(ByteBuffer.wrap(compressed[i])))
+					NoteCompression.decompress(ByteBuffer.wrap(compressed[i]));
+		long decompressTime = System.nanoTime() - start;
+
+		for(int i=0; i<encoded.length; i++) {
+			inputBytes += encoded[i].length;
+			outputBytes += compressed[i].length;
+		}
+
+		double operations = (double) encoded.length * rounds;
+		System.out.printf("Level %d %-16s ratio : %5.3f   compress : %7.2f us/note   decompress : %7.2f us/note%n", level,
+				(useDictionary)? "(dictionary)" : "(no dictionary)", (double) outputBytes / inputBytes,
+				compressTime / 1000.0 / operations, decompressTime / 1000.0 / operations);
+	}
+}
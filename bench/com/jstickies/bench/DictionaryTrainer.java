@@ -0,0 +1,91 @@
+/*
+ * Trains a preset dictionary for NoteCompression from the notes in a note folder. The words and word pairs of the notes are counted, and the
+ * ones that save the most bytes (length times number of occurrences) are written to the dictionary, with the most valuable at the end, where
+ * Deflater refers to them with the shortest distances. The dictionary is used by setting the jstickies.compression.dictionary system
+ * property to the output file. The dictionary must be kept for as long as notes compressed with it exist.
+ *
+ * Usage : java com.jstickies.bench.DictionaryTrainer <note folder> <output file> [size]
+ */
+
+package com.jstickies.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.NoteData;
+import com.jstickies.data.store.NoteStore;
+
+public class DictionaryTrainer {
+
+	private static final int MIN_COUNT = 2; //Strings that occur only once are not worth keeping
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.out.println("Usage : java com.jstickies.bench.DictionaryTrainer <note folder> <output file> [size]");
+			return;
+		}
+		int size = (args.length > 2)? Integer.parseInt(args[2]) : 4096;
+
+		JStickies.NOTE_STORE = NoteStore.getStore(new File(args[0]));
+		NoteData[] data = JStickies.NOTE_STORE.loadAll();
+
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for(NoteData d : data) {
+			if(d.noteText == null)
+				continue;
+			String[] words = d.noteText.split("[ \t]+");
+			for(int i=0; i<words.length; i++) {
+				count(counts, words[i] + " ");
+				if(i + 1 < words.length)
+					count(counts, words[i] + " " + words[i + 1] + " ");
+			}
+		}
+
+		ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+			public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+				return score(b) - score(a);
+			}
+		});
+
+		Charset utf8 = Charset.forName("UTF-8");
+		ArrayList<String> selected = new ArrayList<String>();
+		int length = 0;
+		for(Map.Entry<String, Integer> e : entries) {
+			int bytes = e.getKey().getBytes(utf8).length;
+			if(e.getValue() < MIN_COUNT || length + bytes > size)
+				continue;
+			selected.add(e.getKey());
+			length += bytes;
+		}
+		Collections.reverse(selected); //Most valuable at the end
+
+		StringBuilder dictionary = new StringBuilder(length);
+		for(String s : selected)
+			dictionary.append(s);
+		FileOutputStream out = new FileOutputStream(args[1]);
+		try {
+			out.write(dictionary.toString().getBytes(utf8));
+		}
+		finally {
+			out.close();
+		}
+		System.out.println("Wrote a dictionary of " + length + " bytes with " + selected.size() + " string(s) from " + data.length + " note(s)");
+	}
+
+	private static void count(HashMap<String, Integer> counts, String s) {
+		Integer c = counts.get(s);
+		counts.put(s, (c == null)? 1 : c + 1);
+	}
+
+	private static int score(Map.Entry<String, Integer> e) {
+		return e.getKey().length() * e.getValue();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Stress test of the local MetaData under concurrent changes, as made by the AutoSaver, the EDT and the Synchronizer at the same time.
+ * Several threads increment the update counts of a shared set of notes, with MetaData#advanceUpdate(String, long) and with a
+ * MetaData#compareAndSetUpdate(String, long, long) loop, and add new notes so that the table grows. At the same time, another thread iterates
+ * snapshots and the MetaData itself. Afterwards, every update count must equal the number of increments made (no increment is lost), and the
+ * MetaData loaded from its checkpoint and change log must equal the one in memory.
+ *
+ * The MetaData is kept in the .jstickies folder of the working folder, which must not exist yet.
+ *
+ * Usage : java com.jstickies.bench.MetaDataStressTest [threads] [changes per thread] [notes]
+ */
+
+package com.jstickies.bench;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.store.NoteStore;
+import com.jstickies.data.sync.MetaData;
+
+public class MetaDataStressTest {
+
+	public static void main(String[] args) throws Exception {
+		int threads = (args.length > 0)? Integer.parseInt(args[0]) : 4;
+		final int changes = (args.length > 1)? Integer.parseInt(args[1]) : 20000;
+		final int notes = (args.length > 2)? Integer.parseInt(args[2]) : 1000;
+
+		if(JStickies.NOTE_FOLDER.exists()) {
+			System.err.println("The folder " + JStickies.NOTE_FOLDER.getAbsolutePath() + " already exists");
+			System.exit(1);
+		}
+		JStickies.NOTE_FOLDER.mkdirs();
+		JStickies.NOTE_STORE = NoteStore.getStore(JStickies.NOTE_FOLDER);
+
+		final MetaData metaData = new MetaData();
+		for(int i=0; i<notes; i++)
+			metaData.addNote(name(i), 0);
+		System.out.println("Threads : " + threads + ", changes per thread : " + changes + ", notes : " + notes);
+
+		final long[][] increments = new long[threads][notes];
+		final AtomicLong failures = new AtomicLong(), snapshots = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(!done.get()) {
+						MetaData snapshot = metaData.snapshot();
+						for(int i=0; i<notes; i++)
+							if(snapshot.getUpdateCount(name(i)) < 0)
+								fail(failures, "Note " + name(i) + " is missing from a snapshot");
+						for(Iterator<String> it = snapshot.getFilenameIterator(); it.hasNext(); )
+							if(snapshot.getUpdateCount(it.next()) < 0)
+								fail(failures, "A snapshot iterated a note without an update count");
+						for(Iterator<String> it = metaData.getFilenameIterator(); it.hasNext(); )
+							it.next();
+						snapshots.incrementAndGet();
+					}
+				}
+				catch(RuntimeException e) {
+					fail(failures, "Reading failed : " + e);
+				}
+			}
+		});
+
+		Thread[] writers = new Thread[threads];
+		for(int t=0; t<threads; t++) {
+			final int thread = t;
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(thread);
+					for(int c=0; c<changes; c++) {
+						int i = random.nextInt(notes);
+						int op = random.nextInt(10);
+						if(op < 5)
+							metaData.advanceUpdate(name(i), 0);
+						else if(op < 9) {
+							while(true) {
+								long u = metaData.getUpdateCount(name(i));
+								if(metaData.compareAndSetUpdate(name(i), u, u + 1))
+									break;
+							}
+						}
+						else {
+							metaData.addNote("new-" + thread + "-" + c, 1);
+							continue;
+						}
+						increments[thread][i]++;
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		reader.start();
+		for(Thread t : writers)
+			t.start();
+		for(Thread t : writers)
+			t.join();
+		long time = System.nanoTime() - start;
+		done.set(true);
+		reader.join();
+		System.out.printf("%d change(s) in %.1fms, %d snapshot(s) read%n", (long) threads * changes, time / 1e6, snapshots.get());
+
+		for(int i=0; i<notes; i++) {
+			long expected = 0;
+			for(int t=0; t<threads; t++)
+				expected += increments[t][i];
+			if(metaData.getUpdateCount(name(i)) != expected)
+				fail(failures, "Note " + name(i) + " has update count " + metaData.getUpdateCount(name(i)) + ", expected " + expected);
+		}
+
+		metaData.flush();
+		JStickies.WRITER.flush();
+		MetaData loaded = MetaData.load();
+		int compared = 0;
+		for(Iterator<String> it = metaData.getFilenameIterator(); it.hasNext(); compared++) {
+			String s = it.next();
+			if(loaded.getUpdateCount(s) != metaData.getUpdateCount(s))
+				fail(failures, "Note " + s + " was loaded with update count " + loaded.getUpdateCount(s) + ", expected "
+						+ metaData.getUpdateCount(s));
+		}
+		for(Iterator<String> it = loaded.getFilenameIterator(); it.hasNext(); it.next())
+			compared--;
+		if(compared != 0)
+			fail(failures, "The loaded MetaData has a different number of notes");
+
+		System.out.println((failures.get() == 0)? "OK" : failures.get() + " failure(s)");
+		System.exit((failures.get() == 0)? 0 : 1);
+	}
+
+	private static String name(int i) {
+		return "note-" + i;
+	}
+
+	private static void fail(AtomicLong failures, String message) {
+		if(failures.incrementAndGet() <= 10)
+			System.err.println(message);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Benchmark comparing NoteCodec with the Java serialization used by JStickies#saveFile(File, Object) and JStickies#loadFile(File). Both
+ * formats are encoded to and decoded from memory, so the results measure the CPU cost and the size of the formats and not the disk.
+ *
+ * Usage : java com.jstickies.bench.NoteCodecBenchmark [notes] [text length] [rounds]
+ */
+
+package com.jstickies.bench;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.NoteCodec;
+import com.jstickies.data.NoteData;
+import com.jstickies.data.store.FileNoteStore;
+
+public class NoteCodecBenchmark {
+
+	private static final String[] WORDS = {"meeting", "call", "buy", "milk", "tomorrow", "deploy", "the", "a", "to", "fix", "bug", "review",
+		"notes", "and", "for", "check", "server", "log", "at", "10am", "remember", "password", "list", "todo", "done"};
+
+	public static void main(String[] args) throws Exception {
+		int notes = (args.length > 0)? Integer.parseInt(args[0]) : 1000;
+		int textLength = (args.length > 1)? Integer.parseInt(args[1]) : 500;
+		int rounds = (args.length > 2)? Integer.parseInt(args[2]) : 10;
+
+		File folder = new File(System.getProperty("java.io.tmpdir"), "jstickies-bench");
+		folder.mkdirs();
+		JStickies.NOTE_STORE = new FileNoteStore(folder); //Used for generating file names
+
+		NoteData[] data = generate(notes, textLength, new Random(42));
+		System.out.println("Notes : " + notes + ", text length : " + textLength + ", rounds : " + rounds);
+
+		run("Java serialization", data, rounds, false); //Warm up
+		run("NoteCodec", data, rounds, true);
+		run("Java serialization", data, rounds, false);
+		run("NoteCodec", data, rounds, true);
+	}
+
+	/*
+	 * Generates notes with random text.
+	 */
+	static NoteData[] generate(int notes, int textLength, Random random) {
+		NoteData[] data = new NoteData[notes];
+		for(int i=0; i<notes; i++) {
+			StringBuilder text = new StringBuilder(textLength + 16);
+			while(text.length() < textLength)
+				text.append(WORDS[random.nextInt(WORDS.length)]).append((random.nextInt(8) == 0)? '\n' : ' ');
+
+			data[i] = new NoteData("Note " + i, new Color(random.nextInt(0x1000000)), text.toString(),
+					new Point(random.nextInt(1920), random.nextInt(1080)), new Dimension(250, 300));
+		}
+		return data;
+	}
+
+	private static void run(String name, NoteData[] data, int rounds, boolean codec) throws IOException, ClassNotFoundException {
+		byte[][] encoded = new byte[data.length][];
+		long bytes = 0;
+
+		long start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(int i=0; i<data.length; i++)
+				encoded[i] = (codec)? NoteCodec.encode(data[i]) : serialize(data[i]);
+		long encodeTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(int i=0; i<data.length; i++)
+				if(codec)
+					NoteCodec.decode(encoded[i]);
+				else
+					deserialize(encoded[i]);
+		long decodeTime = System.nanoTime() - start;
+
+		for(byte[] b : encoded)
+			bytes += b.length;
+
+		double operations = (double) data.length * rounds;
+		System.out.printf("%-20s encode : %10.0f notes/s   decode : %10.0f notes/s   size : %6d bytes/note%n", name,
+				operations / (encodeTime / 1e9), operations / (decodeTime / 1e9), bytes / data.length);
+	}
+
+	/*
+	 * Serializes a note in the same way as JStickies#saveFile(File, Object).
+	 */
+	private static byte[] serialize(NoteData data) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(data);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	/*
+	 * De-serializes a note in the same way as JStickies#loadFile(File).
+	 */
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return ois.readObject();
+		}
+		finally {
+			ois.close();
+		}
+	}
+}
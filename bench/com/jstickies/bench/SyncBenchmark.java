@@ -0,0 +1,263 @@
+/*
+ * Benchmark measuring the wall time of Synchronizer#compare(), along with the requests made and the bytes transferred, using a
+ * LocalFolderProvider as the server. Two computers, A and B, are simulated by separate JVMs, each working in its own folder, since the note
+ * folder, the metadata and the device id are global to a JVM. For every number of notes, the scenarios are :
+ * 	- first sync (upload) - A uploads all its notes to an empty server
+ * 	- steady state - A synchronizes again without any changes
+ * 	- first sync (download) - B downloads all the notes
+ * 	- push edits - A edits some of the notes and uploads the edits
+ * 	- conflict - B edits the same notes, merges the edits of A and uploads its own
+ * 	- pull merged - A merges the edits of B
+ * The notes of A and B are then compared, so the benchmark also checks that the computers converge.
+ *
+ * The latency, bandwidth and failures of the server are set with the jstickies.localfolder system properties (see LocalFolderProvider),
+ * which are passed on to the computers.
+ *
+ * Usage : java com.jstickies.bench.SyncBenchmark [note counts, e.g. 100,10000,100000] [edited notes in percent] [work folder]
+ */
+
+package com.jstickies.bench;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.AutoSaver;
+import com.jstickies.data.NoteData;
+import com.jstickies.data.TextHistory;
+import com.jstickies.data.search.SearchIndex;
+import com.jstickies.data.store.NoteStore;
+import com.jstickies.data.sync.SyncSettings;
+import com.jstickies.data.sync.Synchronizer;
+import com.jstickies.data.sync.provider.LocalFolderProvider;
+import com.jstickies.data.sync.provider.Provider;
+import com.jstickies.gui.Note;
+
+public class SyncBenchmark {
+
+	private static final String RESULT = "RESULT ";
+
+	public static void main(String[] args) throws Exception {
+		String[] counts = ((args.length > 0)? args[0] : "100,10000,100000").split(",");
+		double edited = (args.length > 1)? Double.parseDouble(args[1]) : 1;
+		File work = new File((args.length > 2)? args[2] : System.getProperty("java.io.tmpdir") + "/jstickies-sync-bench");
+
+		System.out.printf("Latency : %sms, bandwidth : %s bytes/s, failures : %s, edited notes : %s%%%n",
+				System.getProperty("jstickies.localfolder.latency", "0"), System.getProperty("jstickies.localfolder.bandwidth", "unlimited"),
+				System.getProperty("jstickies.localfolder.failures", "0"), edited);
+		System.out.printf("%8s  %-22s %10s %10s %14s %14s %s%n", "Notes", "Scenario", "Time (ms)", "Requests", "Uploaded", "Downloaded",
+				"Complete");
+
+		for(String c : counts) {
+			int notes = Integer.parseInt(c.trim());
+			int edits = Math.max(1, (int) (notes * edited / 100));
+			File folder = new File(work, String.valueOf(notes));
+			delete(folder);
+			File server = new File(folder, "server"), a = new File(folder, "a"), b = new File(folder, "b");
+			server.mkdirs();
+			a.mkdirs();
+			b.mkdirs();
+
+			run(a, server, notes, "create", String.valueOf(notes));
+			run(a, server, notes, "sync", "0", "first sync (upload)");
+			run(a, server, notes, "sync", "0", "steady state");
+			run(b, server, notes, "sync", "0", "first sync (download)");
+			run(a, server, notes, "sync", String.valueOf(edits), "push edits");
+			run(b, server, notes, "sync", String.valueOf(edits), "conflict");
+			run(a, server, notes, "sync", "0", "pull merged");
+
+			String digestA = run(a, server, notes, "digest"), digestB = run(b, server, notes, "digest");
+			System.out.printf("%8d  notes %s%n", notes, (digestA.equals(digestB))? "converged" : "DIVERGED (" + digestA + " / " + digestB + ")");
+		}
+	}
+
+	/*
+	 * Runs a command of Computer in a new JVM working in folder, and returns the line it reported.
+	 */
+	private static String run(File folder, File server, int notes, String... command) throws IOException, InterruptedException {
+		ArrayList<String> cmd = new ArrayList<String>();
+		cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		cmd.add("-cp");
+		StringBuilder classPath = new StringBuilder(); //Absolute, since the computer runs in another folder
+		for(String path : System.getProperty("java.class.path").split(File.pathSeparator))
+			classPath.append(new File(path).getAbsolutePath()).append(File.pathSeparator);
+		cmd.add(classPath.toString());
+		cmd.add("-Xmx" + Math.max(512, notes / 100) + "m");
+		cmd.add("-Djava.awt.headless=true");
+		cmd.add("-Djstickies.virtualNotes=true");
+		cmd.add("-Dorg.slf4j.simpleLogger.defaultLogLevel=warn");
+		for(Map.Entry<Object, Object> e : System.getProperties().entrySet())
+			if(e.getKey().toString().startsWith("jstickies."))
+				cmd.add("-D" + e.getKey() + "=" + e.getValue());
+		cmd.add(Computer.class.getName());
+		cmd.add(server.getAbsolutePath());
+		cmd.add(String.valueOf(notes));
+		cmd.addAll(Arrays.asList(command));
+
+		ProcessBuilder builder = new ProcessBuilder(cmd);
+		builder.directory(folder);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+
+		String result = null;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.forName("UTF-8")));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith(RESULT))
+					result = line.substring(RESULT.length());
+				else if(line.startsWith(" ") || line.startsWith("\t") || line.contains("Exception") || line.contains("ERROR"))
+					System.err.println("  " + folder.getName() + " : " + line);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		if(process.waitFor() != 0 || result == null)
+			throw new IOException("Computer " + folder.getName() + " failed to run " + Arrays.toString(command));
+		if(command[0].equals("sync"))
+			System.out.printf("%8d  %s%n", notes, result);
+		return result;
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if(files != null)
+			for(File c : files)
+				delete(c);
+		f.delete();
+	}
+
+	/*
+	 * A computer that synchronizes with the server. Runs in the folder of the computer.
+	 *
+	 * Usage : java com.jstickies.bench.SyncBenchmark$Computer [server folder] [notes] create | sync [edits] [scenario] | digest
+	 */
+	public static class Computer {
+
+		public static void main(String[] args) throws Exception {
+			File server = new File(args[0]);
+			int notes = Integer.parseInt(args[1]);
+			String command = args[2];
+
+			JStickies.NOTE_FOLDER.mkdirs();
+			JStickies.NOTE_STORE = NoteStore.getStore(JStickies.NOTE_FOLDER);
+			JStickies.SEARCH_INDEX = SearchIndex.load(JStickies.INDEX_FILE);
+
+			if(command.equals("create")) {
+				NoteData[] data = NoteCodecBenchmark.generate(notes, 500, new Random(42));
+				for(NoteData d : data)
+					d.saveData();
+				close();
+				System.out.println(RESULT + data.length);
+			}
+			else if(command.equals("sync"))
+				sync(server, Integer.parseInt(args[3]), args[4]);
+			else if(command.equals("digest"))
+				System.out.println(RESULT + digest(NoteData.getSavedData()));
+			System.exit(0);
+		}
+
+		/*
+		 * Edits the first edits notes, and measures a synchronization.
+		 */
+		private static void sync(File server, int edits, String scenario) throws Exception {
+			JStickies.AUTO_SAVER = new AutoSaver();
+			if(SyncSettings.exists())
+				JStickies.SYNC_SETTINGS = SyncSettings.getSettings();
+			else {
+				@SuppressWarnings("unchecked")
+				Class<Provider> c = (Class<Provider>) (Class<?>) LocalFolderProvider.class;
+				JStickies.SYNC_SETTINGS = new SyncSettings(c);
+				JStickies.SYNC_SETTINGS.setAuthInfo(server.getAbsolutePath());
+			}
+
+			LocalFolderProvider provider = new LocalFolderProvider(server);
+			Synchronizer synchronizer = new Synchronizer(provider);
+			final NoteData[] data = NoteData.getSavedData();
+			if(data != null) {
+				sort(data);
+				for(int i=0; i<Math.min(edits, data.length); i++)
+					edit(data[i]);
+			}
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					Note.showNotes(false);
+					if(data != null)
+						Note.parkedNotes.addAll(Arrays.asList(data));
+				}
+			});
+
+			long start = System.nanoTime();
+			boolean complete = synchronizer.compare();
+			long time = (System.nanoTime() - start) / 1000000;
+
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					JStickies.AUTO_SAVER.flush();
+				}
+			});
+			close();
+			System.out.println(String.format(RESULT + "%-22s %10d %10d %14d %14d %s", scenario, time, provider.getRequests(),
+					provider.getBytesUploaded(), provider.getBytesDownloaded(), complete));
+		}
+
+		/*
+		 * Waits for all pending writes and closes the note store, as JStickies#exit() does.
+		 */
+		private static void close() {
+			JStickies.SEARCH_INDEX.save();
+			JStickies.WRITER.flush();
+			JStickies.NOTE_STORE.close();
+		}
+
+		/*
+		 * Inserts a line that is different on every computer at the start of a note, as if it was typed.
+		 */
+		private static void edit(NoteData d) {
+			String line = "Edited on " + Long.toHexString(TextHistory.DEVICE) + " at " + System.nanoTime() + "\n";
+			TextHistory.of(d).insert(0, line);
+			d.noteText = line + d.noteText;
+			d.saveData();
+		}
+
+		/*
+		 * Returns a digest of the names and texts of the notes.
+		 */
+		private static String digest(NoteData[] data) throws Exception {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			if(data != null) {
+				sort(data);
+				for(NoteData d : data)
+					digest.update((d.fileName + "\0" + d.noteName + "\0" + d.noteText + "\0").getBytes("UTF-8"));
+			}
+			byte[] hash = digest.digest();
+			StringBuilder s = new StringBuilder((data == null)? "0" : String.valueOf(data.length)).append(':');
+			for(int i=0; i<8; i++)
+				s.append(String.format("%02x", hash[i]));
+			return s.toString();
+		}
+
+		private static void sort(NoteData[] data) {
+			Arrays.sort(data, new Comparator<NoteData>() {
+				public int compare(NoteData a, NoteData b) {
+					return a.fileName.compareTo(b.fileName);
+				}
+			});
+		}
+	}
+}
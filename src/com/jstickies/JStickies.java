@@ -1,21 +1,22 @@
 /*
  * Main class for loading the entire JStickies application. This class has the following responsibilities : 
  * 	- Load the system tray application
- * 	- Create the AutoSaver thread
- * 	- Load any notes that were saved
+ * 	- Create the AutoSaver
+ * 	- Load any notes that were saved and the search index
  * 	- If synchronization has been set up, then create the Synchronizer thread
  *	
  */
 package com.jstickies;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.Timer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
@@ -27,6 +28,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jstickies.data.AutoSaver;
+import com.jstickies.data.GroupCommitWriter;
+import com.jstickies.data.NoteCompression;
+import com.jstickies.data.search.SearchIndex;
+import com.jstickies.data.store.NoteStore;
 import com.jstickies.data.sync.MetaData;
 import com.jstickies.data.sync.SyncSettings;
 import com.jstickies.data.sync.Synchronizer;
@@ -43,15 +48,20 @@ public class JStickies {
 			SYNC_ICON = "media/synchronize.png",
 			SETTINGS_ICON = "media/settings.png";
 	public static File NOTE_FOLDER = new File(".jstickies"), 
+			INDEX_FILE = new File(".jstickies.index"),
 			MEDIA_FOLDER = new File("media");
 	
 	public static SyncSettings SYNC_SETTINGS = null;
 	public static Synchronizer SYNCHRONIZER = null;
+	public static TrayApplication TRAY_APPLICATION = null;
 	public static AutoSaver AUTO_SAVER = null;
 	public static MetaData METADATA = null;
+	public static NoteStore NOTE_STORE = null;
+	public static SearchIndex SEARCH_INDEX = null;
+	public static final GroupCommitWriter WRITER = new GroupCommitWriter();
+	public static boolean VIRTUAL_NOTES = Boolean.getBoolean("jstickies.virtualNotes"); //Keep hidden and off-screen notes only as data
 	public static JFrame JFRAME = null;
 	
-	private long autoSaveInterval = 30000; //set the auto save interval to 30s
 	private static final Logger logger = LoggerFactory.getLogger(JStickies.class);
 	
 	/*
@@ -62,6 +72,8 @@ public class JStickies {
 			NOTE_FOLDER.mkdir();
 			logger.info("Created the JStickies note directory.");
 		}
+		NOTE_STORE = NoteStore.getStore(NOTE_FOLDER);
+		SEARCH_INDEX = SearchIndex.load(INDEX_FILE);
 
 		JFRAME = new JFrame("JStickies");
 		JFRAME.setIconImage(loadImage(TRAY_ICON).getImage());
@@ -80,16 +92,16 @@ public class JStickies {
 		SwingUtilities.invokeLater(new Runnable() {
 			@Override
 			public void run() {
-				new TrayApplication(loadImage(TRAY_ICON).getImage(), "JStickies");
+				TRAY_APPLICATION = new TrayApplication(loadImage(TRAY_ICON).getImage(), "JStickies");
 			}
 		});
 		
-		logger.info("Launching AutoSaver thread");
+		logger.info("Launching AutoSaver");
 		AUTO_SAVER = new AutoSaver();
-		new Timer().scheduleAtFixedRate(AUTO_SAVER, autoSaveInterval, autoSaveInterval); //Schedule the AutoSaver every autoSaveInterval milliseconds
 		
 		logger.info("Loading saved notes");
 		Note.loadSavedNotes();
+		NOTE_STORE.watch();
 		
 		if(SyncSettings.exists()) { 
 			logger.info("Loading Synchronizer thread");
@@ -162,31 +174,59 @@ public class JStickies {
 	}
 	
 	/*
-	 * Serializes an object to file. It is used by all classes for serializing an object to file. 
+	 * Serializes an object to file. It is used by all classes for serializing an object to file. The object is serialized on the calling 
+	 * thread and written by the GroupCommitWriter. Returns a Future which completes once the file has been written. 
 	 */
-	public static void saveFile(File file, Object obj) {
+	public static Future<File> saveFile(File file, Object obj) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		ObjectOutputStream oos = null;
 		
 		try {
-			FileOutputStream fos = new FileOutputStream(file, false);
-			oos = new ObjectOutputStream(fos);
-			
+			oos = new ObjectOutputStream(bos);
 			oos.writeObject(obj);
-		}
-		catch(FileNotFoundException e) {
-			logger.error("Error while saving object to file {} : {}", file.getName(), e.getMessage());
+			oos.close();
 		}
 		catch(IOException e) {
 			logger.error("Error while saving object to file {} : {}", file.getName(), e.getMessage());
+			return GroupCommitWriter.failed(file, e);
 		}
-		finally {
-			if(oos != null)
-				try {
-					oos.close();
-				} catch (IOException e) {
-					logger.warn("Unable to close ObjectInputStream while reading file {} : {}", file.getName(), e.getMessage());
-				}
+		
+		return WRITER.write(file, bos.toByteArray());
+	}
+	
+	/*
+	 * Serializes an object to file and waits until it has been written. Returns true if the file was saved successfully.
+	 */
+	public static boolean saveFileAndWait(File file, Object obj) {
+		try {
+			saveFile(file, obj).get();
+			return true;
+		}
+		catch(InterruptedException e) {
+			logger.warn("Interrupted while saving file {}", file.getName());
+			Thread.currentThread().interrupt();
 		}
+		catch(ExecutionException e) {
+			logger.error("Error while saving object to file {} : {}", file.getName(), e.getCause().getMessage());
+		}
+		return false;
+	}
+	
+	/*
+	 * Saves all the notes, waits for all pending writes, closes the note store and exits the application. Must be called on the EDT.
+	 */
+	public static void exit() {
+		Note.saveAll();
+		AUTO_SAVER.flush();
+		logger.info("Auto saver : {}", AUTO_SAVER.getStatistics());
+		if(METADATA != null)
+			METADATA.flush();
+		SEARCH_INDEX.save();
+		WRITER.flush();
+		NOTE_STORE.close();
+		if(NoteCompression.isEnabled())
+			logger.info("Note compression : {}", NoteCompression.getStatistics());
+		System.exit(0);
 	}
 	
 	/*
@@ -201,8 +241,8 @@ public class JStickies {
 	 * Stops the Synchronizer
 	 */
 	public static void stopSynchronization() {
-		logger.info("Stopping Synchronizer Thread");
-		SYNCHRONIZER.t.interrupt();
+		logger.info("Stopping Synchronizer");
+		SYNCHRONIZER.stop();
 		SYNCHRONIZER = null;
 	}
 }
\ No newline at end of file
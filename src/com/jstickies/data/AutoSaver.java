@@ -1,53 +1,300 @@
 /*
- * This class is responsible for automatically saving the notes. It saves the notes based on 2 approaches :
- * 	- Every few seconds
- * 	- Every time a note goes out of focus
- * 
- * This class extends TimerTask and is invoked by a Timer every few seconds. The interval at which AutoSaver must be invoked is configured in 
- * JStickies, which is also responsible for scheduling the Timer.
+ * This class is responsible for automatically saving the notes. It saves a note :
+ * 	- Once the user stops changing it for a while (debounced per note)
+ * 	- Every time it goes out of focus
+ *
+ * Every Note reports its changes to the AutoSaver using AutoSaver#noteChanged(Note). The save delay of a note adapts to how fast it is
+ * being changed : the note is saved once there has been no change for a few times the average gap between its changes, but never later
+ * than MAX_DELAY after its first unsaved change.
+ *
+ * The state of a note is captured on the EDT, and then encoded and written on a background thread, so a slow disk never stalls typing. The
+ * AutoSaver is created in JStickies.
+ *
+ * A note whose edits were appended to its delta log is saved in time proportional to the edits. Updating the SearchIndex and the content
+ * hash of the MetaData still requires the whole text, so for such notes these updates are deferred by UPDATE_DELAY and coalesced : a note
+ * that is saved several times within the delay is only indexed and hashed once.
  */
 
 package com.jstickies.data;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jstickies.JStickies;
 import com.jstickies.gui.Note;
 
-public class AutoSaver extends TimerTask implements FocusListener {
+public class AutoSaver implements FocusListener, ActionListener {
 
+	private static final long MIN_DELAY = 500, MAX_DELAY = 15000, UPDATE_DELAY = 2000; //in milliseconds
+	private static final int TICK = 200;
 	private final Logger logger = LoggerFactory.getLogger(AutoSaver.class);
-	
+
+	private LinkedHashMap<Note, Pending> pending; //Accessed only on the EDT
+	private Timer timer;
+	private ScheduledExecutorService executor;
+	private HashMap<String, Deferred> deferred; //Notes whose index and hash updates are deferred, guarded by itself
+	private AtomicInteger queueDepth;
+	private volatile long averageLatency, maxLatency; //in microseconds
+
+	/*
+	 * Creates an AutoSaver along with the background thread on which the notes are written.
+	 */
+	public AutoSaver() {
+		pending = new LinkedHashMap<Note, Pending>();
+		deferred = new HashMap<String, Deferred>();
+		queueDepth = new AtomicInteger();
+		timer = new Timer(TICK, this);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AutoSaver");
+				t.setDaemon(true); //Pending saves are flushed by JStickies#exit()
+				return t;
+			}
+		});
+	}
+
+	/*
+	 * Called every time a note is changed. Schedules the note to be saved once the changes have settled.
+	 */
+	public void noteChanged(final Note n) {
+		if(!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					noteChanged(n);
+				}
+			});
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		Pending p = pending.get(n);
+		if(p == null)
+			pending.put(n, new Pending(now));
+		else
+			p.changed(now);
+
+		if(!timer.isRunning())
+			timer.start();
+	}
+
+	/*
+	 * Saves the note immediately, if it has been changed. Must be called on the EDT.
+	 */
+	public void saveNow(Note n) {
+		pending.remove(n);
+		if(!n.isNoteChanged())
+			return;
+
+		logger.info("Saving Note ({}) to disk", n.noteData.noteName);
+		save(n.snapshot());
+	}
+
+	/*
+	 * Drops the pending save of the note and clears its changed flag, e.g. before it is deleted. Must be called on the EDT.
+	 */
+	public void cancel(Note n) {
+		pending.remove(n);
+		n.discardChanges();
+	}
+
+	/*
+	 * Deletes the saved data of a note on the background thread, after the saves that are already queued, so that none of them stores the
+	 * note again.
+	 */
+	public void delete(final NoteData data) {
+		executor.execute(new Runnable() {
+			public void run() {
+				data.deleteData();
+			}
+		});
+	}
+
+	/*
+	 * Saves a copy of a NoteData on the background thread, e.g. a note that is kept only as data and was changed by the Synchronizer. The
+	 * copy must not be changed afterwards.
+	 */
+	public void save(final NoteData snapshot) {
+		final long start = System.nanoTime();
+		queueDepth.incrementAndGet();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					snapshot.saveData();
+				}
+				finally {
+					queueDepth.decrementAndGet();
+					recordLatency((System.nanoTime() - start) / 1000);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Updates the SearchIndex and the content hash of the MetaData for a note that was saved incrementally, after UPDATE_DELAY. update is the
+	 * update count that the MetaData gave to the save. The copy must not be changed afterwards.
+	 */
+	public void updateLater(NoteData snapshot, long update) {
+		synchronized(deferred) {
+			if(deferred.isEmpty())
+				executor.schedule(new Runnable() {
+					public void run() {
+						updateDeferred();
+					}
+				}, UPDATE_DELAY, TimeUnit.MILLISECONDS);
+			deferred.put(snapshot.fileName, new Deferred(snapshot, update));
+		}
+	}
+
 	/*
-	 * Saves all the notes to disk whenever invoked by the Timer.
+	 * Makes the deferred updates. Notes that have been deleted meanwhile are skipped, so that they are not indexed again.
+	 */
+	private void updateDeferred() {
+		ArrayList<Deferred> batch;
+		synchronized(deferred) {
+			batch = new ArrayList<Deferred>(deferred.values());
+			deferred.clear();
+		}
+
+		for(Deferred d : batch) {
+			if(!JStickies.NOTE_STORE.contains(d.data.fileName))
+				continue;
+			if(JStickies.SEARCH_INDEX != null)
+				JStickies.SEARCH_INDEX.update(d.data);
+			if(JStickies.METADATA != null)
+				JStickies.METADATA.setContentHash(d.data, d.update);
+		}
+		if(!batch.isEmpty())
+			logger.debug("Made the deferred index and hash updates of {} note(s)", batch.size());
+	}
+
+	/*
+	 * Saves all the changed notes and waits until they have been written, along with the deferred updates. Must be called on the EDT.
+	 */
+	public void flush() {
+		for(Note n : new ArrayList<Note>(pending.keySet()))
+			saveNow(n);
+
+		try {
+			executor.submit(new Runnable() {
+				public void run() {
+					updateDeferred();
+				}
+			}).get();
+		}
+		catch(InterruptedException e) {
+			logger.warn("Interrupted while waiting for pending saves");
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException e) {
+			logger.error("Error while waiting for pending saves : {}", e.getMessage());
+		}
+	}
+
+	/*
+	 * Returns a summary of the saves : the number of saves waiting to be written, the number of changed notes waiting for their changes
+	 * to settle, and the moving average and largest time between capturing a note and having it written. Must be called on the EDT.
+	 */
+	public String getStatistics() {
+		return String.format("queue depth %d, %d note(s) pending, average latency %dus, max latency %dus",
+				queueDepth.get(), pending.size(), averageLatency, maxLatency);
+	}
+
+	private void recordLatency(long latency) {
+		averageLatency = (averageLatency == 0)? latency : (averageLatency * 7 + latency) / 8;
+		maxLatency = Math.max(maxLatency, latency);
+		logger.debug("Note saved in {}us. Average latency : {}us, queue depth : {}", latency, averageLatency, queueDepth.get());
+	}
+
+	/*
+	 * Invoked on the EDT every TICK milliseconds while there are pending notes. Saves the notes whose changes have settled.
 	 */
 	@Override
-	public void run() {
-		logger.info("Saving all notes to disk");
-		Note.saveAll();
+	public void actionPerformed(ActionEvent e) {
+		long now = System.currentTimeMillis();
+		ArrayList<Note> due = new ArrayList<Note>();
+
+		Iterator<Map.Entry<Note, Pending>> i = pending.entrySet().iterator();
+		while(i.hasNext()) {
+			Map.Entry<Note, Pending> entry = i.next();
+			if(entry.getValue().isDue(now))
+				due.add(entry.getKey());
+		}
+
+		for(Note n : due)
+			saveNow(n);
+
+		if(pending.isEmpty())
+			timer.stop();
 	}
- 
+
 	/*
-	 * Saves the note which goes out of focus. 
+	 * Saves the note which goes out of focus.
 	 * NOTE: All the notes must add an AutoSaver object as its focus listener.
 	 */
 	@Override
 	public void focusLost(FocusEvent arg0) {
 		Note n = (Note)((JTextArea)arg0.getSource()).getRootPane().getParent();
-		logger.info("Saving Note ({}) to disk", n.noteData.noteName);
-		n.saveData();
+		saveNow(n);
 	}
-	
+
 	/*
 	 * Not required!
 	 */
 	@Override
 	public void focusGained(FocusEvent arg0) {}
-	
+
+	/*
+	 * A saved note whose index and hash updates are deferred.
+	 */
+	private static class Deferred {
+		NoteData data;
+		long update;
+
+		Deferred(NoteData data, long update) {
+			this.data = data;
+			this.update = update;
+		}
+	}
+
+	/*
+	 * Debounce state of a changed note.
+	 */
+	private static class Pending {
+		long firstChange, lastChange, averageGap;
+
+		Pending(long now) {
+			firstChange = lastChange = now;
+			averageGap = MIN_DELAY;
+		}
+
+		void changed(long now) {
+			averageGap = (averageGap * 3 + (now - lastChange)) / 4;
+			lastChange = now;
+		}
+
+		boolean isDue(long now) {
+			long delay = Math.min(Math.max(averageGap * 3, MIN_DELAY), MAX_DELAY);
+			return now - lastChange >= delay || now - firstChange >= MAX_DELAY;
+		}
+	}
 }
@@ -0,0 +1,309 @@
+/*
+ * This class is responsible for writing files to disk. All the classes save their files through the single GroupCommitWriter in
+ * JStickies#WRITER (using JStickies#saveFile(File, Object)), which writes them on its own thread.
+ *
+ * Save requests are queued and written in batches :
+ * 	- Repeated saves of the same file that are still waiting in the queue are coalesced into a single write of the latest contents
+ * 	- Every file is written to a temporary file, which then atomically replaces the target file. A crash in the middle of a write never
+ * 	  leaves a truncated file behind
+ * 	- The temporary files of a batch are fsynced together at the end of the batch, and the directory entries are fsynced once per batch
+ *
+ * Every request returns a Future that completes once the file has been durably written. Until then, its contents are returned by
+ * GroupCommitWriter#getPending(File), including while its batch is being written.
+ */
+
+package com.jstickies.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class GroupCommitWriter implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+	private LinkedHashMap<File, Request> pending;
+	private HashMap<File, Request> inFlight; //Requests of the batch being written
+	private boolean writing;
+	private Thread t;
+
+	/*
+	 * Creates a GroupCommitWriter and starts its writer thread.
+	 */
+	public GroupCommitWriter() {
+		pending = new LinkedHashMap<File, Request>();
+		inFlight = new HashMap<File, Request>();
+		writing = false;
+
+		t = new Thread(this, "GroupCommitWriter");
+		t.setDaemon(true); //Pending writes are flushed by JStickies#exit()
+		t.start();
+	}
+
+	/*
+	 * Queues bytes to be written to file. If a write for the same file is already waiting in the queue, it is replaced by this one and both
+	 * callers receive the same Future.
+	 */
+	public synchronized Future<File> write(File file, byte[] bytes) {
+		return submit(file.getAbsoluteFile(), bytes);
+	}
+
+	/*
+	 * Queues the deletion of file. The deletion is ordered with respect to the writes of the same file, and replaces any write of the file that
+	 * is still waiting in the queue.
+	 */
+	public synchronized Future<File> delete(File file) {
+		return submit(file.getAbsoluteFile(), null);
+	}
+
+	/*
+	 * Returns the contents that are waiting to be written to file or are being written, so that readers see their own writes. Returns null if
+	 * there is no pending write for the file.
+	 */
+	public synchronized byte[] getPending(File file) {
+		Request r = getRequest(file.getAbsoluteFile());
+		return (r == null)? null : r.bytes;
+	}
+
+	/*
+	 * Checks whether the deletion of file is waiting in the queue or is being made.
+	 */
+	public synchronized boolean isPendingDelete(File file) {
+		Request r = getRequest(file.getAbsoluteFile());
+		return r != null && r.bytes == null;
+	}
+
+	/*
+	 * Waits until all the requests that were queued before this call have been written.
+	 */
+	public synchronized void flush() {
+		while(!pending.isEmpty() || writing)
+			try {
+				wait();
+			}
+			catch(InterruptedException e) {
+				logger.warn("Interrupted while flushing pending writes");
+				Thread.currentThread().interrupt();
+				return;
+			}
+	}
+
+	/*
+	 * Returns an already failed Future, for requests that could not be queued.
+	 */
+	public static Future<File> failed(File file, IOException e) {
+		Request r = new Request(file, null);
+		r.fail(e);
+		return r;
+	}
+
+	/*
+	 * Returns the latest request for file, queued or being written.
+	 */
+	private Request getRequest(File file) {
+		Request r = pending.get(file);
+		return (r != null)? r : inFlight.get(file);
+	}
+
+	/*
+	 * Completes a request of the batch being written, or fails it if e is not null. Readers stop seeing its contents once it is done, since
+	 * they are then on the disk.
+	 */
+	private synchronized void finish(Request r, IOException e) {
+		if(inFlight.get(r.file) == r)
+			inFlight.remove(r.file);
+		if(e == null)
+			r.complete();
+		else
+			r.fail(e);
+	}
+
+	private Future<File> submit(File file, byte[] bytes) {
+		Request r = pending.get(file);
+		if(r != null) {
+			logger.debug("Coalescing pending write of file {}", file.getName());
+			r.bytes = bytes;
+		}
+		else {
+			r = new Request(file, bytes);
+			pending.put(file, r);
+			notifyAll();
+		}
+		return r;
+	}
+
+	/*
+	 * Writes the queued requests batch by batch.
+	 */
+	@Override
+	public void run() {
+		while(true) {
+			ArrayList<Request> batch;
+			synchronized(this) {
+				writing = false;
+				notifyAll();
+				while(pending.isEmpty())
+					try {
+						wait();
+					}
+					catch(InterruptedException e) {
+						logger.warn("GroupCommitWriter interrupted");
+					}
+
+				batch = new ArrayList<Request>(pending.values());
+				for(Request r : batch)
+					inFlight.put(r.file, r);
+				pending.clear();
+				writing = true;
+			}
+
+			writeBatch(batch);
+		}
+	}
+
+	/*
+	 * Writes a batch of requests. All the temporary files are written first and fsynced together, after which they replace their targets.
+	 */
+	private void writeBatch(ArrayList<Request> batch) {
+		long start = System.nanoTime();
+		HashSet<File> directories = new HashSet<File>();
+		ArrayList<Request> written = new ArrayList<Request>();
+		ArrayList<FileOutputStream> streams = new ArrayList<FileOutputStream>();
+
+		for(Request r : batch) {
+			if(r.bytes == null) {
+				if(!r.file.delete() && r.file.exists())
+					finish(r, new IOException("Unable to delete " + r.file.getName()));
+				else {
+					directories.add(r.file.getParentFile());
+					finish(r, null);
+				}
+				continue;
+			}
+
+			FileOutputStream fos = null;
+			try {
+				fos = new FileOutputStream(r.getTempFile(), false);
+				fos.write(r.bytes);
+				streams.add(fos);
+				written.add(r);
+			}
+			catch(IOException e) {
+				logger.error("Error while saving file {} : {}", r.file.getName(), e.getMessage());
+				close(fos);
+				r.getTempFile().delete();
+				finish(r, e);
+			}
+		}
+
+		for(int i=0; i<written.size(); i++) {
+			Request r = written.get(i);
+			FileOutputStream fos = streams.get(i);
+			try {
+				fos.getChannel().force(true);
+				fos.close();
+				replace(r.getTempFile(), r.file);
+				directories.add(r.file.getParentFile());
+				finish(r, null);
+			}
+			catch(IOException e) {
+				logger.error("Error while saving file {} : {}", r.file.getName(), e.getMessage());
+				close(fos);
+				r.getTempFile().delete();
+				finish(r, e);
+			}
+		}
+
+		for(File dir : directories)
+			syncDirectory(dir);
+
+		logger.debug("Wrote batch of {} file(s) in {}ms", batch.size(), (System.nanoTime() - start) / 1000000);
+	}
+
+	/*
+	 * Atomically replaces target with source. Falls back to a plain replace on file systems that do not support atomic moves.
+	 */
+	private static void replace(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/*
+	 * Fsyncs a directory, so that renames within it are durable. Not supported on all platforms (eg: Windows), in which case it is skipped.
+	 */
+	private static void syncDirectory(File dir) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		}
+		catch(IOException e) {
+			logger.trace("Unable to fsync directory {} : {}", dir, e.getMessage());
+		}
+		finally {
+			if(channel != null)
+				try {
+					channel.close();
+				}
+				catch(IOException e) {}
+		}
+	}
+
+	private static void close(FileOutputStream fos) {
+		if(fos != null)
+			try {
+				fos.close();
+			}
+			catch(IOException e) {}
+	}
+
+	/*
+	 * A request to write (or delete, if bytes is null) a file. It is also the Future returned to the callers.
+	 */
+	private static class Request extends FutureTask<File> {
+
+		File file;
+		byte[] bytes;
+
+		Request(final File file, byte[] bytes) {
+			super(new Callable<File>() {
+				public File call() {
+					return file;
+				}
+			});
+			this.file = file;
+			this.bytes = bytes;
+		}
+
+		File getTempFile() {
+			return new File(file.getParentFile(), file.getName() + ".tmp");
+		}
+
+		void complete() {
+			set(file);
+		}
+
+		void fail(IOException e) {
+			setException(e);
+		}
+	}
+}
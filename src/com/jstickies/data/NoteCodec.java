@@ -0,0 +1,312 @@
+/*
+ * This class encodes a NoteData into a compact binary format and decodes it back. It replaces Java serialization for storing notes, which
+ * writes the class descriptors and the full Color, Point and Dimension object graphs into every file, and breaks whenever NoteData changes.
+ *
+ * Format :
+ * 	- Magic (2 bytes) - 'J' 'N'
+ * 	- Version (varint) - Incremented only for incompatible changes. Notes with a newer version are rejected
+ * 	- Fields, until the end of the data. Every field is written as a varint tag, a varint length and the field data. Fields that are null
+ * 	  are not written, and fields with unknown tags are skipped, so new optional fields can be added without changing the version
+ *
+ * Fields :
+ * 	- FILE_NAME, NAME, TEXT - UTF-8 bytes
+ * 	- COLOR - Packed RGB (3 bytes)
+ * 	- LOCATION - x and y as zigzag varints
+ * 	- SIZE - width and height as varints
+ * 	- HISTORY - The replicated edit history of the note (see TextHistory). A note whose history cannot be decoded is loaded without it
+ *
+ * Notes that were stored with Java serialization are still decoded, and notes compressed by NoteCompression are decompressed.
+ */
+
+package com.jstickies.data;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class NoteCodec {
+
+	public static final int VERSION = 1;
+	private static final byte MAGIC_0 = 'J', MAGIC_1 = 'N';
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int FILE_NAME = 1,
+			NAME = 2,
+			COLOR = 3,
+			LOCATION = 4,
+			SIZE = 5,
+			TEXT = 6,
+			HISTORY = 7;
+
+	private NoteCodec() {}
+
+	/*
+	 * Encodes a NoteData.
+	 */
+	public static byte[] encode(NoteData data) {
+		byte[] text = (data.noteText == null)? null : data.noteText.getBytes(UTF8);
+		Output out = new Output(64 + ((text == null)? 0 : text.length));
+
+		out.writeByte(MAGIC_0);
+		out.writeByte(MAGIC_1);
+		out.writeVarint(VERSION);
+
+		if(data.fileName != null)
+			out.writeField(FILE_NAME, data.fileName.getBytes(UTF8));
+		if(data.noteName != null)
+			out.writeField(NAME, data.noteName.getBytes(UTF8));
+		if(data.noteColor != null) {
+			int rgb = data.noteColor.getRGB();
+			out.writeField(COLOR, new byte[] {(byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb});
+		}
+		if(data.noteLocation != null) {
+			Output field = new Output(10);
+			field.writeVarint(zigzag(data.noteLocation.x));
+			field.writeVarint(zigzag(data.noteLocation.y));
+			out.writeField(LOCATION, field.toByteArray());
+		}
+		if(data.noteSize != null) {
+			Output field = new Output(10);
+			field.writeVarint(data.noteSize.width);
+			field.writeVarint(data.noteSize.height);
+			out.writeField(SIZE, field.toByteArray());
+		}
+		if(text != null)
+			out.writeField(TEXT, text);
+		if(data.history != null)
+			out.writeField(HISTORY, data.history.encode());
+
+		return out.toByteArray();
+	}
+
+	/*
+	 * Decodes a NoteData from the remaining bytes of buffer. The binary format, compressed or not, and Java serialization are supported.
+	 */
+	public static NoteData decode(ByteBuffer buffer) throws IOException {
+		if(NoteCompression.isCompressed(buffer))
+			buffer = NoteCompression.decompress(buffer);
+		if(isSerialized(buffer))
+			return deserialize(buffer);
+
+		try {
+			if(buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1)
+				throw new IOException("Not a note");
+			int version = readVarint(buffer);
+			if(version > VERSION)
+				throw new IOException("Unsupported note format version " + version);
+
+			NoteData data = new NoteData();
+			while(buffer.hasRemaining()) {
+				int tag = readVarint(buffer), length = readVarint(buffer);
+				if(length < 0 || length > buffer.remaining())
+					throw new IOException("Invalid field length");
+
+				ByteBuffer field = buffer.slice();
+				field.limit(length);
+				buffer.position(buffer.position() + length);
+
+				switch(tag) {
+					case FILE_NAME :
+						data.fileName = readString(field);
+						break;
+					case NAME :
+						data.noteName = readString(field);
+						break;
+					case COLOR :
+						data.noteColor = new Color(((field.get() & 0xFF) << 16) | ((field.get() & 0xFF) << 8) | (field.get() & 0xFF));
+						break;
+					case LOCATION :
+						data.noteLocation = new Point(unzigzag(readVarint(field)), unzigzag(readVarint(field)));
+						break;
+					case SIZE :
+						data.noteSize = new Dimension(readVarint(field), readVarint(field));
+						break;
+					case TEXT :
+						data.noteText = readString(field);
+						break;
+					case HISTORY :
+						try {
+							data.history = TextHistory.decode(field);
+						}
+						catch(IOException e) {
+							data.history = null; //A new history is created (see TextHistory#of(NoteData))
+						}
+						break;
+					default : //Optional field added by a newer version
+						break;
+				}
+			}
+
+			return data;
+		}
+		catch(BufferUnderflowException e) {
+			throw new IOException("Truncated note");
+		}
+	}
+
+	/*
+	 * Decodes a NoteData from bytes.
+	 */
+	public static NoteData decode(byte[] bytes) throws IOException {
+		return decode(ByteBuffer.wrap(bytes));
+	}
+
+	/*
+	 * Reads a NoteData from file.
+	 */
+	public static NoteData read(File file) throws IOException {
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			dis.readFully(bytes);
+			return decode(bytes);
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+	/*
+	 * Checks whether the remaining bytes of buffer are a Java serialization stream.
+	 */
+	private static boolean isSerialized(ByteBuffer buffer) {
+		return buffer.remaining() >= 2 && buffer.get(buffer.position()) == (byte) 0xAC && buffer.get(buffer.position() + 1) == (byte) 0xED;
+	}
+
+	/*
+	 * Decodes a NoteData that was stored using Java serialization.
+	 */
+	private static NoteData deserialize(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (NoteData) ois.readObject();
+		}
+		catch(ClassNotFoundException e) {
+			throw new IOException("Invalid note : " + e.getMessage());
+		}
+		catch(ClassCastException e) {
+			throw new IOException("Invalid note : " + e.getMessage());
+		}
+		finally {
+			ois.close();
+		}
+	}
+
+	private static String readString(ByteBuffer field) {
+		if(field.hasArray())
+			return new String(field.array(), field.arrayOffset() + field.position(), field.remaining(), UTF8);
+
+		byte[] bytes = new byte[field.remaining()];
+		field.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/*
+	 * Reads an unsigned LEB128 varint of at most 32 bits.
+	 */
+	static int readVarint(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if(b >= 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/*
+	 * Reads an unsigned LEB128 varint of at most 64 bits.
+	 */
+	static long readVarlong(ByteBuffer buffer) throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 70; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if(b >= 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/*
+	 * A growable byte array for encoding.
+	 */
+	static class Output {
+		private byte[] bytes;
+		private int count;
+
+		Output(int capacity) {
+			bytes = new byte[capacity];
+			count = 0;
+		}
+
+		void writeByte(int b) {
+			ensureCapacity(1);
+			bytes[count++] = (byte) b;
+		}
+
+		void writeBytes(byte[] b) {
+			ensureCapacity(b.length);
+			System.arraycopy(b, 0, bytes, count, b.length);
+			count += b.length;
+		}
+
+		void writeVarint(int value) {
+			while((value & ~0x7F) != 0) {
+				writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			writeByte(value);
+		}
+
+		void writeVarlong(long value) {
+			while((value & ~0x7FL) != 0) {
+				writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+		void writeLong(long value) {
+			for(int shift = 56; shift >= 0; shift -= 8)
+				writeByte((int) (value >>> shift));
+		}
+
+		void writeField(int tag, byte[] data) {
+			writeVarint(tag);
+			writeVarint(data.length);
+			writeBytes(data);
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, count);
+		}
+
+		private void ensureCapacity(int n) {
+			if(count + n > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + n));
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * This class compresses encoded notes (see NoteCodec) using Deflater with a preset dictionary of words that are common in notes. Short notes
+ * hardly compress without a dictionary, since Deflater can only refer back to text it has already seen. Compression is optional and is
+ * selected using system properties :
+ * 	- jstickies.compression - Deflater level, from 1 (fastest) to 9 (smallest). Notes are not compressed if it is 0 or not set
+ * 	- jstickies.compression.dictionary - File containing a preset dictionary to use instead of the built-in one (see DictionaryTrainer in
+ * 	  the bench folder)
+ *
+ * Format :
+ * 	- Magic (2 bytes) - 'J' 'Z'
+ * 	- Version (varint)
+ * 	- Length of the encoded note (varint)
+ * 	- The encoded note as a zlib stream, which contains the Adler-32 of the dictionary it was compressed with, and of the encoded note
+ *
+ * Compressed and uncompressed notes can coexist, since NoteCodec#decode(ByteBuffer) decompresses a note only if it starts with the magic of
+ * this format. A note is stored uncompressed if it does not get smaller. Older versions of JStickies cannot read compressed notes, so
+ * compression should only be enabled once all the synchronized computers have been updated.
+ */
+
+package com.jstickies.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class NoteCompression {
+
+	public static final int LEVEL = Math.max(0, Math.min(Integer.getInteger("jstickies.compression", 0), 9));
+	private static final int VERSION = 1;
+	private static final byte MAGIC_0 = 'J', MAGIC_1 = 'Z';
+	private static final int MIN_LENGTH = 64; //Shorter notes are never compressed
+	private static final Logger logger = LoggerFactory.getLogger(NoteCompression.class);
+
+	/*
+	 * Words and phrases that are common in notes, with the most common at the end, where Deflater can refer to them with the shortest
+	 * distances.
+	 */
+	private static final String BUILT_IN_DICTIONARY =
+		"Monday Tuesday Wednesday Thursday Friday Saturday Sunday January February March April May June July August September October " +
+		"November December morning afternoon evening tonight yesterday week month year appointment birthday anniversary dentist doctor " +
+		"address phone number email password username account login https://www. http://www. .com .org .net @gmail.com " +
+		"shopping list groceries milk bread eggs butter cheese chicken vegetables fruit coffee tea sugar rice pasta " +
+		"project deadline meeting agenda minutes review report presentation client team manager office schedule budget invoice " +
+		"important urgent reminder remember don't forget follow up call back pick up drop off pay bill book tickets " +
+		"should would could about after before between because through should have will be need to want to going to have to " +
+		"- [ ] - [x] TODO: DONE: Note: Ideas: Tasks: \n\n- \n* \n1. \n2. \n3. " +
+		"this that with from they their there what when where which while your you are was were has had not but all any can " +
+		"the and for to of in on at by is it a an be as or if so do my me we us ";
+	private static final byte[] DICTIONARY = loadDictionary();
+	private static final ConcurrentHashMap<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>(); //By Adler-32
+
+	private static final AtomicLong compressed = new AtomicLong(), inputBytes = new AtomicLong(), outputBytes = new AtomicLong(),
+			compressTime = new AtomicLong(), decompressed = new AtomicLong(), decompressTime = new AtomicLong();
+
+	private static final ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>() {
+		protected Deflater[] initialValue() {
+			return new Deflater[10];
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	static {
+		register(BUILT_IN_DICTIONARY.getBytes(Charset.forName("UTF-8")));
+		register(DICTIONARY);
+		if(LEVEL > 0)
+			logger.info("Compressing notes at level {} with a dictionary of {} bytes", LEVEL, DICTIONARY.length);
+	}
+
+	private NoteCompression() {}
+
+	/*
+	 * Checks whether notes are compressed.
+	 */
+	public static boolean isEnabled() {
+		return LEVEL > 0;
+	}
+
+	/*
+	 * Compresses an encoded note at the configured level. Returns the note unchanged if compression is disabled, the note is already
+	 * compressed, or it does not get smaller.
+	 */
+	public static byte[] compress(byte[] note) {
+		if(LEVEL == 0 || isCompressed(ByteBuffer.wrap(note)))
+			return note;
+		return compress(note, LEVEL, true);
+	}
+
+	/*
+	 * Compresses an encoded note at level, with or without the preset dictionary. Returns the note unchanged if it does not get smaller.
+	 */
+	public static byte[] compress(byte[] note, int level, boolean useDictionary) {
+		if(note.length < MIN_LENGTH)
+			return note;
+
+		long start = System.nanoTime();
+		Deflater deflater = getDeflater(level);
+		try {
+			if(useDictionary)
+				deflater.setDictionary(DICTIONARY);
+			deflater.setInput(note);
+			deflater.finish();
+
+			ByteBuffer out = ByteBuffer.allocate(note.length);
+			out.put(MAGIC_0).put(MAGIC_1);
+			putVarint(out, VERSION);
+			putVarint(out, note.length);
+			while(!deflater.finished() && out.hasRemaining())
+				out.position(out.position() + deflater.deflate(out.array(), out.position(), out.remaining()));
+			if(!deflater.finished())
+				return note; //Not smaller
+
+			byte[] result = new byte[out.position()];
+			System.arraycopy(out.array(), 0, result, 0, result.length);
+
+			compressed.incrementAndGet();
+			inputBytes.addAndGet(note.length);
+			outputBytes.addAndGet(result.length);
+			compressTime.addAndGet(System.nanoTime() - start);
+			return result;
+		}
+		finally {
+			deflater.reset();
+		}
+	}
+
+	/*
+	 * Returns the Deflater of the calling thread for level. Deflaters are reused, since creating one allocates its buffers.
+	 */
+	private static Deflater getDeflater(int level) {
+		Deflater[] levels = deflaters.get();
+		if(levels[level] == null)
+			levels[level] = new Deflater(level);
+		return levels[level];
+	}
+
+	/*
+	 * Checks whether the remaining bytes of buffer are a compressed note.
+	 */
+	public static boolean isCompressed(ByteBuffer buffer) {
+		return buffer.remaining() >= 2 && buffer.get(buffer.position()) == MAGIC_0 && buffer.get(buffer.position() + 1) == MAGIC_1;
+	}
+
+	/*
+	 * Decompresses the remaining bytes of buffer, which must be a compressed note.
+	 */
+	public static ByteBuffer decompress(ByteBuffer buffer) throws IOException {
+		long start = System.nanoTime();
+		buffer.position(buffer.position() + 2);
+		int version = NoteCodec.readVarint(buffer);
+		if(version > VERSION)
+			throw new IOException("Unsupported compression version " + version);
+		int length = NoteCodec.readVarint(buffer);
+		if(length < 0 || length > buffer.remaining() * 1032L + MIN_LENGTH) //Deflate never compresses by more than 1032:1
+			throw new IOException("Compressed note has an invalid length");
+
+		byte[] input;
+		int offset;
+		if(buffer.hasArray()) {
+			input = buffer.array();
+			offset = buffer.arrayOffset() + buffer.position();
+		}
+		else {
+			input = new byte[buffer.remaining()];
+			buffer.duplicate().get(input);
+			offset = 0;
+		}
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(input, offset, buffer.remaining());
+		byte[] note = new byte[length];
+		try {
+			int n = 0;
+			while(!inflater.finished()) {
+				int inflated = inflater.inflate(note, n, length - n);
+				if(inflated == 0 && inflater.needsDictionary()) {
+					byte[] dictionary = dictionaries.get(inflater.getAdler());
+					if(dictionary == null)
+						throw new IOException("Note was compressed with an unknown dictionary");
+					inflater.setDictionary(dictionary);
+				}
+				else if(inflated == 0)
+					throw new IOException("Truncated compressed note");
+				n += inflated;
+			}
+			if(n != length)
+				throw new IOException("Compressed note has an invalid length");
+		}
+		catch(DataFormatException e) {
+			throw new IOException("Corrupt compressed note : " + e.getMessage());
+		}
+		buffer.position(buffer.limit());
+
+		decompressed.incrementAndGet();
+		decompressTime.addAndGet(System.nanoTime() - start);
+		return ByteBuffer.wrap(note);
+	}
+
+	/*
+	 * Returns the compression ratio and the CPU cost of compressing and decompressing notes since the application was started.
+	 */
+	public static String getStatistics() {
+		long c = compressed.get(), d = decompressed.get(), in = inputBytes.get();
+		return String.format("%d note(s) compressed, ratio %.2f, %.1fus per compression; %d note(s) decompressed, %.1fus per decompression",
+				c, (in == 0)? 1.0 : (double) outputBytes.get() / in, (c == 0)? 0.0 : compressTime.get() / 1000.0 / c,
+				d, (d == 0)? 0.0 : decompressTime.get() / 1000.0 / d);
+	}
+
+	/*
+	 * Loads the dictionary selected by the jstickies.compression.dictionary system property, or the built-in dictionary.
+	 */
+	private static byte[] loadDictionary() {
+		String path = System.getProperty("jstickies.compression.dictionary");
+		if(path != null)
+			try {
+				return Files.readAllBytes(new File(path).toPath());
+			}
+			catch(IOException e) {
+				logger.error("Unable to read compression dictionary {} : {}", path, e.getMessage());
+			}
+		return BUILT_IN_DICTIONARY.getBytes(Charset.forName("UTF-8"));
+	}
+
+	/*
+	 * Makes a dictionary available for decompressing notes that were compressed with it.
+	 */
+	private static void register(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		dictionaries.put((int) adler.getValue(), dictionary);
+	}
+
+	private static void putVarint(ByteBuffer out, int value) {
+		while((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+}
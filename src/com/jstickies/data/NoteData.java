@@ -8,7 +8,9 @@
  *	- Size (Dimensions of the note)
  *	- File Name
  * 
- * A Note is saved to file with only the above information and can also be retrieved using the same.
+ * A Note is saved to file with only the above information and can also be retrieved using the same. NoteData is encoded using NoteCodec.
+ * The edits made to the text since the last save are also passed along, so that large notes can be saved incrementally. The replicated edit
+ * history of the note (see TextHistory) is kept along with its text, so that concurrent edits can be merged by the Synchronizer.
  */
 
 package com.jstickies.data;
@@ -17,8 +19,9 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.List;
 import java.util.Random;
 
 import org.slf4j.Logger;
@@ -36,6 +39,8 @@ public class NoteData implements Serializable {
 	public Point noteLocation;
 	public Dimension noteSize;
 	public String fileName;
+	public transient List<TextEdit> edits; //Edits made to the text since the note was last saved, or null if they are not known
+	public transient TextHistory history; //Encoded by NoteCodec, or null if the note has none yet
 	
 	private static final Logger logger = LoggerFactory.getLogger(NoteData.class); 
 	
@@ -52,15 +57,46 @@ public class NoteData implements Serializable {
 	}
 	
 	/*
-	 * Saves the NoteData to file. The file name is randomly generated during object creation.
+	 * Creates an empty NoteData. Used by NoteCodec for decoding.
+	 */
+	NoteData() {}
+	
+	/*
+	 * Returns a copy of this NoteData with the same file name, which can be saved on another thread while this NoteData is being changed. The
+	 * history is not copied, since copying it is only needed when it is saved (see TextHistory#copy()).
+	 */
+	public NoteData copy() {
+		NoteData data = new NoteData();
+		data.noteName = noteName;
+		data.noteColor = noteColor;
+		data.noteText = noteText;
+		data.noteLocation = (noteLocation == null)? null : new Point(noteLocation);
+		data.noteSize = (noteSize == null)? null : new Dimension(noteSize);
+		data.fileName = fileName;
+		return data;
+	}
+	
+	/*
+	 * Saves the NoteData to the note store. The file name is randomly generated during object creation. The Synchronizer is notified, so that
+	 * the note is pushed to the server. If only the edits were saved, the SearchIndex and the content hash of the MetaData are updated later
+	 * by the AutoSaver, so that the save does not depend on the size of the note.
 	 */
 	public void saveData() {
 		logger.info("Saving note {} to file {}", noteName, fileName);
-		File saveLocation = new File(NOTE_FOLDER + "/" + fileName);
-		JStickies.saveFile(saveLocation, this);
+		boolean incremental = JStickies.NOTE_STORE.save(this);
 		
-		if(JStickies.METADATA != null)
-			JStickies.METADATA.updateNote(fileName);
+		if(incremental && JStickies.AUTO_SAVER != null) {
+			long update = (JStickies.METADATA != null)? JStickies.METADATA.touchNote(fileName) : 0;
+			JStickies.AUTO_SAVER.updateLater(this, update);
+		}
+		else {
+			if(JStickies.SEARCH_INDEX != null)
+				JStickies.SEARCH_INDEX.update(this);
+			if(JStickies.METADATA != null)
+				JStickies.METADATA.updateNote(this);
+		}
+		if(JStickies.SYNCHRONIZER != null)
+			JStickies.SYNCHRONIZER.noteChanged(fileName);
 	}
 	
 	/*
@@ -68,39 +104,39 @@ public class NoteData implements Serializable {
 	 */
 	public static NoteData[] getSavedData() {
 		logger.info("Loading saved notes from disk");
-		File[] dataFiles = NOTE_FOLDER.listFiles(new FilenameFilter() {
-			public boolean accept(File dir, String name) {
-				if(name.endsWith(".note"))
-					return true;
-				return false;
-			}
-		});
-		logger.info("{} saved notes found", dataFiles.length);
-		NoteData[] noteData = (dataFiles.length > 0)? new NoteData[dataFiles.length] : null;
-		
-		for(int i=0; i<dataFiles.length; i++)
-			noteData[i] = NoteData.getNoteData(dataFiles[i]);
+		NoteData[] noteData = JStickies.NOTE_STORE.loadAll();
+		logger.info("{} saved notes found", noteData.length);
 		
-		return noteData;
+		return (noteData.length > 0)? noteData : null;
 	}
 	
 	/*
-	 * Gets a NoteData object from file. Used for de-serializing.
+	 * Gets a NoteData object from file. Used for decoding.
 	 */
 	public static NoteData getNoteData(File f) {
 		logger.info("Loading NoteData from file : {}", f.getName());
-		return (NoteData) JStickies.loadFile(f);
+		try {
+			return NoteCodec.read(f);
+		}
+		catch(IOException e) {
+			logger.error("Error loading file {} : {}", f.getName(), e.getMessage());
+			return null;
+		}
 	}
 	
 	/*
-	 * Deletes the stored NoteData file.
+	 * Deletes the stored NoteData from the note store, and notifies the Synchronizer.
 	 */
 	public void deleteData() {
 		logger.info("Deleting NoteData file : {}", fileName);
-		new File(NOTE_FOLDER + "/" + fileName).delete();
+		JStickies.NOTE_STORE.delete(fileName);
 		
+		if(JStickies.SEARCH_INDEX != null)
+			JStickies.SEARCH_INDEX.remove(fileName);
 		if(JStickies.METADATA != null)
 			JStickies.METADATA.deleteNote(fileName);
+		if(JStickies.SYNCHRONIZER != null)
+			JStickies.SYNCHRONIZER.noteChanged(fileName);
 	}
 	
 	/*
@@ -111,7 +147,7 @@ public class NoteData implements Serializable {
 		
 		do
 			text = new Random().nextInt() + ".note";
-		while(new File(NOTE_FOLDER + "/" + text).exists()); //If such file exists, generate random name again
+		while(JStickies.NOTE_STORE.contains(text)); //If such note exists, generate random name again
 		
 		return text; 
 	}
@@ -0,0 +1,76 @@
+/*
+ * This class represents a single edit made to the text of a note : removed characters are removed at offset, and then inserted is inserted
+ * at offset. Notes record their edits as TextEdits, so that large notes can be saved by appending only the edits to their delta log (see
+ * DeltaLog) instead of rewriting the entire text. Merging a TextHistory also returns the changes to the text as TextEdits.
+ */
+
+package com.jstickies.data;
+
+import java.util.List;
+
+public class TextEdit {
+
+	public final int offset, removed;
+	public final String inserted;
+
+	public TextEdit(int offset, int removed, String inserted) {
+		this.offset = offset;
+		this.removed = removed;
+		this.inserted = inserted;
+	}
+
+	/*
+	 * Merges this edit with the edit next that directly follows it, if the result is a single edit. Typing extends an insertion and
+	 * backspacing shortens it, so a burst of typing is recorded as a single edit. Returns null if the edits cannot be merged.
+	 */
+	public TextEdit merge(TextEdit next) {
+		int end = offset + inserted.length();
+
+		if(next.removed == 0 && next.offset == end)
+			return new TextEdit(offset, removed, inserted + next.inserted);
+		if(next.inserted.length() == 0 && next.offset >= offset && next.offset + next.removed == end)
+			return new TextEdit(offset, removed, inserted.substring(0, next.offset - offset));
+		return null;
+	}
+
+	/*
+	 * Adds the edit to the list of edits, merging it with the last edit of the list when possible.
+	 */
+	public static void add(List<TextEdit> edits, TextEdit edit) {
+		if(!edits.isEmpty()) {
+			TextEdit merged = edits.get(edits.size() - 1).merge(edit);
+			if(merged != null) {
+				edits.set(edits.size() - 1, merged);
+				return;
+			}
+		}
+		edits.add(edit);
+	}
+
+	/*
+	 * Returns a single edit that turns the text from into the text to, replacing only the part between their common prefix and suffix. Returns
+	 * null if the texts are equal.
+	 */
+	public static TextEdit diff(String from, String to) {
+		if(from.equals(to))
+			return null;
+
+		int prefix = 0, max = Math.min(from.length(), to.length());
+		while(prefix < max && from.charAt(prefix) == to.charAt(prefix))
+			prefix++;
+		int suffix = 0;
+		while(suffix < max - prefix && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix))
+			suffix++;
+		return new TextEdit(prefix, from.length() - prefix - suffix, to.substring(prefix, to.length() - suffix));
+	}
+
+	/*
+	 * Returns text after making the edits, in order.
+	 */
+	public static String apply(String text, List<TextEdit> edits) {
+		StringBuilder s = new StringBuilder(text);
+		for(TextEdit e : edits)
+			s.replace(e.offset, e.offset + e.removed, e.inserted);
+		return s.toString();
+	}
+}
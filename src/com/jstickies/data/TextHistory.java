@@ -0,0 +1,1110 @@
+/*
+ * This class keeps the replicated edit history of a note, so that a note that was edited on several computers between two synchronizations
+ * can be merged without losing the edits of either side. The text is a sequence CRDT (RGA, Replicated Growable Array) :
+ * 	- Every character has a unique id (device, counter). Counters are Lamport clocks, so a character always has a larger counter than the
+ * 	  character it was inserted after (its origin)
+ * 	- A character is placed after its origin, skipping the characters with larger ids that follow it. Characters inserted concurrently after
+ * 	  the same origin therefore end up in the same order on every computer, whatever order they are merged in
+ * 	- Deleted characters are kept as tombstones without their text, since characters inserted concurrently may refer to them
+ * Characters are kept in runs of consecutive ids, so a burst of typing is a single run. Only the ids are kept; the text itself is the text of
+ * the note, with one character for every visible character of the runs. The name, color, location and size of the note are a last-writer-
+ * wins register, stamped with an id in the same way.
+ *
+ * The VersionVector of a history covers all the operations it has seen. A Delta contains everything that a history has seen and a
+ * VersionVector does not cover : the runs inserted and the deletions made since then. Merging a Delta is idempotent and the order of
+ * concurrent Deltas does not matter, so computers only exchange the Deltas they are missing (see Synchronizer), and a conflict costs bytes
+ * in proportion to the edits, not to the size of the note.
+ *
+ * Notes without a history (e.g. saved by an older version) get one that depends only on their text (see TextHistory#create(NoteData)), so
+ * computers that had the same text before recording histories agree on its ids. Histories that started from different texts cannot be
+ * merged (see TextHistory#canMerge(TextHistory)). The history is stored as the HISTORY field of a note (see NoteCodec).
+ *
+ * The runs are kept in blocks that know the number of their visible characters, and are indexed by id (see RunList), so typing and merging
+ * do not go through all the runs of a large note. Tombstones are removed once every computer has seen them (see TextHistory#collect(
+ * VersionVector)). A character that a history covers but does not contain has therefore been deleted and removed.
+ *
+ * Encoded history :
+ * 	- Version (varint), devices (varint count and 8 bytes each, referred to by index below), version vector, clock (varlong), length of the
+ * 	  text (varint), stamp and hash of the name, color, location and size, genesis device
+ * 	- Runs (varint count). Every run is written as flags, device, counter, length, origin (unless it is the beginning of the text or the
+ * 	  previous id of the same device) and the stamp of its deletion (if it is deleted)
+ *
+ * Encoded Delta :
+ * 	- Magic (2 bytes) - 'J' 'O'
+ * 	- Version, devices and version vector, as above
+ * 	- Stamp and fields of the name, color, location and size, if they changed (encoded by NoteCodec, without text)
+ * 	- Runs, as above. The runs that are inserted and visible are followed by their characters, as varints
+ */
+
+package com.jstickies.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+
+public class TextHistory {
+
+	private static final Logger logger = LoggerFactory.getLogger(TextHistory.class); //Before DEVICE, which logs while it is created
+	public static final long DEVICE = loadDevice(); //Id of this computer
+	private static final int VERSION = 1;
+	private static final byte MAGIC_0 = 'J', MAGIC_1 = 'O';
+	private static final int DELETED = 1, INSERTED = 2, ORIGIN_HEAD = 4, ORIGIN_PREVIOUS = 8; //Flags of encoded runs
+
+	private RunList runs;
+	private VersionVector version;
+	private long clock; //Largest counter seen
+	private int length; //Number of visible characters
+	private long metaDevice, metaCounter; //Stamp of the name, color, location and size, or 0 if they were never changed
+	private long metaHash;
+	private long genesis; //Device derived from the text the history was created from (see TextHistory#create(NoteData)), or 0 if it was empty
+
+	private TextHistory() {
+		runs = new RunList();
+		version = new VersionVector();
+	}
+
+	/*
+	 * Creates the history of a note that has none. The text is a single run, whose device is derived from the text.
+	 */
+	public static TextHistory create(NoteData data) {
+		TextHistory history = new TextHistory();
+		String text = (data.noteText == null)? "" : data.noteText;
+		if(text.length() > 0) {
+			long device = 0xcbf29ce484222325L; //FNV-1a
+			for(int i=0; i<text.length(); i++)
+				device = (device ^ text.charAt(i)) * 0x100000001b3L;
+			if(device == 0)
+				device = 1;
+
+			history.runs.add(new Run(device, 1, text.length(), 0, 0));
+			history.genesis = device;
+			history.version.advance(device, text.length());
+			history.clock = text.length();
+			history.length = text.length();
+		}
+		history.metaHash = metaHash(data);
+		return history;
+	}
+
+	/*
+	 * Returns the history of data, creating it if data has none or if it does not match the text of data.
+	 */
+	public static TextHistory of(NoteData data) {
+		int length = (data.noteText == null)? 0 : data.noteText.length();
+		if(data.history != null && data.history.length != length) {
+			logger.warn("History of note {} does not match its text. Starting a new history", data.fileName);
+			data.history = null;
+		}
+		if(data.history == null)
+			data.history = create(data);
+		return data.history;
+	}
+
+	/*
+	 * Records the insertion of text at offset, made on this computer.
+	 */
+	public void insert(int offset, String text) {
+		int n = text.length();
+		if(n == 0)
+			return;
+		long counter = tick(n);
+		length += n;
+
+		int index = 0;
+		long originDevice = 0, originCounter = 0;
+		if(offset > 0) {
+			int[] at = runs.locate(offset - 1);
+			Run r = runs.get(at[0]);
+			originDevice = r.device;
+			originCounter = r.counter + at[1];
+			if(at[1] == r.length - 1 && r.device == DEVICE && r.counter + r.length == counter) { //Typing at the end of the last insertion
+				runs.setLength(r, r.length + n);
+				return;
+			}
+			index = split(at[0], at[1] + 1);
+		}
+		runs.add(index, new Run(DEVICE, counter, n, originDevice, originCounter));
+	}
+
+	/*
+	 * Records the deletion of count characters at offset, made on this computer.
+	 */
+	public void delete(int offset, int count) {
+		if(count <= 0)
+			return;
+		long counter = tick(1);
+		length -= count;
+
+		int[] at = runs.locate(offset);
+		int first = split(at[0], at[1]), i = first;
+		while(count > 0) {
+			Run r = runs.get(i++);
+			if(r.isDeleted())
+				continue;
+			if(r.length > count)
+				split(i - 1, count);
+			runs.delete(r, DEVICE, counter);
+			count -= r.length;
+		}
+		compact(first - 1, i);
+	}
+
+	/*
+	 * Stamps the name, color, location and size of data if they changed since they were last recorded.
+	 */
+	public void updateMeta(NoteData data) {
+		long hash = metaHash(data);
+		if(hash == metaHash)
+			return;
+		metaHash = hash;
+		metaDevice = DEVICE;
+		metaCounter = tick(1);
+	}
+
+	/*
+	 * Returns everything that since does not cover. data must be the note that this is the history of.
+	 */
+	public Delta getDelta(VersionVector since, NoteData data) {
+		String text = (data.noteText == null)? "" : data.noteText;
+		if(text.length() != length)
+			throw new IllegalArgumentException("Text does not match the history");
+
+		Delta delta = new Delta(version.copy());
+		int position = 0;
+		for(Run r : runs) {
+			int covered = (int) Math.max(0, Math.min(r.length, since.get(r.device) - r.counter + 1));
+			if(covered > 0 && r.isDeleted() && !since.covers(r.deletedDevice, r.deletedCounter)) {
+				Run d = new Run(r.device, r.counter, covered, 0, 0);
+				d.inserted = false;
+				d.deletedDevice = r.deletedDevice;
+				d.deletedCounter = r.deletedCounter;
+				delta.runs.add(d);
+			}
+			if(covered < r.length) {
+				Run d = (covered == 0)? new Run(r.device, r.counter, r.length, r.originDevice, r.originCounter) :
+					new Run(r.device, r.counter + covered, r.length - covered, r.device, r.counter + covered - 1);
+				d.deletedDevice = r.deletedDevice;
+				d.deletedCounter = r.deletedCounter;
+				if(!r.isDeleted())
+					d.text = text.substring(position + covered, position + r.length);
+				delta.runs.add(d);
+			}
+			if(!r.isDeleted())
+				position += r.length;
+		}
+
+		if(metaCounter != 0 && !since.covers(metaDevice, metaCounter)) {
+			delta.meta = data.copy();
+			delta.meta.noteText = null;
+			delta.meta.fileName = null;
+			delta.metaDevice = metaDevice;
+			delta.metaCounter = metaCounter;
+		}
+		return delta;
+	}
+
+	/*
+	 * Merges a Delta received from another computer. If the name, color, location and size in the Delta are newer, they are set in data.
+	 * Returns the edits to make to the text, in order. Throws an IOException without changing the history if the Delta depends on
+	 * operations that have not been merged, or on characters that have been removed.
+	 */
+	public List<TextEdit> merge(Delta delta, NoteData data) throws IOException {
+		for(int i=0; i<delta.runs.size(); i++) {
+			Run p = delta.runs.get(i);
+			int known = known(p);
+			if(known == p.length) //Already merged, or deleted and removed
+				continue;
+			long device = p.device, counter = p.counter + known;
+			if(p.inserted && known == 0) {
+				device = p.originDevice;
+				counter = p.originCounter;
+			}
+			else if(p.inserted)
+				counter--;
+			if((device != 0 || counter != 0) && runs.get(device, counter) == null && !precedes(delta, i, device, counter))
+				throw new IOException("Delta depends on edits that have not been merged");
+		}
+
+		ArrayList<TextEdit> edits = new ArrayList<TextEdit>();
+		for(Run p : delta.runs) {
+			int present = mark(p, edits);
+			if(p.inserted && present < p.length)
+				integrate(p, present, edits);
+		}
+		version.merge(delta.version);
+		clock = Math.max(clock, version.max());
+
+		if(delta.meta != null && compare(delta.metaCounter, delta.metaDevice, metaCounter, metaDevice) > 0) {
+			data.noteName = delta.meta.noteName;
+			data.noteColor = delta.meta.noteColor;
+			data.noteLocation = delta.meta.noteLocation;
+			data.noteSize = delta.meta.noteSize;
+			metaDevice = delta.metaDevice;
+			metaCounter = delta.metaCounter;
+			metaHash = metaHash(data);
+		}
+		compact(0, runs.size() - 1);
+		return edits;
+	}
+
+	/*
+	 * Returns the VersionVector covering everything this history has seen.
+	 */
+	public VersionVector getVersion() {
+		return version.copy();
+	}
+
+	/*
+	 * Returns the device of the characters the history was created with, which never edits the note, or 0 if it was created empty.
+	 */
+	public long getGenesis() {
+		return genesis;
+	}
+
+	/*
+	 * Returns the number of visible characters.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/*
+	 * Returns the number of runs, including the runs of deleted characters.
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/*
+	 * Removes the tombstones that every computer has seen, i.e. the deleted runs whose insertion and deletion stable covers. A computer that
+	 * has seen a tombstone never inserts after it, since characters are only inserted after visible ones, and inserts before the run that
+	 * follows it with a larger id than both. A tombstone is therefore only removed if stable covers the run that follows it, and if no run
+	 * that stable does not cover was inserted after it. Returns the number of runs removed.
+	 */
+	public int collect(VersionVector stable) {
+		HashSet<Run> origins = new HashSet<Run>();
+		for(Run r : runs)
+			if(!stable.covers(r.device, r.counter) && (r.originDevice != 0 || r.originCounter != 0)) {
+				Run o = runs.get(r.originDevice, r.originCounter);
+				if(o != null)
+					origins.add(o);
+			}
+
+		int removed = 0;
+		for(int i=runs.size()-1; i>=0; i--) {
+			Run r = runs.get(i);
+			if(r.isDeleted() && stable.covers(r.device, r.counter + r.length - 1) && stable.covers(r.deletedDevice, r.deletedCounter) &&
+					!origins.contains(r) && (i == runs.size() - 1 || stable.covers(runs.get(i + 1).device, runs.get(i + 1).counter))) {
+				runs.remove(i);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/*
+	 * Checks whether the Deltas of other can be merged into this history. They cannot if the histories started from different texts, i.e.
+	 * if their genesis devices differ or if neither is empty and no device has edited both, or if other has removed tombstones that this history still needs : characters that
+	 * are visible here, or that runs other has not seen were inserted after.
+	 */
+	public boolean canMerge(TextHistory other) {
+		if(genesis != 0 && other.genesis != 0 && genesis != other.genesis)
+			return false;
+		boolean shared = version.getDevices().isEmpty() || other.version.getDevices().isEmpty();
+		for(long device : version.getDevices())
+			shared |= other.version.get(device) > 0;
+		if(!shared)
+			return false;
+
+		for(Run r : runs) {
+			long end = Math.min(r.counter + r.length, other.version.get(r.device) + 1);
+			for(long c = r.counter; c < end; ) { //Characters of r that other covers
+				Run o = other.runs.get(r.device, c);
+				if(o == null) {
+					if(!r.isDeleted())
+						return false;
+					Run next = other.runs.following(r.device, c);
+					c = (next == null)? end : next.counter;
+				}
+				else
+					c = o.counter + o.length;
+			}
+
+			if(end >= r.counter + r.length)
+				continue;
+			long device = (end > r.counter)? r.device : r.originDevice, counter = (end > r.counter)? end - 1 : r.originCounter;
+			if((device != 0 || counter != 0) && other.version.covers(device, counter) && other.runs.get(device, counter) == null)
+				return false; //Origin of the characters that other has not seen
+		}
+		return true;
+	}
+
+	/*
+	 * Returns a copy of this history, which can be encoded on another thread while this history is being changed.
+	 */
+	public TextHistory copy() {
+		TextHistory copy = new TextHistory();
+		for(Run r : runs)
+			copy.runs.add(r.copy());
+		copy.version = version.copy();
+		copy.clock = clock;
+		copy.length = length;
+		copy.metaDevice = metaDevice;
+		copy.metaCounter = metaCounter;
+		copy.metaHash = metaHash;
+		copy.genesis = genesis;
+		return copy;
+	}
+
+	/*
+	 * Advances the clock by n, and returns the first of the n counters.
+	 */
+	private long tick(int n) {
+		clock += n;
+		version.advance(DEVICE, clock);
+		return clock - n + 1;
+	}
+
+	/*
+	 * Splits the run at index after its first k characters. Returns the index of the run that starts after them.
+	 */
+	private int split(int index, int k) {
+		Run r = runs.get(index);
+		if(k <= 0)
+			return index;
+		if(k >= r.length)
+			return index + 1;
+
+		Run tail = new Run(r.device, r.counter + k, r.length - k, r.device, r.counter + k - 1);
+		tail.deletedDevice = r.deletedDevice;
+		tail.deletedCounter = r.deletedCounter;
+		runs.setLength(r, k);
+		runs.add(index + 1, tail);
+		return index + 1;
+	}
+
+	/*
+	 * Joins the runs between the indexes from and to that continue each other, i.e. that were split, or typed and then deleted one after
+	 * another. Deleted runs are only joined if they were deleted by the same device, and keep the latest deletion stamp, which a
+	 * VersionVector covers only if it covers both.
+	 */
+	private void compact(int from, int to) {
+		int i = Math.max(from, 0);
+		to = Math.min(to, runs.size() - 1);
+		while(i < to) {
+			Run a = runs.get(i), b = runs.get(i + 1);
+			if(a.device == b.device && a.counter + a.length == b.counter && b.originDevice == b.device && b.originCounter == b.counter - 1 &&
+					a.isDeleted() == b.isDeleted() && a.deletedDevice == b.deletedDevice) {
+				runs.setLength(a, a.length + b.length);
+				a.deletedCounter = Math.max(a.deletedCounter, b.deletedCounter);
+				runs.remove(i + 1);
+				to--;
+			}
+			else
+				i++;
+		}
+	}
+
+	/*
+	 * Applies the deletion of the run p of a Delta to the characters of p that are already present. Returns the number of characters of p
+	 * that this history covers, which are always the first characters of p, since a Delta contains all the later operations of the devices
+	 * it covers. The characters that are covered but not present were removed, and are skipped.
+	 */
+	private int mark(Run p, List<TextEdit> edits) {
+		int i = 0, known = known(p);
+		while(i < known) {
+			int index = runs.find(p.device, p.counter + i);
+			if(index == -1) {
+				Run next = runs.following(p.device, p.counter + i);
+				i = (next == null)? known : (int) Math.min(known, next.counter - p.counter);
+				continue;
+			}
+			Run r = runs.get(index);
+			int k = (int) (p.counter + i - r.counter), n = Math.min(r.length - k, p.length - i);
+			if(p.isDeleted()) {
+				index = split(index, k);
+				split(index, n);
+				r = runs.get(index);
+				if(!r.isDeleted()) {
+					edits.add(new TextEdit(runs.offsetOf(index), n, ""));
+					length -= n;
+				}
+				if(compare(p.deletedCounter, p.deletedDevice, r.deletedCounter, r.deletedDevice) > 0)
+					runs.delete(r, p.deletedDevice, p.deletedCounter);
+			}
+			i += n;
+		}
+		return i;
+	}
+
+	/*
+	 * Returns the number of characters of the run p of a Delta that this history covers.
+	 */
+	private int known(Run p) {
+		return (int) Math.max(0, Math.min(p.length, version.get(p.device) - p.counter + 1));
+	}
+
+	/*
+	 * Inserts the characters of the run p of a Delta that are not present, starting at the character present.
+	 */
+	private void integrate(Run p, int present, List<TextEdit> edits) {
+		Run x = (present == 0)? new Run(p.device, p.counter, p.length, p.originDevice, p.originCounter) :
+			new Run(p.device, p.counter + present, p.length - present, p.device, p.counter + present - 1);
+		x.deletedDevice = p.deletedDevice;
+		x.deletedCounter = p.deletedCounter;
+
+		int index = 0;
+		if(x.originDevice != 0 || x.originCounter != 0) {
+			int origin = runs.find(x.originDevice, x.originCounter);
+			index = split(origin, (int) (x.originCounter - runs.get(origin).counter) + 1);
+		}
+		//Skip the characters inserted after the origin with larger ids, along with the characters inserted after them
+		while(index < runs.size() && compare(runs.get(index).counter, runs.get(index).device, x.counter, x.device) > 0)
+			index++;
+		runs.add(index, x);
+
+		if(!x.isDeleted()) {
+			edits.add(new TextEdit(runs.offsetOf(index), 0, p.text.substring(present)));
+			length += x.length;
+		}
+	}
+
+	/*
+	 * Checks whether a run inserted by delta before the run at index contains the character with the id (device, counter).
+	 */
+	private static boolean precedes(Delta delta, int index, long device, long counter) {
+		for(int i=0; i<index; i++)
+			if(delta.runs.get(i).inserted && delta.runs.get(i).contains(device, counter))
+				return true;
+		return false;
+	}
+
+	/*
+	 * Compares the ids (counter1, device1) and (counter2, device2). Ids are ordered by counter, and then by device.
+	 */
+	private static int compare(long counter1, long device1, long counter2, long device2) {
+		if(counter1 != counter2)
+			return (counter1 < counter2)? -1 : 1;
+		return (device1 < device2)? -1 : ((device1 == device2)? 0 : 1);
+	}
+
+	private static long metaHash(NoteData data) {
+		long hash = 17;
+		hash = hash * 31 + ((data.noteName == null)? 0 : data.noteName.hashCode());
+		hash = hash * 31 + ((data.noteColor == null)? 0 : data.noteColor.getRGB());
+		hash = hash * 31 + ((data.noteLocation == null)? 0 : data.noteLocation.hashCode());
+		hash = hash * 31 + ((data.noteSize == null)? 0 : data.noteSize.hashCode());
+		return hash;
+	}
+
+	/*
+	 * Encodes this history.
+	 */
+	public byte[] encode() {
+		Devices devices = new Devices(version, runs);
+		devices.add(metaDevice);
+		devices.add(genesis);
+
+		NoteCodec.Output out = new NoteCodec.Output(64 + runs.size() * 8);
+		out.writeVarint(VERSION);
+		devices.write(out);
+		devices.write(out, version);
+		out.writeVarlong(clock);
+		out.writeVarint(length);
+		out.writeVarint(devices.get(metaDevice));
+		out.writeVarlong(metaCounter);
+		out.writeLong(metaHash);
+		out.writeVarint(devices.get(genesis));
+		writeRuns(out, runs, runs.size(), devices);
+		return out.toByteArray();
+	}
+
+	/*
+	 * Decodes a history from the remaining bytes of buffer.
+	 */
+	public static TextHistory decode(ByteBuffer buffer) throws IOException {
+		try {
+			int v = NoteCodec.readVarint(buffer);
+			if(v > VERSION)
+				throw new IOException("Unsupported history version " + v);
+
+			TextHistory history = new TextHistory();
+			long[] devices = readDevices(buffer);
+			history.version = readVersion(buffer, devices);
+			history.clock = NoteCodec.readVarlong(buffer);
+			history.length = NoteCodec.readVarint(buffer);
+			history.metaDevice = device(devices, NoteCodec.readVarint(buffer));
+			history.metaCounter = NoteCodec.readVarlong(buffer);
+			history.metaHash = buffer.getLong();
+			history.genesis = device(devices, NoteCodec.readVarint(buffer));
+			int visible = 0;
+			for(Run r : readRuns(buffer, devices, false)) {
+				if(history.runs.get(r.device, r.counter) != null)
+					throw new IOException("Corrupt history");
+				history.runs.add(r);
+				if(!r.isDeleted())
+					visible += r.length;
+			}
+			if(visible != history.length)
+				throw new IOException("Corrupt history");
+			return history;
+		}
+		catch(BufferUnderflowException e) {
+			throw new IOException("Truncated history");
+		}
+	}
+
+	private static void writeRuns(NoteCodec.Output out, Iterable<Run> runs, int count, Devices devices) {
+		out.writeVarint(count);
+		for(Run r : runs) {
+			boolean head = r.originDevice == 0 && r.originCounter == 0, previous = r.originDevice == r.device && r.originCounter == r.counter - 1;
+			out.writeVarint(((r.isDeleted())? DELETED : 0) | ((r.inserted)? INSERTED : 0) | ((head)? ORIGIN_HEAD : 0) |
+					((previous)? ORIGIN_PREVIOUS : 0));
+			out.writeVarint(devices.get(r.device));
+			out.writeVarlong(r.counter);
+			out.writeVarint(r.length);
+			if(r.inserted && !head && !previous) {
+				out.writeVarint(devices.get(r.originDevice));
+				out.writeVarlong(r.originCounter);
+			}
+			if(r.isDeleted()) {
+				out.writeVarint(devices.get(r.deletedDevice));
+				out.writeVarlong(r.deletedCounter);
+			}
+			if(r.text != null)
+				for(int i=0; i<r.length; i++)
+					out.writeVarint(r.text.charAt(i));
+		}
+	}
+
+	private static ArrayList<Run> readRuns(ByteBuffer buffer, long[] devices, boolean withText) throws IOException {
+		int count = NoteCodec.readVarint(buffer);
+		if(count < 0 || count > buffer.remaining())
+			throw new IOException("Invalid number of runs");
+
+		ArrayList<Run> runs = new ArrayList<Run>(count);
+		for(int i=0; i<count; i++) {
+			int flags = NoteCodec.readVarint(buffer);
+			long device = device(devices, NoteCodec.readVarint(buffer)), counter = NoteCodec.readVarlong(buffer);
+			int length = NoteCodec.readVarint(buffer);
+			if(counter <= 0 || length <= 0)
+				throw new IOException("Invalid run");
+
+			Run r;
+			if((flags & INSERTED) == 0 || (flags & ORIGIN_HEAD) != 0)
+				r = new Run(device, counter, length, 0, 0);
+			else if((flags & ORIGIN_PREVIOUS) != 0)
+				r = new Run(device, counter, length, device, counter - 1);
+			else
+				r = new Run(device, counter, length, device(devices, NoteCodec.readVarint(buffer)), NoteCodec.readVarlong(buffer));
+			r.inserted = (flags & INSERTED) != 0;
+			if((flags & DELETED) != 0) {
+				r.deletedDevice = device(devices, NoteCodec.readVarint(buffer));
+				r.deletedCounter = NoteCodec.readVarlong(buffer);
+				if(r.deletedCounter <= 0)
+					throw new IOException("Invalid run");
+			}
+			else if(withText && r.inserted) {
+				if(length > buffer.remaining())
+					throw new IOException("Invalid run");
+				char[] text = new char[length];
+				for(int j=0; j<length; j++)
+					text[j] = (char) NoteCodec.readVarint(buffer);
+				r.text = new String(text);
+			}
+			runs.add(r);
+		}
+		return runs;
+	}
+
+	private static long[] readDevices(ByteBuffer buffer) throws IOException {
+		int count = NoteCodec.readVarint(buffer);
+		if(count < 0 || count * 8L > buffer.remaining())
+			throw new IOException("Invalid number of devices");
+		long[] devices = new long[count];
+		for(int i=0; i<count; i++)
+			devices[i] = buffer.getLong();
+		return devices;
+	}
+
+	private static VersionVector readVersion(ByteBuffer buffer, long[] devices) throws IOException {
+		VersionVector version = new VersionVector();
+		int count = NoteCodec.readVarint(buffer);
+		for(int i=0; i<count; i++)
+			version.advance(device(devices, NoteCodec.readVarint(buffer)), NoteCodec.readVarlong(buffer));
+		return version;
+	}
+
+	private static long device(long[] devices, int index) throws IOException {
+		if(index < 0 || index >= devices.length)
+			throw new IOException("Invalid device");
+		return devices[index];
+	}
+
+	/*
+	 * Loads the id of this computer from the device file in the note folder, creating it if it does not exist.
+	 */
+	private static long loadDevice() {
+		File file = new File(JStickies.NOTE_FOLDER, "device");
+		try {
+			if(file.exists()) {
+				byte[] bytes = Files.readAllBytes(file.toPath());
+				if(bytes.length == 8)
+					return ByteBuffer.wrap(bytes).getLong();
+			}
+		}
+		catch(IOException e) {
+			logger.error("Unable to read the device id : {}", e.getMessage());
+		}
+
+		long device = 0;
+		while(device == 0)
+			device = new SecureRandom().nextLong();
+		try {
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), ByteBuffer.allocate(8).putLong(device).array());
+			logger.info("Created device id {}", Long.toHexString(device));
+		}
+		catch(IOException e) {
+			logger.error("Unable to save the device id : {}", e.getMessage());
+		}
+		return device;
+	}
+
+	/*
+	 * The operations of a history that a VersionVector does not cover, i.e. a set of runs and a stamped name, color, location and size. Runs
+	 * that are not inserted only delete characters that the VersionVector covers.
+	 */
+	public static class Delta {
+
+		private VersionVector version;
+		private ArrayList<Run> runs;
+		private NoteData meta;
+		private long metaDevice, metaCounter;
+
+		private Delta(VersionVector version) {
+			this.version = version;
+			runs = new ArrayList<Run>();
+		}
+
+		/*
+		 * Checks whether the Delta contains no operations.
+		 */
+		public boolean isEmpty() {
+			return runs.isEmpty() && meta == null;
+		}
+
+		/*
+		 * Returns the VersionVector of the history after merging the Delta.
+		 */
+		public VersionVector getVersion() {
+			return version.copy();
+		}
+
+		/*
+		 * Returns the number of runs in the Delta.
+		 */
+		public int getRunCount() {
+			return runs.size();
+		}
+
+		/*
+		 * Encodes the Delta.
+		 */
+		public byte[] encode() {
+			Devices devices = new Devices(version, runs);
+			devices.add(metaDevice);
+
+			NoteCodec.Output out = new NoteCodec.Output(64 + runs.size() * 16);
+			out.writeByte(MAGIC_0);
+			out.writeByte(MAGIC_1);
+			out.writeVarint(VERSION);
+			devices.write(out);
+			devices.write(out, version);
+			if(meta == null)
+				out.writeVarint(0);
+			else {
+				out.writeVarint(1);
+				out.writeVarint(devices.get(metaDevice));
+				out.writeVarlong(metaCounter);
+				byte[] fields = NoteCodec.encode(meta);
+				out.writeVarint(fields.length);
+				out.writeBytes(fields);
+			}
+			writeRuns(out, runs, runs.size(), devices);
+			return out.toByteArray();
+		}
+
+		/*
+		 * Decodes a Delta.
+		 */
+		public static Delta decode(byte[] bytes) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			try {
+				if(buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1)
+					throw new IOException("Not a delta");
+				int v = NoteCodec.readVarint(buffer);
+				if(v > VERSION)
+					throw new IOException("Unsupported delta version " + v);
+
+				long[] devices = readDevices(buffer);
+				Delta delta = new Delta(readVersion(buffer, devices));
+				if(NoteCodec.readVarint(buffer) != 0) {
+					delta.metaDevice = device(devices, NoteCodec.readVarint(buffer));
+					delta.metaCounter = NoteCodec.readVarlong(buffer);
+					int length = NoteCodec.readVarint(buffer);
+					if(length < 0 || length > buffer.remaining())
+						throw new IOException("Invalid delta");
+					ByteBuffer fields = buffer.slice();
+					fields.limit(length);
+					buffer.position(buffer.position() + length);
+					delta.meta = NoteCodec.decode(fields);
+				}
+
+				delta.runs = readRuns(buffer, devices, true);
+				return delta;
+			}
+			catch(BufferUnderflowException e) {
+				throw new IOException("Truncated delta");
+			}
+		}
+	}
+
+	/*
+	 * A run of characters with consecutive ids, inserted one after another. In a Delta, a run may also delete characters without inserting
+	 * them.
+	 */
+	private static class Run {
+
+		long device, counter; //Id of the first character
+		int length;
+		long originDevice, originCounter; //Id of the character the first character was inserted after, or 0 at the beginning of the text
+		long deletedDevice, deletedCounter; //Stamp of the deletion, or 0 if the characters are visible
+		boolean inserted; //False for runs of a Delta that only delete characters
+		String text; //Text of a visible run of a Delta
+		Block block; //Block of the history that contains the run
+
+		Run(long device, long counter, int length, long originDevice, long originCounter) {
+			this.device = device;
+			this.counter = counter;
+			this.length = length;
+			this.originDevice = originDevice;
+			this.originCounter = originCounter;
+			inserted = true;
+		}
+
+		boolean isDeleted() {
+			return deletedCounter != 0;
+		}
+
+		boolean contains(long device, long counter) {
+			return this.device == device && counter >= this.counter && counter < this.counter + length;
+		}
+
+		Run copy() {
+			Run copy = new Run(device, counter, length, originDevice, originCounter);
+			copy.deletedDevice = deletedDevice;
+			copy.deletedCounter = deletedCounter;
+			return copy;
+		}
+	}
+
+	/*
+	 * The runs of a history, in the order of the text. The runs are kept in blocks of at most MAX_BLOCK runs, along with the number of visible
+	 * characters of every block, and every run is indexed by the id of its first character. A run is therefore found by its offset or by its
+	 * id by going through the blocks instead of the runs. Runs are mostly accessed one after another, so the block last accessed is kept. The
+	 * length of a run and its deletion must be changed through the RunList, which keeps the number of visible characters of its block.
+	 */
+	private static class RunList implements Iterable<Run> {
+
+		private static final int MAX_BLOCK = 128;
+
+		private ArrayList<Block> blocks = new ArrayList<Block>();
+		private HashMap<Long, TreeMap<Long, Run>> ids = new HashMap<Long, TreeMap<Long, Run>>(); //Runs of every device, by counter
+		private int size;
+		private int block, start; //Index of the block last accessed, and index of its first run
+
+		int size() {
+			return size;
+		}
+
+		Run get(int index) {
+			Block b = seek(index);
+			return b.runs.get(index - start);
+		}
+
+		/*
+		 * Returns the run containing the character with the id (device, counter), or null if there is none.
+		 */
+		Run get(long device, long counter) {
+			TreeMap<Long, Run> runs = ids.get(device);
+			Map.Entry<Long, Run> e = (runs == null)? null : runs.floorEntry(counter);
+			return (e != null && e.getValue().contains(device, counter))? e.getValue() : null;
+		}
+
+		/*
+		 * Returns the first run of device that starts after the character with the id (device, counter), or null if there is none.
+		 */
+		Run following(long device, long counter) {
+			TreeMap<Long, Run> runs = ids.get(device);
+			Map.Entry<Long, Run> e = (runs == null)? null : runs.higherEntry(counter);
+			return (e == null)? null : e.getValue();
+		}
+
+		/*
+		 * Returns the index of the run containing the character with the id (device, counter), or -1 if there is none.
+		 */
+		int find(long device, long counter) {
+			Run r = get(device, counter);
+			if(r == null)
+				return -1;
+
+			int first = 0;
+			for(int j=0; j<blocks.size(); j++) {
+				Block b = blocks.get(j);
+				if(b == r.block) {
+					block = j;
+					start = first;
+					for(int i=0; ; i++)
+						if(b.runs.get(i) == r)
+							return first + i;
+				}
+				first += b.runs.size();
+			}
+			throw new IllegalStateException("Run is not in its block");
+		}
+
+		/*
+		 * Returns the index of the run containing the visible character at offset, and the offset of the character within the run.
+		 */
+		int[] locate(int offset) {
+			int position = 0, first = 0;
+			for(int j=0; j<blocks.size(); j++) {
+				Block b = blocks.get(j);
+				if(offset < position + b.visible) {
+					block = j;
+					start = first;
+					for(int i=0; ; i++) {
+						Run r = b.runs.get(i);
+						if(r.isDeleted())
+							continue;
+						if(offset < position + r.length)
+							return new int[] {first + i, offset - position};
+						position += r.length;
+					}
+				}
+				position += b.visible;
+				first += b.runs.size();
+			}
+			throw new IndexOutOfBoundsException("Offset " + offset + " is beyond the end of the text");
+		}
+
+		/*
+		 * Returns the offset in the text of the run at index.
+		 */
+		int offsetOf(int index) {
+			Block b = seek(index);
+			int position = 0;
+			for(int j=0; j<block; j++)
+				position += blocks.get(j).visible;
+			for(int i=0; i<index-start; i++)
+				if(!b.runs.get(i).isDeleted())
+					position += b.runs.get(i).length;
+			return position;
+		}
+
+		void add(Run r) {
+			add(size, r);
+		}
+
+		/*
+		 * Inserts r at index. A block that grows beyond MAX_BLOCK runs is split in two.
+		 */
+		void add(int index, Run r) {
+			Block b;
+			if(size == 0) {
+				b = new Block();
+				blocks.add(b);
+				block = 0;
+				start = 0;
+			}
+			else
+				b = seek((index == size)? index - 1 : index);
+			b.runs.add(index - start, r);
+			r.block = b;
+			if(!r.isDeleted())
+				b.visible += r.length;
+			size++;
+
+			TreeMap<Long, Run> runs = ids.get(r.device);
+			if(runs == null) {
+				runs = new TreeMap<Long, Run>();
+				ids.put(r.device, runs);
+			}
+			runs.put(r.counter, r);
+
+			if(b.runs.size() > MAX_BLOCK) {
+				Block tail = new Block();
+				List<Run> moved = b.runs.subList(b.runs.size() / 2, b.runs.size());
+				tail.runs.addAll(moved);
+				moved.clear();
+				for(Run t : tail.runs) {
+					t.block = tail;
+					if(!t.isDeleted()) {
+						tail.visible += t.length;
+						b.visible -= t.length;
+					}
+				}
+				blocks.add(block + 1, tail);
+			}
+		}
+
+		/*
+		 * Removes the run at index. A block that becomes empty is removed.
+		 */
+		Run remove(int index) {
+			Block b = seek(index);
+			Run r = b.runs.remove(index - start);
+			if(!r.isDeleted())
+				b.visible -= r.length;
+			size--;
+
+			TreeMap<Long, Run> runs = ids.get(r.device);
+			runs.remove(r.counter);
+			if(runs.isEmpty())
+				ids.remove(r.device);
+
+			if(b.runs.isEmpty()) {
+				blocks.remove(block);
+				block = 0;
+				start = 0;
+			}
+			return r;
+		}
+
+		void setLength(Run r, int length) {
+			if(!r.isDeleted())
+				r.block.visible += length - r.length;
+			r.length = length;
+		}
+
+		/*
+		 * Stamps the run r as deleted by the operation with the id (device, counter).
+		 */
+		void delete(Run r, long device, long counter) {
+			if(!r.isDeleted())
+				r.block.visible -= r.length;
+			r.deletedDevice = device;
+			r.deletedCounter = counter;
+		}
+
+		/*
+		 * Moves to the block containing the run at index, starting from the block last accessed.
+		 */
+		private Block seek(int index) {
+			if(index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+			while(index < start)
+				start -= blocks.get(--block).runs.size();
+			while(index >= start + blocks.get(block).runs.size())
+				start += blocks.get(block++).runs.size();
+			return blocks.get(block);
+		}
+
+		public Iterator<Run> iterator() {
+			return new Iterator<Run>() {
+
+				private int j, i; //Index of the block, and of the next run in the block
+
+				public boolean hasNext() {
+					return j < blocks.size();
+				}
+
+				public Run next() {
+					if(!hasNext())
+						throw new NoSuchElementException();
+					List<Run> runs = blocks.get(j).runs;
+					Run r = runs.get(i++);
+					if(i == runs.size()) {
+						j++;
+						i = 0;
+					}
+					return r;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/*
+	 * A block of consecutive runs of a RunList.
+	 */
+	private static class Block {
+
+		ArrayList<Run> runs = new ArrayList<Run>();
+		int visible; //Number of visible characters
+	}
+
+	/*
+	 * The devices referred to by encoded runs, which are written once and then referred to by index.
+	 */
+	private static class Devices {
+
+		private ArrayList<Long> devices = new ArrayList<Long>();
+		private HashMap<Long, Integer> indexes = new HashMap<Long, Integer>();
+
+		Devices(VersionVector version, Iterable<Run> runs) {
+			for(long device : version.getDevices())
+				add(device);
+			for(Run r : runs) {
+				add(r.device);
+				add(r.originDevice);
+				add(r.deletedDevice);
+			}
+		}
+
+		void add(long device) {
+			if(!indexes.containsKey(device)) {
+				indexes.put(device, devices.size());
+				devices.add(device);
+			}
+		}
+
+		int get(long device) {
+			return indexes.get(device);
+		}
+
+		void write(NoteCodec.Output out) {
+			out.writeVarint(devices.size());
+			for(long device : devices)
+				out.writeLong(device);
+		}
+
+		void write(NoteCodec.Output out, VersionVector version) {
+			out.writeVarint(version.getDevices().size());
+			for(long device : version.getDevices()) {
+				out.writeVarint(get(device));
+				out.writeVarlong(version.get(device));
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * This class represents a version vector, i.e. the largest counter seen from every device. It summarizes which operations of a TextHistory
+ * are known : an operation with the id (device, counter) is covered if the counter is not larger than the one kept for the device.
+ */
+
+package com.jstickies.data;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class VersionVector implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private HashMap<Long, Long> counters;
+
+	/*
+	 * Creates an empty VersionVector, which covers nothing.
+	 */
+	public VersionVector() {
+		counters = new HashMap<Long, Long>();
+	}
+
+	/*
+	 * Returns the largest counter seen from device, or 0 if none was seen.
+	 */
+	public long get(long device) {
+		Long counter = counters.get(device);
+		return (counter == null)? 0 : counter;
+	}
+
+	/*
+	 * Checks whether the operation with the id (device, counter) is covered by this VersionVector.
+	 */
+	public boolean covers(long device, long counter) {
+		return counter <= get(device);
+	}
+
+	/*
+	 * Records that the operations of device up to counter have been seen.
+	 */
+	public void advance(long device, long counter) {
+		if(counter > get(device))
+			counters.put(device, counter);
+	}
+
+	/*
+	 * Records all the operations seen by other.
+	 */
+	public void merge(VersionVector other) {
+		for(Map.Entry<Long, Long> e : other.counters.entrySet())
+			advance(e.getKey(), e.getValue());
+	}
+
+	/*
+	 * Checks whether every operation covered by other is covered by this VersionVector.
+	 */
+	public boolean dominates(VersionVector other) {
+		for(Map.Entry<Long, Long> e : other.counters.entrySet())
+			if(!covers(e.getKey(), e.getValue()))
+				return false;
+		return true;
+	}
+
+	/*
+	 * Returns the largest counter seen from any device.
+	 */
+	public long max() {
+		long max = 0;
+		for(long counter : counters.values())
+			max = Math.max(max, counter);
+		return max;
+	}
+
+	/*
+	 * Returns the devices that operations have been seen from.
+	 */
+	public Set<Long> getDevices() {
+		return counters.keySet();
+	}
+
+	public VersionVector copy() {
+		VersionVector copy = new VersionVector();
+		copy.counters.putAll(counters);
+		return copy;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof VersionVector && counters.equals(((VersionVector) o).counters);
+	}
+
+	@Override
+	public int hashCode() {
+		return counters.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("[");
+		for(Map.Entry<Long, Long> e : counters.entrySet()) {
+			if(s.length() > 1)
+				s.append(", ");
+			s.append(Long.toHexString(e.getKey())).append(':').append(e.getValue());
+		}
+		return s.append(']').toString();
+	}
+}
@@ -0,0 +1,540 @@
+/*
+ * This class is an inverted index over the names and text of all the notes, used for searching the notes. It is updated incrementally
+ * whenever a note is saved (NoteData#saveData()) or deleted (NoteData#deleteData()), and persisted to the index file next to the note folder
+ * when the application exits.
+ *
+ * Every note is a document and every lower case word of the note is a term. For every term, the index keeps a postings list of the documents
+ * containing it along with a weight, which is the number of occurrences of the term in the text plus NAME_WEIGHT for every occurrence in
+ * the name. Search results are ranked using TF-IDF, and all the words of the query must match. Words are matched in the order of their
+ * number of postings, so that the rarest word limits the documents that have to be scored for the other words. The last word of the query is matched as a
+ * prefix, using the sorted term dictionary, so that results can be shown while the query is being typed.
+ *
+ * A note is tokenized without holding the lock of the index, so saving a note does not block searches. Only the terms whose weight changed
+ * since the note was last indexed are updated, and every document keeps the position of its postings, so a posting is removed in constant
+ * time.
+ *
+ * The saved index is reconciled with the notes that are loaded at startup (see SearchIndex#reconcile(NoteData[])), so notes that changed
+ * while the index was not saved (e.g. after a crash) are indexed again.
+ */
+
+package com.jstickies.data.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.NoteData;
+
+public class SearchIndex {
+
+	private static final int MAGIC = 0x4A534958, VERSION = 1;
+	private static final int NAME_WEIGHT = 5, MAX_TERM_LENGTH = 64, MAX_PREFIX_TERMS = 2000, SNIPPET_LENGTH = 100;
+	private static final Logger logger = LoggerFactory.getLogger(SearchIndex.class);
+	private static final float[] TF = new float[256];
+
+	static {
+		for(int i=1; i<TF.length; i++)
+			TF[i] = 1 + (float) Math.log(i);
+	}
+
+	private File file;
+	private HashMap<String, Integer> ids; //Document id of every indexed note
+	private ArrayList<Document> documents; //Indexed notes by document id. Ids of removed notes are null until they are reused
+	private ArrayList<Integer> freeIds;
+	private TreeMap<String, Postings> terms;
+	private long updates; //Number of updates started, used to drop an update that was overtaken by a later one of the same note
+	private boolean changed;
+
+	/*
+	 * Creates an empty index that is saved to file.
+	 */
+	public SearchIndex(File file) {
+		this.file = file;
+		ids = new HashMap<String, Integer>();
+		documents = new ArrayList<Document>();
+		freeIds = new ArrayList<Integer>();
+		terms = new TreeMap<String, Postings>();
+		changed = false;
+	}
+
+	/*
+	 * Indexes the note, replacing any previous version of it. Nothing is done if the name and the text of the note have not changed.
+	 */
+	public void update(NoteData data) {
+		String name = data.noteName, text = data.noteText;
+		int hash = hash(name, text);
+		long stamp;
+		synchronized(this) {
+			Integer id = ids.get(data.fileName);
+			if(id != null && documents.get(id).hash == hash)
+				return;
+			stamp = ++updates;
+		}
+
+		HashMap<String, int[]> weights = new HashMap<String, int[]>();
+		tokenize(name, NAME_WEIGHT, weights);
+		tokenize(text, 1, weights);
+
+		Document d = new Document(data.fileName, name, getSnippet(text), hash, weights.size());
+		d.stamp = stamp;
+		int i = 0;
+		for(Map.Entry<String, int[]> e : weights.entrySet()) {
+			d.terms[i] = e.getKey();
+			d.weights[i++] = e.getValue()[0];
+		}
+
+		synchronized(this) {
+			Integer id = ids.get(data.fileName);
+			if(id == null) {
+				id = (freeIds.isEmpty())? documents.size() : freeIds.remove(freeIds.size() - 1);
+				ids.put(data.fileName, id);
+				if(id == documents.size())
+					documents.add(null);
+				addDocument(id, d);
+			}
+			else if(documents.get(id).stamp < stamp)
+				replaceDocument(id, d);
+			else
+				return; //A later version of the note was indexed meanwhile
+			changed = true;
+		}
+	}
+
+	/*
+	 * Removes the note with the file name fileName from the index.
+	 */
+	public synchronized void remove(String fileName) {
+		Integer id = ids.remove(fileName);
+		if(id == null)
+			return;
+
+		removeDocument(id);
+		documents.set(id, null);
+		freeIds.add(id);
+		changed = true;
+	}
+
+	/*
+	 * Returns the notes matching all the words of query, ranked by relevance. At most limit results are returned.
+	 */
+	public synchronized Result[] search(String query, int limit) {
+		ArrayList<String> words = new ArrayList<String>();
+		for(String word : query.toLowerCase().split("[^\\p{L}\\p{N}]+"))
+			if(word.length() > 0)
+				words.add(word);
+		if(words.isEmpty() || ids.isEmpty())
+			return new Result[0];
+
+		//Find the postings matching every word, and process the words with the fewest postings first
+		ArrayList<Match> matches = new ArrayList<Match>(words.size());
+		for(int w=0; w<words.size(); w++) {
+			String word = words.get(w);
+			Match m = new Match();
+			if(w == words.size() - 1) {
+				for(Map.Entry<String, Postings> e : terms.subMap(word, true, word + Character.MAX_VALUE, true).entrySet()) {
+					if(m.postings.size() == MAX_PREFIX_TERMS)
+						break;
+					m.add(e.getValue(), e.getKey().length() == word.length());
+				}
+			}
+			else if(terms.containsKey(word))
+				m.add(terms.get(word), true);
+
+			if(m.size == 0)
+				return new Result[0];
+			matches.add(m);
+		}
+		Collections.sort(matches);
+
+		int count = documents.size();
+		float[] scores = new float[count];
+		int[] matched = new int[count]; //Number of words matched by every document
+		double documentCount = ids.size();
+
+		for(int w=0; w<matches.size(); w++) {
+			Match m = matches.get(w);
+			int found = 0;
+			for(int t=0; t<m.postings.size(); t++) {
+				Postings p = m.postings.get(t);
+				float idf = (float) Math.log(1 + documentCount / p.size);
+				if(!m.exact.get(t))
+					idf *= 0.8f; //Prefer exact matches over prefix matches
+				for(int i=0; i<p.size; i++) {
+					int doc = p.documents[i];
+					if(matched[doc] == w) { //First term matching this word in the document
+						matched[doc] = w + 1;
+						found++;
+					}
+					else if(matched[doc] != w + 1) //A previous word did not match
+						continue;
+					scores[doc] += termFrequency(p.weights[i]) * idf;
+				}
+			}
+			if(found == 0)
+				return new Result[0];
+		}
+
+		PriorityQueue<Result> top = new PriorityQueue<Result>();
+		for(int doc=0; doc<count; doc++) {
+			if(matched[doc] != words.size())
+				continue;
+			if(top.size() < limit)
+				top.add(new Result(documents.get(doc), scores[doc]));
+			else if(scores[doc] > top.peek().score) {
+				top.poll();
+				top.add(new Result(documents.get(doc), scores[doc]));
+			}
+		}
+
+		Result[] results = top.toArray(new Result[top.size()]);
+		Arrays.sort(results);
+		for(int i=0, j=results.length-1; i<j; i++, j--) { //Highest score first
+			Result r = results[i];
+			results[i] = results[j];
+			results[j] = r;
+		}
+		return results;
+	}
+
+	/*
+	 * Brings the index up to date with all the stored notes, as loaded at startup. Notes that have changed are indexed again, and notes that
+	 * no longer exist are removed. The index is saved if it was changed.
+	 */
+	public void reconcile(NoteData[] notes) {
+		long start = System.nanoTime();
+		HashSet<String> fileNames = new HashSet<String>();
+		synchronized(this) {
+			for(NoteData d : notes) {
+				fileNames.add(d.fileName);
+				update(d);
+			}
+			for(String fileName : new ArrayList<String>(ids.keySet()))
+				if(!fileNames.contains(fileName))
+					remove(fileName);
+		}
+
+		logger.info("Search index reconciled with {} note(s) in {}ms", notes.length, (System.nanoTime() - start) / 1000000);
+		save();
+	}
+
+	/*
+	 * Saves the index to its file, if it has changed since it was last saved or loaded.
+	 */
+	public void save() {
+		byte[] bytes;
+		synchronized(this) {
+			if(!changed)
+				return;
+
+			try {
+				bytes = encode();
+			}
+			catch(IOException e) {
+				logger.error("Error while encoding the search index : {}", e.getMessage());
+				return;
+			}
+			changed = false;
+		}
+		JStickies.WRITER.write(file, bytes);
+	}
+
+	/*
+	 * Loads the index from file. Returns an empty index if file does not exist or cannot be read.
+	 */
+	public static SearchIndex load(File file) {
+		SearchIndex index = new SearchIndex(file);
+		if(!file.exists())
+			return index;
+
+		long start = System.nanoTime();
+		try {
+			index.decode(Files.readAllBytes(file.toPath()));
+			logger.info("Loaded search index of {} note(s) in {}ms", index.ids.size(), (System.nanoTime() - start) / 1000000);
+			return index;
+		}
+		catch(IOException e) {
+			logger.error("Error while loading the search index, it will be rebuilt : {}", e.getMessage());
+			return new SearchIndex(file);
+		}
+	}
+
+	private byte[] encode() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		HashMap<String, Integer> termIds = new HashMap<String, Integer>();
+		out.writeInt(terms.size());
+		for(String term : terms.keySet()) {
+			termIds.put(term, termIds.size());
+			out.writeUTF(term);
+		}
+
+		out.writeInt(ids.size());
+		for(Document d : documents) {
+			if(d == null)
+				continue;
+			out.writeUTF(d.fileName);
+			out.writeUTF(d.name);
+			out.writeUTF(d.snippet);
+			out.writeInt(d.hash);
+			out.writeInt(d.terms.length);
+			for(int i=0; i<d.terms.length; i++) {
+				out.writeInt(termIds.get(d.terms[i]));
+				out.writeInt(d.weights[i]);
+			}
+		}
+
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private void decode(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if(in.readInt() != MAGIC)
+			throw new IOException("Not a search index");
+		if(in.readInt() != VERSION)
+			throw new IOException("Unsupported search index version");
+
+		String[] termList = new String[in.readInt()];
+		for(int i=0; i<termList.length; i++)
+			termList[i] = in.readUTF();
+
+		int count = in.readInt();
+		for(int id=0; id<count; id++) {
+			String fileName = in.readUTF(), name = in.readUTF(), snippet = in.readUTF();
+			int hash = in.readInt();
+			Document d = new Document(fileName, name, snippet, hash, in.readInt());
+			for(int i=0; i<d.terms.length; i++) {
+				d.terms[i] = termList[in.readInt()];
+				d.weights[i] = in.readInt();
+			}
+			ids.put(fileName, id);
+			documents.add(null);
+			addDocument(id, d);
+		}
+	}
+
+	private void addDocument(int id, Document d) {
+		documents.set(id, d);
+		for(int i=0; i<d.terms.length; i++)
+			addPosting(id, d, i);
+	}
+
+	private void removeDocument(int id) {
+		Document d = documents.get(id);
+		for(int i=0; i<d.terms.length; i++)
+			removePosting(d.terms[i], d.positions[i]);
+	}
+
+	/*
+	 * Replaces the indexed document id by d. Only the postings of the terms that were added or removed, or whose weight changed, are updated.
+	 */
+	private void replaceDocument(int id, Document d) {
+		Document old = documents.get(id);
+		documents.set(id, d);
+
+		HashMap<String, Integer> previous = new HashMap<String, Integer>(old.terms.length * 2);
+		for(int i=0; i<old.terms.length; i++)
+			previous.put(old.terms[i], i);
+
+		for(int i=0; i<d.terms.length; i++) {
+			Integer j = previous.remove(d.terms[i]);
+			if(j == null) {
+				addPosting(id, d, i);
+				continue;
+			}
+			int position = old.positions[j];
+			Postings p = terms.get(d.terms[i]);
+			p.weights[position] = d.weights[i];
+			p.slots[position] = i;
+			d.positions[i] = position;
+		}
+
+		for(Map.Entry<String, Integer> e : previous.entrySet())
+			removePosting(e.getKey(), old.positions[e.getValue()]);
+	}
+
+	/*
+	 * Adds the posting of the term in slot of the document d, whose id is id.
+	 */
+	private void addPosting(int id, Document d, int slot) {
+		Postings p = terms.get(d.terms[slot]);
+		if(p == null) {
+			p = new Postings();
+			terms.put(d.terms[slot], p);
+		}
+		d.positions[slot] = p.add(id, d.weights[slot], slot);
+	}
+
+	/*
+	 * Removes the posting at position from the postings of term. The document whose posting is moved into its place is updated.
+	 */
+	private void removePosting(String term, int position) {
+		Postings p = terms.get(term);
+		if(p.remove(position))
+			documents.get(p.documents[position]).positions[p.slots[position]] = position;
+		if(p.size == 0)
+			terms.remove(term);
+	}
+
+	/*
+	 * Adds weight to the weight of every word of text.
+	 */
+	private static void tokenize(String text, int weight, HashMap<String, int[]> weights) {
+		if(text == null)
+			return;
+
+		int start = -1;
+		for(int i=0; i<=text.length(); i++) {
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if(letter && start < 0)
+				start = i;
+			else if(!letter && start >= 0) {
+				if(i - start <= MAX_TERM_LENGTH) {
+					String term = text.substring(start, i).toLowerCase();
+					int[] w = weights.get(term);
+					if(w == null)
+						weights.put(term, new int[] {weight});
+					else
+						w[0] += weight;
+				}
+				start = -1;
+			}
+		}
+	}
+
+	private static String getSnippet(String text) {
+		if(text == null)
+			return "";
+		String snippet = text.substring(0, Math.min(text.length(), SNIPPET_LENGTH)).trim();
+		return snippet.replaceAll("\\s+", " ");
+	}
+
+	/*
+	 * Returns the term frequency component of the score for a term with the weight weight.
+	 */
+	private static float termFrequency(int weight) {
+		return (weight < TF.length)? TF[weight] : 1 + (float) Math.log(weight);
+	}
+
+	private static int hash(String name, String text) {
+		return 31 * ((name == null)? 0 : name.hashCode()) + ((text == null)? 0 : text.hashCode());
+	}
+
+	/*
+	 * A search result.
+	 */
+	public static class Result implements Comparable<Result> {
+		public final String fileName, name, snippet;
+		public final float score;
+
+		Result(Document d, float score) {
+			fileName = d.fileName;
+			name = d.name;
+			snippet = d.snippet;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Result r) {
+			return Float.compare(score, r.score);
+		}
+	}
+
+	/*
+	 * The postings of the terms matching a word of a query.
+	 */
+	private static class Match implements Comparable<Match> {
+		ArrayList<Postings> postings = new ArrayList<Postings>();
+		BitSet exact = new BitSet();
+		int size;
+
+		void add(Postings p, boolean isExact) {
+			exact.set(postings.size(), isExact);
+			postings.add(p);
+			size += p.size;
+		}
+
+		@Override
+		public int compareTo(Match m) {
+			return (size < m.size)? -1 : ((size == m.size)? 0 : 1);
+		}
+	}
+
+	/*
+	 * An indexed note, along with its terms, their weights and the positions of its postings in the postings lists of the terms.
+	 */
+	private static class Document {
+		String fileName, name, snippet;
+		int hash;
+		long stamp;
+		String[] terms;
+		int[] weights, positions;
+
+		Document(String fileName, String name, String snippet, int hash, int termCount) {
+			this.fileName = fileName;
+			this.name = (name == null)? "" : name;
+			this.snippet = snippet;
+			this.hash = hash;
+			terms = new String[termCount];
+			weights = new int[termCount];
+			positions = new int[termCount];
+		}
+	}
+
+	/*
+	 * The documents containing a term, along with the weight of the term in every document and the slot of the term in the terms of the
+	 * document. Unordered, since removed documents are replaced by the last document of the list.
+	 */
+	private static class Postings {
+		int[] documents = new int[2], weights = new int[2], slots = new int[2];
+		int size;
+
+		/*
+		 * Adds a posting and returns its position.
+		 */
+		int add(int document, int weight, int slot) {
+			if(size == documents.length) {
+				documents = Arrays.copyOf(documents, size * 2);
+				weights = Arrays.copyOf(weights, size * 2);
+				slots = Arrays.copyOf(slots, size * 2);
+			}
+			documents[size] = document;
+			weights[size] = weight;
+			slots[size] = slot;
+			return size++;
+		}
+
+		/*
+		 * Removes the posting at position by moving the last posting into its place. Returns true if a posting was moved.
+		 */
+		boolean remove(int position) {
+			size--;
+			if(position == size)
+				return false;
+			documents[position] = documents[size];
+			weights[position] = weights[size];
+			slots[position] = slots[size];
+			return true;
+		}
+	}
+}
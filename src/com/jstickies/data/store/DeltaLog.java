@@ -0,0 +1,316 @@
+/*
+ * This class keeps the delta logs of large notes. Rewriting the whole record of a note that is several MB long on every save makes the cost of
+ * a save proportional to the size of the note. Instead, the record stored by the NoteStore is used as a base snapshot, and the edits made
+ * since then are appended to a log in the deltas folder. Once the log grows beyond LOG_LIMIT, the note is saved in full and a new log is
+ * started.
+ *
+ * Log format :
+ * 	- Header - Magic 'J' 'D', version (1 byte), and the length and hash code of the base text (2 ints). A log is only applied to the record
+ * 	  it was started for, so a log that does not match the stored record (e.g. after a crash during a full save) is ignored
+ * 	- Records, until the end of the log. Every record is written as a type (1 byte), a length (int), the data and a CRC32 (int)
+ * 		- EDIT - Offset, removed length and resulting text length (3 ints) and the inserted text in UTF-8
+ * 		- META - The note encoded by NoteCodec without its text
+ * 		- HISTORY - The edit history of the note after the edits (see TextHistory), which replaces the history of the stored record
+ * 		- HISTORY_DELTA - The operations of the edit history since the stored record or the previous HISTORY or HISTORY_DELTA record (see
+ * 		  TextHistory.Delta), which are merged into the history, so that a small save does not rewrite the history of the whole note
+ *
+ * The resulting text length of every edit is checked while the log is replayed, and the log is truncated at the first record that is torn
+ * or does not apply.
+ */
+
+package com.jstickies.data.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.NoteCodec;
+import com.jstickies.data.NoteData;
+import com.jstickies.data.TextEdit;
+import com.jstickies.data.TextHistory;
+import com.jstickies.data.VersionVector;
+
+class DeltaLog {
+
+	static final int MIN_TEXT_LENGTH = 64 * 1024; //Notes with shorter text are always saved in full
+	private static final int LOG_LIMIT = 1024 * 1024;
+	private static final byte MAGIC_0 = 'J', MAGIC_1 = 'D', VERSION = 1;
+	private static final byte EDIT = 1, META = 2, HISTORY = 3, HISTORY_DELTA = 4;
+	private static final int HEADER = 11;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Logger logger = LoggerFactory.getLogger(DeltaLog.class);
+
+	private File folder;
+	private ConcurrentHashMap<String, Long> logs; //Length of the valid logs, i.e. the logs that apply to the stored record of their note
+	private ConcurrentHashMap<String, VersionVector> versions; //Version of the history as of the end of the valid logs
+
+	/*
+	 * Creates a DeltaLog keeping its logs in the deltas folder inside folder.
+	 */
+	DeltaLog(File folder) {
+		this.folder = new File(folder, "deltas");
+		this.folder.mkdirs();
+		logs = new ConcurrentHashMap<String, Long>();
+		versions = new ConcurrentHashMap<String, VersionVector>();
+	}
+
+	/*
+	 * Appends the edits of data to the log of the note. Returns false if the note must be saved in full instead, i.e. if its edits are not
+	 * known, it is too small, it has no valid log or its log is full.
+	 */
+	boolean append(NoteData data) {
+		Long length = logs.get(data.fileName);
+		if(length == null || data.edits == null || data.noteText == null || data.noteText.length() < MIN_TEXT_LENGTH)
+			return false;
+
+		try {
+			VersionVector since = versions.get(data.fileName);
+			byte[] records = encode(data, since);
+			if(length + records.length > LOG_LIMIT)
+				return false;
+
+			FileOutputStream out = new FileOutputStream(getFile(data.fileName), true);
+			try {
+				out.write(records);
+				out.getChannel().force(false);
+			}
+			finally {
+				out.close();
+			}
+			logs.put(data.fileName, length + records.length);
+			if(data.history != null)
+				versions.put(data.fileName, data.history.getVersion());
+			logger.debug("Appended {} edit(s) of {} bytes to the delta log of note {}", data.edits.size(), records.length, data.fileName);
+			return true;
+		}
+		catch(IllegalArgumentException e) {
+			logger.warn("History of note {} does not match its text. Saving it in full : {}", data.fileName, e.getMessage());
+			return false;
+		}
+		catch(IOException e) {
+			logger.error("Error while appending to the delta log of note {} : {}", data.fileName, e.getMessage());
+			logs.remove(data.fileName);
+			versions.remove(data.fileName);
+			return false;
+		}
+	}
+
+	/*
+	 * Starts a new log for a note that has just been saved in full, or removes its log if the note is too small to require one. The new log is
+	 * written through the GroupCommitWriter after the record of the note, so that it can never be applied to an older record.
+	 */
+	void reset(NoteData data) throws IOException {
+		File file = getFile(data.fileName);
+		if(data.noteText == null || data.noteText.length() < MIN_TEXT_LENGTH) {
+			versions.remove(data.fileName);
+			if(logs.remove(data.fileName) != null)
+				JStickies.WRITER.delete(file);
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.put(MAGIC_0).put(MAGIC_1).put(VERSION).putInt(data.noteText.length()).putInt(data.noteText.hashCode());
+		logs.remove(data.fileName);
+		versions.remove(data.fileName);
+		try {
+			JStickies.WRITER.write(file, header.array()).get(); //Wait, since the log is appended to directly
+			if(data.history != null)
+				versions.put(data.fileName, data.history.getVersion());
+			logs.put(data.fileName, (long) HEADER);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while starting the delta log");
+		}
+		catch(ExecutionException e) {
+			throw new IOException(e.getCause().getMessage());
+		}
+	}
+
+	/*
+	 * Removes the log of a note, e.g. when the note is deleted or replaced by a synchronized copy.
+	 */
+	void discard(String fileName) {
+		logs.remove(fileName);
+		versions.remove(fileName);
+		File file = getFile(fileName);
+		if(file.exists())
+			JStickies.WRITER.delete(file);
+	}
+
+	/*
+	 * Stops appending to the log of a note whose save failed, so that its next save is a full save. The log is kept, since it still applies
+	 * to the stored record.
+	 */
+	void invalidate(String fileName) {
+		logs.remove(fileName);
+		versions.remove(fileName);
+	}
+
+	/*
+	 * Checks whether the stored record of the note has a valid log.
+	 */
+	boolean exists(String fileName) {
+		return logs.containsKey(fileName);
+	}
+
+	/*
+	 * Applies the log of the note to data, which has just been loaded from the stored record of the note.
+	 */
+	void apply(NoteData data) throws IOException {
+		File file = getFile(data.fileName);
+		if(!file.exists())
+			return;
+
+		ByteBuffer log = ByteBuffer.wrap(NoteStore.readFile(file));
+		if(log.remaining() < HEADER || log.get() != MAGIC_0 || log.get() != MAGIC_1 || log.get() != VERSION || data.noteText == null ||
+				log.getInt() != data.noteText.length() || log.getInt() != data.noteText.hashCode()) {
+			logger.info("Discarding the delta log of note {}, since it does not match the stored note", data.fileName);
+			discard(data.fileName);
+			return;
+		}
+
+		StringBuilder text = new StringBuilder(data.noteText);
+		int valid = log.position(), records = 0;
+		try {
+			CRC32 crc = new CRC32();
+			while(log.hasRemaining()) {
+				int start = log.position();
+				byte type = log.get();
+				int length = log.getInt();
+				if(length < 0 || length + 4 > log.remaining())
+					break;
+
+				crc.reset();
+				crc.update(log.array(), start, 5 + length);
+				ByteBuffer record = log.slice();
+				record.limit(length);
+				log.position(log.position() + length);
+				if(log.getInt() != (int) crc.getValue())
+					break;
+
+				if(type == EDIT) {
+					int offset = record.getInt(), removed = record.getInt(), result = record.getInt();
+					if(offset < 0 || removed < 0 || offset + removed > text.length())
+						break;
+					String inserted = new String(record.array(), record.arrayOffset() + record.position(), record.remaining(), UTF8);
+					if(text.length() - removed + inserted.length() != result) {
+						logger.warn("Edit in the delta log of note {} does not produce the expected text length", data.fileName);
+						break;
+					}
+					text.replace(offset, offset + removed, inserted);
+				}
+				else if(type == META) {
+					NoteData meta = NoteCodec.decode(record);
+					data.noteName = meta.noteName;
+					data.noteColor = meta.noteColor;
+					data.noteLocation = meta.noteLocation;
+					data.noteSize = meta.noteSize;
+				}
+				else if(type == HISTORY) {
+					try {
+						data.history = TextHistory.decode(record);
+					}
+					catch(IOException e) {
+						logger.warn("Invalid history in the delta log of note {} : {}", data.fileName, e.getMessage());
+						data.history = null;
+					}
+				}
+				else if(type == HISTORY_DELTA && data.history != null) {
+					try { //The text already has the edits, so only the history is changed
+						byte[] bytes = new byte[record.remaining()];
+						record.get(bytes);
+						data.history.merge(TextHistory.Delta.decode(bytes), data);
+					}
+					catch(IOException e) {
+						logger.warn("Invalid history delta in the delta log of note {} : {}", data.fileName, e.getMessage());
+						data.history = null;
+					}
+				}
+				valid = log.position();
+				records++;
+			}
+		}
+		catch(BufferUnderflowException e) {} //Torn record at the end of the log
+
+		if(valid < log.capacity()) {
+			logger.warn("Truncating the delta log of note {} after {} valid record(s)", data.fileName, records);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			}
+			finally {
+				raf.close();
+			}
+		}
+
+		data.noteText = text.toString();
+		if(data.history != null)
+			versions.put(data.fileName, data.history.getVersion());
+		else
+			versions.remove(data.fileName);
+		logs.put(data.fileName, (long) valid);
+		logger.debug("Applied {} record(s) from the delta log of note {}", records, data.fileName);
+	}
+
+	/*
+	 * Encodes a META record, the EDIT records and the operations of the history of data that since does not cover, or the whole history if
+	 * since is null.
+	 */
+	private static byte[] encode(NoteData data, VersionVector since) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+
+		NoteData meta = data.copy();
+		meta.noteText = null;
+		writeRecord(out, META, NoteCodec.encode(meta));
+
+		int length = data.noteText.length();
+		for(TextEdit e : data.edits)
+			length -= e.inserted.length() - e.removed; //Length of the text before the edits
+		for(TextEdit e : data.edits) {
+			length += e.inserted.length() - e.removed;
+			byte[] inserted = e.inserted.getBytes(UTF8);
+			ByteBuffer record = ByteBuffer.allocate(12 + inserted.length);
+			record.putInt(e.offset).putInt(e.removed).putInt(length).put(inserted);
+			writeRecord(out, EDIT, record.array());
+		}
+		if(data.history != null && since != null)
+			writeRecord(out, HISTORY_DELTA, data.history.getDelta(since, data).encode());
+		else if(data.history != null)
+			writeRecord(out, HISTORY, data.history.encode());
+
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, byte[] record) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(5);
+		header.put(type).putInt(record.length);
+
+		CRC32 crc = new CRC32();
+		crc.update(header.array());
+		crc.update(record);
+
+		out.write(header.array());
+		out.write(record);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private File getFile(String fileName) {
+		return new File(folder, fileName + ".log");
+	}
+}
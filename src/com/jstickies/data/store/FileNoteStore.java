@@ -0,0 +1,189 @@
+/*
+ * This class represents the default storage engine. Every note is stored as a separate .note file in the note folder, with the file name of
+ * the note as the name of the file. The files are written through the GroupCommitWriter.
+ *
+ * The note folder can be watched for files that are changed by other programs (see NoteFolderWatcher). To tell those changes apart from its
+ * own writes, the store keeps the hash of the record it last wrote or read for every file.
+ */
+
+package com.jstickies.data.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.NoteCompression;
+
+public class FileNoteStore extends NoteStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileNoteStore.class);
+
+	private ConcurrentHashMap<String, Integer> hashes; //Hash of the record last written or read for every file
+	private NoteFolderWatcher watcher;
+
+	public FileNoteStore(File folder) {
+		super(folder);
+		hashes = new ConcurrentHashMap<String, Integer>();
+	}
+
+	/*
+	 * Returns the pending contents of the note file if it is still waiting to be written, else reads the note file.
+	 */
+	@Override
+	protected byte[] readRecord(String fileName) throws IOException {
+		File file = getFile(fileName);
+		byte[] record = JStickies.WRITER.getPending(file);
+		if(record == null && file.exists() && !JStickies.WRITER.isPendingDelete(file))
+			record = readFile(file);
+		if(record != null)
+			hashes.put(fileName, Arrays.hashCode(record));
+		return record;
+	}
+
+	/*
+	 * Queues the note file to be written by the GroupCommitWriter.
+	 */
+	@Override
+	protected void writeRecord(String fileName, byte[] record) throws IOException {
+		hashes.put(fileName, Arrays.hashCode(record));
+		JStickies.WRITER.write(getFile(fileName), record);
+	}
+
+	@Override
+	protected void deleteRecord(String fileName) throws IOException {
+		hashes.remove(fileName);
+		JStickies.WRITER.delete(getFile(fileName));
+	}
+
+	/*
+	 * Starts watching the note folder for files changed by other programs.
+	 */
+	@Override
+	public synchronized void watch() {
+		if(watcher != null)
+			return;
+		try {
+			watcher = new NoteFolderWatcher(this, folder);
+		}
+		catch(IOException e) {
+			logger.error("Unable to watch the note folder {} : {}", folder, e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if(watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+	}
+
+	/*
+	 * Checks whether the note file fileName was changed or deleted by another program, i.e. whether it no longer holds the record that was last
+	 * written or read. Files with a pending write or delete are skipped, since they are about to be replaced anyway.
+	 */
+	boolean isChanged(String fileName) {
+		File file = getFile(fileName);
+		if(JStickies.WRITER.getPending(file) != null || JStickies.WRITER.isPendingDelete(file))
+			return false;
+		if(!file.exists())
+			return hashes.containsKey(fileName);
+
+		try {
+			return !Integer.valueOf(Arrays.hashCode(readFile(file))).equals(hashes.get(fileName));
+		}
+		catch(IOException e) {
+			logger.warn("Unable to read note file {} : {}", fileName, e.getMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * Returns the names of the files whose records are known to the store, including files that have since been deleted by other programs.
+	 */
+	List<String> getKnownFileNames() {
+		return new ArrayList<String>(hashes.keySet());
+	}
+
+	/*
+	 * Returns the names of all the .note files in the note folder.
+	 */
+	@Override
+	public String[] getFileNames() {
+		String[] fileNames = folder.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".note");
+			}
+		});
+
+		if(fileNames == null) {
+			logger.error("Unable to list the note folder {}", folder);
+			return new String[0];
+		}
+		return fileNames;
+	}
+
+	@Override
+	public boolean contains(String fileName) {
+		File file = getFile(fileName);
+		return JStickies.WRITER.getPending(file) != null || (file.exists() && !JStickies.WRITER.isPendingDelete(file));
+	}
+
+	/*
+	 * The note file can be uploaded as it is, once any pending writes have completed, unless edits of the note are kept in its delta log or
+	 * it was written before compression was enabled.
+	 */
+	@Override
+	public File exportNote(String fileName) throws IOException {
+		if(hasDeltas(fileName))
+			return super.exportNote(fileName);
+
+		JStickies.WRITER.flush();
+		File file = getFile(fileName);
+		if(!file.exists())
+			throw new IOException("No such note : " + fileName);
+		if(NoteCompression.isEnabled() && !isCompressed(file))
+			return super.exportNote(fileName);
+		return file;
+	}
+
+	/*
+	 * Nothing to release if the note file itself was exported. Only the temporary files created by NoteStore#exportNote(String) are deleted.
+	 */
+	@Override
+	public void releaseExport(File file) {
+		if(!file.getName().endsWith(".note"))
+			super.releaseExport(file);
+	}
+
+	/*
+	 * Checks whether the note file starts with the magic of NoteCompression.
+	 */
+	private static boolean isCompressed(File file) throws IOException {
+		byte[] magic = new byte[2];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.read(magic) == 2 && NoteCompression.isCompressed(ByteBuffer.wrap(magic));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Returns the file in which the note fileName is stored.
+	 */
+	private File getFile(String fileName) {
+		return new File(folder, fileName);
+	}
+}
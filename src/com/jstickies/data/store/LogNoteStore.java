@@ -0,0 +1,452 @@
+/*
+ * This class represents a log-structured storage engine. Instead of rewriting one file per note, every save appends a record to the end of
+ * a segment log in the log folder. An in-memory index maps every note to the location of its latest record, so loading a note is a single
+ * positioned read.
+ *
+ * Every record is checksummed, so that the log can be replayed safely at startup. A torn record at the end of the log (eg: from a crash in
+ * the middle of a write) is discarded. Segments that are no longer written to are periodically compacted in the background, by copying the
+ * live records into a new segment and deleting the old ones. The compacted segment drops the tombstones of deleted notes, so it only replaces
+ * the old segments once they are all deleted : renaming the finished segment to a .done file commits the compaction, and an interrupted
+ * compaction is completed when the log is opened.
+ *
+ * The first time the store is opened, any existing .note files in the note folder are migrated into the log and moved to the migrated
+ * folder.
+ *
+ * Record format :
+ * 	- Type (1 byte) - PUT or DELETE
+ * 	- File name (2 byte length followed by the UTF-8 bytes)
+ * 	- Payload length (4 bytes)
+ * 	- Payload (the note record, empty for DELETE)
+ * 	- CRC32 of all the above (4 bytes)
+ */
+
+package com.jstickies.data.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LogNoteStore extends NoteStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(LogNoteStore.class);
+	private static final byte PUT = 1, DELETE = 2;
+	private static final long SEGMENT_SIZE = 4L * 1024 * 1024; //Start a new segment once the active one crosses 4MB
+	private static final long MIN_GARBAGE = 1024 * 1024; //Compact only if there is at least 1MB of garbage
+	private static final long COMPACTION_INTERVAL = 60000; //Check if compaction is required every 60s
+
+	private File logFolder;
+	private TreeMap<Integer, Segment> segments;
+	private HashMap<String, Location> index;
+	private Segment active;
+	private Timer compactor;
+
+	/*
+	 * Opens the log in folder/log. Replays all the segments to build the index and migrates any .note files in folder.
+	 */
+	public LogNoteStore(File folder) {
+		super(folder);
+		logFolder = new File(folder, "log");
+		segments = new TreeMap<Integer, Segment>();
+		index = new HashMap<String, Location>();
+
+		try {
+			open();
+		}
+		catch(IOException e) {
+			logger.error("Error while opening the note log : {}", e.getMessage());
+			throw new IllegalStateException("Unable to open the note log", e);
+		}
+
+		compactor = new Timer("LogNoteStore compactor", true);
+		compactor.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				compact();
+			}
+		}, COMPACTION_INTERVAL, COMPACTION_INTERVAL);
+	}
+
+	/*
+	 * Loads all the segments in order, replaying their records into the index.
+	 */
+	private void open() throws IOException {
+		if(!logFolder.exists())
+			logFolder.mkdirs();
+
+		File[] files = logFolder.listFiles();
+		for(File f : files)
+			if(f.getName().endsWith(".done")) //Committed compaction that was interrupted
+				finishCompaction(f, Integer.parseInt(f.getName().substring(0, f.getName().indexOf('.'))));
+		
+		files = logFolder.listFiles();
+		boolean migrate = true;
+		for(File f : files) {
+			String name = f.getName();
+			if(name.endsWith(".compact")) { //Left over from a compaction that did not finish
+				f.delete();
+				continue;
+			}
+			if(!name.endsWith(".seg"))
+				continue;
+
+			int id = Integer.parseInt(name.substring(0, name.length() - 4));
+			segments.put(id, new Segment(id, f));
+			migrate = false;
+		}
+
+		Iterator<Segment> iterator = segments.values().iterator();
+		while(iterator.hasNext()) {
+			Segment s = iterator.next();
+			replay(s, !iterator.hasNext());
+		}
+
+		if(segments.isEmpty())
+			roll();
+		else
+			active = segments.lastEntry().getValue();
+		logger.info("Note log opened with {} segment(s) and {} note(s)", segments.size(), index.size());
+
+		if(migrate)
+			migrateNoteFiles();
+	}
+
+	/*
+	 * Replays all the records in the segment s into the index. If last is true, a torn record at the end of the segment is truncated so that
+	 * new records can be appended after it.
+	 */
+	private void replay(Segment s, boolean last) throws IOException {
+		FileChannel channel = s.file.getChannel();
+		ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+		while(buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0);
+		buffer.flip();
+
+		CRC32 crc = new CRC32();
+		int position = 0;
+		while(buffer.remaining() > 0) {
+			position = buffer.position();
+			try {
+				byte type = buffer.get();
+				int keyLength = buffer.getShort() & 0xFFFF;
+				byte[] key = new byte[keyLength];
+				buffer.get(key);
+				int length = buffer.getInt();
+				if(length < 0 || length > buffer.remaining() - 4)
+					throw new IOException("Invalid record length");
+				int payload = buffer.position();
+				buffer.position(payload + length);
+				int checksum = buffer.getInt();
+
+				crc.reset();
+				crc.update(buffer.array(), position, buffer.position() - 4 - position);
+				if((int) crc.getValue() != checksum || (type != PUT && type != DELETE))
+					throw new IOException("Checksum mismatch");
+
+				String fileName = new String(key, "UTF-8");
+				int size = buffer.position() - position;
+				s.size += size;
+				if(type == PUT)
+					put(fileName, new Location(s, payload, length, size));
+				else {
+					remove(fileName);
+					s.garbage += size; //Tombstones are not required after compaction
+				}
+			}
+			catch(Exception e) {
+				logger.warn("Discarding {} bytes from offset {} of segment {} : {}", s.file.length() - position, position, s.id, e.getMessage());
+				if(last)
+					channel.truncate(position);
+				break;
+			}
+		}
+	}
+
+	@Override
+	protected synchronized void sync() throws IOException {
+		active.file.getChannel().force(false);
+	}
+
+	@Override
+	protected synchronized byte[] readRecord(String fileName) throws IOException {
+		Location l = index.get(fileName);
+		if(l == null)
+			return null;
+
+		byte[] record = new byte[l.length];
+		l.segment.file.seek(l.offset);
+		l.segment.file.readFully(record);
+		return record;
+	}
+
+	@Override
+	protected synchronized void writeRecord(String fileName, byte[] record) throws IOException {
+		long start = append(PUT, fileName, record);
+		put(fileName, new Location(active, active.size - 4 - record.length, record.length, (int) (active.size - start)));
+	}
+
+	@Override
+	protected synchronized void deleteRecord(String fileName) throws IOException {
+		if(!index.containsKey(fileName))
+			return;
+
+		long start = append(DELETE, fileName, new byte[0]);
+		active.garbage += active.size - start;
+		remove(fileName);
+	}
+
+	@Override
+	public synchronized String[] getFileNames() {
+		return index.keySet().toArray(new String[index.size()]);
+	}
+
+	@Override
+	public synchronized boolean contains(String fileName) {
+		return index.containsKey(fileName);
+	}
+
+	/*
+	 * Stops the compactor and closes all the segments.
+	 */
+	@Override
+	public synchronized void close() {
+		compactor.cancel();
+		for(Segment s : segments.values())
+			try {
+				s.file.getChannel().force(false);
+				s.file.close();
+			}
+			catch(IOException e) {
+				logger.warn("Unable to close segment {} : {}", s.id, e.getMessage());
+			}
+	}
+
+	/*
+	 * Appends a record to the active segment. Returns the offset of the record within the segment.
+	 */
+	private long append(byte type, String fileName, byte[] payload) throws IOException {
+		if(active.size >= SEGMENT_SIZE)
+			roll();
+
+		byte[] record = buildRecord(type, fileName, payload);
+		long start = active.size;
+		active.file.seek(start);
+		active.file.write(record);
+		active.size += record.length;
+
+		return start;
+	}
+
+	/*
+	 * Builds a checksummed record.
+	 */
+	private static byte[] buildRecord(byte type, String fileName, byte[] payload) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(payload.length + fileName.length() + 16);
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(type);
+		dos.writeShort(fileName.getBytes("UTF-8").length);
+		dos.write(fileName.getBytes("UTF-8"));
+		dos.writeInt(payload.length);
+		dos.write(payload);
+
+		CRC32 crc = new CRC32();
+		crc.update(bos.toByteArray());
+		dos.writeInt((int) crc.getValue());
+		dos.close();
+
+		return bos.toByteArray();
+	}
+
+	/*
+	 * Seals the active segment and starts a new one.
+	 */
+	private void roll() throws IOException {
+		if(active != null)
+			active.file.getChannel().force(false);
+
+		int id = (segments.isEmpty())? 1 : segments.lastKey() + 1;
+		active = new Segment(id, new File(logFolder, segmentName(id)));
+		segments.put(id, active);
+		logger.debug("Started new log segment {}", id);
+	}
+
+	/*
+	 * Points the index entry for fileName to l, marking the previous record as garbage.
+	 */
+	private void put(String fileName, Location l) {
+		remove(fileName);
+		index.put(fileName, l);
+	}
+
+	/*
+	 * Removes the index entry for fileName, marking its record as garbage.
+	 */
+	private void remove(String fileName) {
+		Location old = index.remove(fileName);
+		if(old != null)
+			old.segment.garbage += old.size;
+	}
+
+	/*
+	 * Compacts all the sealed segments into a single segment, if they contain enough garbage. The live records are copied without holding
+	 * the lock on the store, so saving notes is not blocked while compaction is in progress.
+	 */
+	void compact() {
+		ArrayList<Segment> sealed = new ArrayList<Segment>();
+		HashMap<String, Location> live = new HashMap<String, Location>();
+
+		synchronized(this) {
+			long garbage = 0, size = 0;
+			for(Segment s : segments.values())
+				if(s != active) {
+					sealed.add(s);
+					garbage += s.garbage;
+					size += s.size;
+				}
+			if(sealed.isEmpty() || garbage < MIN_GARBAGE || garbage * 2 < size)
+				return;
+
+			for(Map.Entry<String, Location> e : index.entrySet())
+				if(e.getValue().segment != active)
+					live.put(e.getKey(), e.getValue());
+		}
+
+		Segment target = sealed.get(sealed.size() - 1);
+		File compactFile = new File(logFolder, segmentName(target.id) + ".compact");
+		HashMap<String, Location> moved = new HashMap<String, Location>();
+		long start = System.currentTimeMillis();
+
+		try {
+			RandomAccessFile out = new RandomAccessFile(compactFile, "rw");
+			HashMap<Segment, RandomAccessFile> readers = new HashMap<Segment, RandomAccessFile>();
+			Segment compacted = new Segment(target.id, out);
+			try {
+				for(Segment s : sealed)
+					readers.put(s, new RandomAccessFile(new File(logFolder, segmentName(s.id)), "r"));
+
+				for(Map.Entry<String, Location> e : live.entrySet()) {
+					Location l = e.getValue();
+					byte[] payload = new byte[l.length];
+					RandomAccessFile in = readers.get(l.segment);
+					in.seek(l.offset);
+					in.readFully(payload);
+
+					byte[] record = buildRecord(PUT, e.getKey(), payload);
+					out.write(record);
+					long offset = compacted.size + record.length - 4 - payload.length;
+					compacted.size += record.length;
+					moved.put(e.getKey(), new Location(compacted, offset, payload.length, record.length));
+				}
+				out.getChannel().force(false);
+			}
+			finally {
+				for(RandomAccessFile in : readers.values())
+					in.close();
+			}
+
+			synchronized(this) {
+				for(Segment s : sealed) {
+					s.file.close();
+					segments.remove(s.id);
+				}
+				out.close();
+				if(moved.isEmpty()) { //All the live records are in the active segment
+					compactFile.delete();
+					for(Segment s : sealed)
+						new File(logFolder, segmentName(s.id)).delete();
+				}
+				else {
+					File done = new File(logFolder, segmentName(target.id) + ".done");
+					Files.move(compactFile.toPath(), done.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					finishCompaction(done, target.id);
+				}
+
+				if(!moved.isEmpty()) {
+					compacted.file = new RandomAccessFile(new File(logFolder, segmentName(target.id)), "rw");
+					segments.put(target.id, compacted);
+				}
+				for(Map.Entry<String, Location> e : moved.entrySet()) {
+					if(index.get(e.getKey()) == live.get(e.getKey())) //Not saved or deleted during compaction
+						index.put(e.getKey(), e.getValue());
+					else
+						compacted.garbage += e.getValue().size;
+				}
+			}
+			logger.info("Compacted {} segment(s) with {} live note(s) in {}ms", sealed.size(), moved.size(), System.currentTimeMillis() - start);
+		}
+		catch(IOException e) {
+			logger.error("Error while compacting the note log : {}", e.getMessage());
+			compactFile.delete();
+		}
+	}
+
+	/*
+	 * Completes a committed compaction : deletes the segments it replaces, i.e. the segments up to id, and then moves the compacted segment
+	 * done into place. The segments are deleted first, since the compacted segment has no tombstones for the notes they hold.
+	 */
+	private void finishCompaction(File done, int id) throws IOException {
+		File[] files = logFolder.listFiles();
+		for(File f : files) {
+			String name = f.getName();
+			if(name.endsWith(".seg") && Integer.parseInt(name.substring(0, name.length() - 4)) <= id && !f.delete())
+				throw new IOException("Unable to delete segment " + name);
+		}
+		Files.move(done.toPath(), new File(logFolder, segmentName(id)).toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Returns the file name for the segment id.
+	 */
+	private static String segmentName(int id) {
+		return String.format("%08d.seg", id);
+	}
+
+	/*
+	 * A single segment file of the log.
+	 */
+	private static class Segment {
+		int id;
+		RandomAccessFile file;
+		long size, garbage;
+
+		Segment(int id, File f) throws IOException {
+			this(id, new RandomAccessFile(f, "rw"));
+		}
+
+		Segment(int id, RandomAccessFile file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	/*
+	 * Location of the payload of a record within a segment.
+	 */
+	private static class Location {
+		Segment segment;
+		long offset;
+		int length, size;
+
+		Location(Segment segment, long offset, int length, int size) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.size = size;
+		}
+	}
+}
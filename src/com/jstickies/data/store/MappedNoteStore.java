@@ -0,0 +1,542 @@
+/*
+ * This class represents a storage engine that keeps all the notes in a single memory-mapped file (notes.db in the note folder). It is meant
+ * for very large note sets, where listing the note folder and opening one file per note dominates the startup time.
+ *
+ * The file is divided into pages of PAGE_SIZE bytes. Page 0 is the file header. Every other page is one of :
+ * 	- FREE - Unused page
+ * 	- SLOTTED - Contains a slot directory that grows from the start of the page and records that grow from the end of the page. Every slot
+ * 	  holds the offset and length of one record. A slot with length 0 is unused
+ * 	- LARGE - First page of a record that is too large for a slotted page. The record continues through the following pages
+ *
+ * Every record contains a CRC32 of the rest of the record, a sequence number, and the file name of the note followed by the note record. An
+ * in-memory index maps every note to its slot, and an in-memory free-space map holds the contiguous free space of every slotted page. Both
+ * are built by scanning the pages when the store is opened. A file with invalid page headers is rejected.
+ *
+ * Notes are read directly from the mapped file without copying the record. A note that is saved again is written to a new slot, which is
+ * forced to the disk before the old slot is freed, so a crash never leaves the note without a complete record. When the store is opened,
+ * records whose checksum does not match (torn writes) are discarded, and if a note has several records, the one with the highest sequence
+ * number is kept and the others are freed.
+ *
+ * Records are never moved in place, so a crash while saving a note cannot tear the records of other notes. Freeing a record only clears its
+ * slot, and the space it used is reclaimed once its page is empty. When the freed records of a page reach RECLAIM bytes, the other records
+ * of the page are saved again in other pages, in the same way as a note that is saved, which empties the page.
+ */
+
+package com.jstickies.data.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.data.NoteData;
+
+public class MappedNoteStore extends NoteStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedNoteStore.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x4A534442, VERSION = 2;
+	private static final int PAGE_SIZE = 4096;
+	private static final int PAGE_HEADER = 8, SLOT_SIZE = 4, LARGE_HEADER = 12;
+	private static final int RECORD_HEADER = 14; //CRC32 (4 bytes), sequence number (8 bytes) and key length (2 bytes)
+	private static final int MIN_PAGES = 256; //Grow the file by at least 1MB
+	private static final int RECLAIM = PAGE_SIZE / 2; //Freed bytes after which the records of a page are moved to other pages
+	private static final byte FREE = 0, SLOTTED = 1, LARGE = 2;
+	private static final int PAGE_FREE = -1, PAGE_USED = -2; //Free-space map entries for pages that are not slotted
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int pageCount;
+	private int[] freeSpace; //Free-space map, contiguous free bytes of every slotted page
+	private int[] freed; //Bytes of the freed records of every slotted page, which are only reclaimed once the page is empty
+	private int freeHint;
+	private HashMap<String, Slot> index;
+	private long sequence; //Sequence number of the last record written
+
+	/*
+	 * Opens (or creates) folder/notes.db. Any .note files in folder are migrated the first time the file is created.
+	 */
+	public MappedNoteStore(File folder) {
+		super(folder);
+		index = new HashMap<String, Slot>();
+
+		File dbFile = new File(folder, "notes.db");
+		try {
+			boolean create = !dbFile.exists() || dbFile.length() == 0;
+			file = new RandomAccessFile(dbFile, "rw");
+			if(create) {
+				pageCount = 1;
+				freeSpace = new int[] {PAGE_USED};
+				freed = new int[1];
+				grow(MIN_PAGES);
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, PAGE_SIZE);
+				migrateNoteFiles();
+			}
+			else
+				open();
+		}
+		catch(IOException e) {
+			logger.error("Error while opening the note database : {}", e.getMessage());
+			throw new IllegalStateException("Unable to open the note database", e);
+		}
+		logger.info("Note database opened with {} page(s) and {} note(s)", pageCount, index.size());
+	}
+
+	/*
+	 * Maps the file and builds the index and the free-space map from the pages. Throws an IOException if a page header is invalid.
+	 */
+	private void open() throws IOException {
+		pageCount = (int) (file.length() / PAGE_SIZE);
+		map();
+		if(buffer.getInt(0) != MAGIC || buffer.getInt(8) != PAGE_SIZE)
+			throw new IOException("Not a note database");
+		if(buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported note database version " + buffer.getInt(4));
+
+		freeSpace = new int[pageCount];
+		freeSpace[0] = PAGE_USED;
+		freed = new int[pageCount];
+		ArrayList<Slot> stale = new ArrayList<Slot>();
+		for(int page = 1; page < pageCount; page++) {
+			int base = page * PAGE_SIZE;
+			byte type = buffer.get(base);
+
+			if(type == SLOTTED) {
+				int slots = slotCount(page), start = dataStart(page), used = 0;
+				if(PAGE_HEADER + slots * SLOT_SIZE > start || start > PAGE_SIZE)
+					throw new IOException("Invalid slot directory in page " + page);
+				for(int slot = 0; slot < slots; slot++) {
+					int offset = slotOffset(page, slot), length = slotLength(page, slot);
+					if(length == 0)
+						continue;
+					if(offset < start || offset + length > PAGE_SIZE)
+						throw new IOException("Invalid slot " + slot + " in page " + page);
+					index(base + offset, length, new Slot(page, slot), stale);
+					used += length;
+				}
+				if(used == 0) { //All its records were freed before the page was
+					buffer.put(base, FREE);
+					freeSpace[page] = PAGE_FREE;
+					continue;
+				}
+				freeSpace[page] = start - PAGE_HEADER - slots * SLOT_SIZE;
+				freed[page] = PAGE_SIZE - start - used;
+			}
+			else if(type == LARGE) {
+				int span = buffer.getInt(base + 4), length = buffer.getInt(base + 8);
+				if(span < 1 || span > pageCount - page || length < 0 || LARGE_HEADER + length > span * PAGE_SIZE)
+					throw new IOException("Invalid large record in page " + page);
+				index(base + LARGE_HEADER, length, new Slot(page, -1), stale);
+				for(int i = 0; i < span; i++)
+					freeSpace[page + i] = PAGE_USED;
+				page += span - 1;
+			}
+			else
+				freeSpace[page] = PAGE_FREE;
+		}
+
+		for(Slot s : stale)
+			free(s);
+		if(!stale.isEmpty()) {
+			logger.info("Freed {} torn or superseded record(s)", stale.size());
+			buffer.force();
+		}
+	}
+
+	/*
+	 * Adds the record at offset to the index while opening the store, unless it is torn or a later record of the same note was found. The
+	 * slots of the records that are not used are added to stale, to be freed once all the pages have been read.
+	 */
+	private void index(int offset, int length, Slot s, ArrayList<Slot> stale) {
+		if(length < RECORD_HEADER || RECORD_HEADER + (buffer.getShort(offset + 12) & 0xFFFF) > length || checksum(offset, length) != buffer.getInt(offset)) {
+			logger.warn("Discarding a torn record in page {}", s.page);
+			stale.add(s);
+			return;
+		}
+
+		String key = readKey(offset);
+		s.sequence = buffer.getLong(offset + 4);
+		sequence = Math.max(sequence, s.sequence);
+		Slot old = index.get(key);
+		if(old != null && old.sequence > s.sequence)
+			stale.add(s);
+		else {
+			index.put(key, s);
+			if(old != null)
+				stale.add(old);
+		}
+	}
+
+	/*
+	 * Returns a slice of the mapped file containing the note record. The slice is taken from a duplicate of the buffer, so it can be read
+	 * without holding the lock on the store (see MappedNoteStore#load(String)).
+	 */
+	@Override
+	protected synchronized ByteBuffer readBuffer(String fileName) throws IOException {
+		Slot s = index.get(fileName);
+		if(s == null)
+			return null;
+
+		int offset, length;
+		if(s.slot < 0) {
+			offset = s.page * PAGE_SIZE + LARGE_HEADER;
+			length = buffer.getInt(s.page * PAGE_SIZE + 8);
+		}
+		else {
+			offset = s.page * PAGE_SIZE + slotOffset(s.page, s.slot);
+			length = slotLength(s.page, s.slot);
+		}
+
+		int keyLength = buffer.getShort(offset + 12) & 0xFFFF;
+		ByteBuffer record = buffer.duplicate();
+		record.limit(offset + length);
+		record.position(offset + RECORD_HEADER + keyLength);
+		return record.slice();
+	}
+
+	@Override
+	protected synchronized byte[] readRecord(String fileName) throws IOException {
+		ByteBuffer record = readBuffer(fileName);
+		if(record == null)
+			return null;
+
+		byte[] bytes = new byte[record.remaining()];
+		record.get(bytes);
+		return bytes;
+	}
+
+	/*
+	 * Decodes the note directly from the mapped file, without holding the lock, so that notes are decoded in parallel (see
+	 * NoteStore#loadAll()). Records are never changed in place, and the space of a record is only reused after it has been freed, which
+	 * replaces the slot of the note in the index. The note is therefore decoded again if its slot changed while it was being decoded.
+	 */
+	@Override
+	public NoteData load(String fileName) {
+		while(true) {
+			Slot s;
+			synchronized(this) {
+				s = index.get(fileName);
+			}
+			NoteData data;
+			try {
+				data = super.load(fileName);
+			}
+			catch(RuntimeException e) {
+				synchronized(this) {
+					if(index.get(fileName) == s)
+						throw e;
+				}
+				continue;
+			}
+			synchronized(this) {
+				if(index.get(fileName) == s)
+					return data;
+			}
+		}
+	}
+
+	@Override
+	protected synchronized void writeRecord(String fileName, byte[] record) throws IOException {
+		put(fileName, record);
+	}
+
+	/*
+	 * Writes the record of a note to a new slot, and then frees the old slot of the note. The new record is forced to the disk before the old
+	 * slot is freed.
+	 */
+	private void put(String fileName, byte[] record) throws IOException {
+		byte[] key = fileName.getBytes(UTF8);
+		int length = RECORD_HEADER + key.length + record.length;
+		Slot old = index.get(fileName);
+
+		Slot s = (length + SLOT_SIZE <= PAGE_SIZE - PAGE_HEADER)? insert(length) : insertLarge(length);
+		writeAt(recordOffset(s), ++sequence, key, record);
+		buffer.force();
+		index.put(fileName, s);
+
+		if(old != null) {
+			free(old);
+			buffer.force();
+			reclaim(old);
+		}
+	}
+
+	@Override
+	protected synchronized void deleteRecord(String fileName) throws IOException {
+		Slot s = index.remove(fileName);
+		if(s != null) {
+			free(s);
+			buffer.force();
+			reclaim(s);
+		}
+	}
+
+	/*
+	 * Saves the records of the page of the freed slot s again in other pages, if the page has RECLAIM bytes of freed records. Every record
+	 * is forced to the disk in its new slot before its old slot is freed (see MappedNoteStore#put(String, byte[])), and the page is
+	 * freed along with its last record.
+	 */
+	private void reclaim(Slot s) throws IOException {
+		if(s.slot < 0 || freeSpace[s.page] < 0 || freed[s.page] < RECLAIM) //Not slotted, or already being reclaimed
+			return;
+
+		int page = s.page, moved = 0;
+		int space = freeSpace[page];
+		freeSpace[page] = PAGE_USED; //So that no record is saved in the page again
+		try {
+			for(int slot = 0; slot < slotCount(page); slot++) {
+				int length = slotLength(page, slot);
+				if(length == 0)
+					continue;
+				int offset = page * PAGE_SIZE + slotOffset(page, slot), keyLength = buffer.getShort(offset + 12) & 0xFFFF;
+				byte[] record = new byte[length - RECORD_HEADER - keyLength];
+				ByteBuffer source = buffer.duplicate();
+				source.position(offset + RECORD_HEADER + keyLength);
+				source.get(record);
+				put(readKey(offset), record);
+				moved++;
+			}
+		}
+		finally {
+			if(freeSpace[page] == PAGE_USED) //Not emptied
+				freeSpace[page] = space;
+		}
+		logger.debug("Reclaimed page {} by moving {} record(s)", page, moved);
+	}
+
+	@Override
+	public synchronized String[] getFileNames() {
+		return index.keySet().toArray(new String[index.size()]);
+	}
+
+	@Override
+	public synchronized boolean contains(String fileName) {
+		return index.containsKey(fileName);
+	}
+
+	@Override
+	protected synchronized void sync() throws IOException {
+		buffer.force();
+	}
+
+	@Override
+	public synchronized void close() {
+		buffer.force();
+		try {
+			file.close();
+		}
+		catch(IOException e) {
+			logger.warn("Unable to close the note database : {}", e.getMessage());
+		}
+	}
+
+	/*
+	 * Allocates a slot of length bytes in a slotted page, using the free-space map to find a page with enough space.
+	 */
+	private Slot insert(int length) throws IOException {
+		int page = -1;
+		for(int i = 0; i < pageCount && page < 0; i++) {
+			int p = (freeHint + i) % pageCount;
+			if(freeSpace[p] >= length + SLOT_SIZE)
+				page = p;
+		}
+		if(page < 0) {
+			page = allocatePages(1);
+			int base = page * PAGE_SIZE;
+			buffer.put(base, SLOTTED);
+			buffer.putShort(base + 2, (short) 0);
+			setDataStart(page, PAGE_SIZE);
+			freeSpace[page] = PAGE_SIZE - PAGE_HEADER;
+			freed[page] = 0;
+		}
+		freeHint = page;
+
+		int slots = slotCount(page), slot = 0;
+		while(slot < slots && slotLength(page, slot) > 0) //Reuse an unused slot
+			slot++;
+		if(slot == slots) {
+			buffer.putShort(page * PAGE_SIZE + 2, (short) (slots + 1));
+			freeSpace[page] -= SLOT_SIZE;
+		}
+
+		setDataStart(page, dataStart(page) - length);
+		setSlot(page, slot, dataStart(page), length);
+		freeSpace[page] -= length;
+		return new Slot(page, slot);
+	}
+
+	/*
+	 * Allocates contiguous pages for a record of length bytes.
+	 */
+	private Slot insertLarge(int length) throws IOException {
+		int span = (LARGE_HEADER + length + PAGE_SIZE - 1) / PAGE_SIZE;
+		int page = allocatePages(span);
+		int base = page * PAGE_SIZE;
+		buffer.put(base, LARGE);
+		buffer.putInt(base + 4, span);
+		buffer.putInt(base + 8, length);
+		for(int i = 0; i < span; i++)
+			freeSpace[page + i] = PAGE_USED;
+		return new Slot(page, -1);
+	}
+
+	/*
+	 * Frees the record in slot s. Only the slot is cleared, and the other records of the page are not moved, so the space of the record is
+	 * reused once the page is empty.
+	 */
+	private void free(Slot s) {
+		if(s.slot < 0) {
+			int span = buffer.getInt(s.page * PAGE_SIZE + 4);
+			for(int i = 0; i < span; i++) {
+				buffer.put((s.page + i) * PAGE_SIZE, FREE);
+				freeSpace[s.page + i] = PAGE_FREE;
+			}
+			return;
+		}
+
+		freed[s.page] += slotLength(s.page, s.slot);
+		setSlot(s.page, s.slot, 0, 0);
+		for(int slot = 0; slot < slotCount(s.page); slot++)
+			if(slotLength(s.page, slot) > 0)
+				return;
+		buffer.put(s.page * PAGE_SIZE, FREE); //Page is empty
+		freeSpace[s.page] = PAGE_FREE;
+	}
+
+	/*
+	 * Finds count contiguous free pages, growing the file if required. Returns the first page.
+	 */
+	private int allocatePages(int count) throws IOException {
+		int run = 0;
+		for(int page = 1; page < pageCount; page++) {
+			if(freeSpace[page] == PAGE_FREE)
+				run++;
+			else
+				run = 0;
+
+			if(run == count)
+				return page - count + 1;
+		}
+
+		int first = pageCount - run;
+		grow(Math.max(count - run, Math.max(MIN_PAGES, pageCount / 2)));
+		return first;
+	}
+
+	/*
+	 * Grows the file by pages pages and maps it again.
+	 */
+	private void grow(int pages) throws IOException {
+		int oldCount = pageCount;
+		pageCount += pages;
+		file.setLength((long) pageCount * PAGE_SIZE);
+		map();
+
+		int[] map = new int[pageCount];
+		System.arraycopy(freeSpace, 0, map, 0, oldCount);
+		for(int page = oldCount; page < pageCount; page++) {
+			buffer.put(page * PAGE_SIZE, FREE);
+			map[page] = PAGE_FREE;
+		}
+		freeSpace = map;
+		int[] freedMap = new int[pageCount];
+		System.arraycopy(freed, 0, freedMap, 0, oldCount);
+		freed = freedMap;
+		buffer.putInt(12, pageCount);
+		logger.debug("Note database grown to {} pages", pageCount);
+	}
+
+	private void map() throws IOException {
+		if((long) pageCount * PAGE_SIZE > Integer.MAX_VALUE)
+			throw new IOException("Note database is too large");
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) pageCount * PAGE_SIZE);
+	}
+
+	private int recordOffset(Slot s) {
+		if(s.slot < 0)
+			return s.page * PAGE_SIZE + LARGE_HEADER;
+		return s.page * PAGE_SIZE + slotOffset(s.page, s.slot);
+	}
+
+	private void writeAt(int offset, long sequence, byte[] key, byte[] record) {
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset + 4);
+		target.putLong(sequence);
+		target.putShort((short) key.length);
+		target.put(key);
+		target.put(record);
+		buffer.putInt(offset, checksum(offset, RECORD_HEADER + key.length + record.length));
+	}
+
+	/*
+	 * Returns the CRC32 of the record of length bytes at offset, excluding the checksum itself.
+	 */
+	private int checksum(int offset, int length) {
+		byte[] bytes = new byte[length - 4];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + 4);
+		source.get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	private String readKey(int offset) {
+		byte[] key = new byte[buffer.getShort(offset + 12) & 0xFFFF];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + RECORD_HEADER);
+		source.get(key);
+		return new String(key, UTF8);
+	}
+
+	private int slotCount(int page) {
+		return buffer.getShort(page * PAGE_SIZE + 2) & 0xFFFF;
+	}
+
+	private int dataStart(int page) {
+		return buffer.getShort(page * PAGE_SIZE + 4) & 0xFFFF;
+	}
+
+	private void setDataStart(int page, int offset) {
+		buffer.putShort(page * PAGE_SIZE + 4, (short) offset);
+	}
+
+	private int slotOffset(int page, int slot) {
+		return buffer.getShort(page * PAGE_SIZE + PAGE_HEADER + slot * SLOT_SIZE) & 0xFFFF;
+	}
+
+	private int slotLength(int page, int slot) {
+		return buffer.getShort(page * PAGE_SIZE + PAGE_HEADER + slot * SLOT_SIZE + 2) & 0xFFFF;
+	}
+
+	private void setSlot(int page, int slot, int offset, int length) {
+		int position = page * PAGE_SIZE + PAGE_HEADER + slot * SLOT_SIZE;
+		buffer.putShort(position, (short) offset);
+		buffer.putShort(position + 2, (short) length);
+	}
+
+	/*
+	 * Location of a record. slot is -1 for records in LARGE pages.
+	 */
+	private static class Slot {
+		int page, slot;
+		long sequence; //Only used while opening the store
+
+		Slot(int page, int slot) {
+			this.page = page;
+			this.slot = slot;
+		}
+	}
+}
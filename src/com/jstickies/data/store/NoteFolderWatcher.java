@@ -0,0 +1,150 @@
+/*
+ * This class watches the note folder of a FileNoteStore for .note files that are created, modified or deleted by other programs, e.g. a file
+ * synchronization client, a backup restore or a second copy of JStickies. Only the changed files are decoded, and the matching notes are
+ * updated in place on the EDT (see Note#reload(NoteData)), so external changes are picked up without restarting or rescanning the folder.
+ *
+ * The writes of the store itself also raise events. They are recognized by the FileNoteStore (see FileNoteStore#isChanged(String)), so saving
+ * a note never reloads it.
+ */
+
+package com.jstickies.data.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.NoteData;
+import com.jstickies.gui.Note;
+
+class NoteFolderWatcher implements Runnable {
+
+	private static final long SETTLE_TIME = 100, MAX_DELAY = 1000; //in milliseconds
+	private static final Logger logger = LoggerFactory.getLogger(NoteFolderWatcher.class);
+
+	private FileNoteStore store;
+	private WatchService service;
+	private Thread thread;
+
+	/*
+	 * Starts watching the note folder of store.
+	 */
+	NoteFolderWatcher(FileNoteStore store, File folder) throws IOException {
+		this.store = store;
+		service = FileSystems.getDefault().newWatchService();
+		folder.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+
+		thread = new Thread(this, "NoteFolderWatcher");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Watching the note folder {} for changes", folder);
+	}
+
+	/*
+	 * Stops watching the note folder.
+	 */
+	void stop() {
+		try {
+			service.close();
+		}
+		catch(IOException e) {
+			logger.warn("Error while closing the watch service : {}", e.getMessage());
+		}
+	}
+
+	/*
+	 * Waits for events, and handles the files they refer to once no more events arrive for SETTLE_TIME milliseconds, so that a file that is
+	 * written in several steps is only decoded once. If events were lost, every note file is checked.
+	 */
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				WatchKey key = service.take();
+				long end = System.currentTimeMillis() + MAX_DELAY;
+				LinkedHashSet<String> fileNames = new LinkedHashSet<String>();
+				boolean overflow = false;
+
+				while(key != null) {
+					for(WatchEvent<?> e : key.pollEvents()) {
+						if(e.kind() == StandardWatchEventKinds.OVERFLOW)
+							overflow = true;
+						else if(e.context().toString().endsWith(".note"))
+							fileNames.add(e.context().toString());
+					}
+					key.reset();
+					key = (System.currentTimeMillis() < end)? service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS) : null;
+				}
+
+				if(overflow) {
+					logger.info("Events of the note folder were lost. Checking all the note files");
+					fileNames.addAll(store.getKnownFileNames());
+					fileNames.addAll(Arrays.asList(store.getFileNames()));
+				}
+				for(String fileName : fileNames)
+					if(store.isChanged(fileName))
+						handle(fileName);
+			}
+		}
+		catch(ClosedWatchServiceException e) {
+			logger.debug("Stopped watching the note folder");
+		}
+		catch(InterruptedException e) {
+			logger.debug("Interrupted while watching the note folder");
+		}
+	}
+
+	/*
+	 * Reloads a note file that was changed by another program, or removes the note if the file was deleted.
+	 */
+	private void handle(final String fileName) {
+		if(!store.contains(fileName)) {
+			logger.info("Note file {} was deleted by another program", fileName);
+			store.delete(fileName);
+			if(JStickies.SEARCH_INDEX != null)
+				JStickies.SEARCH_INDEX.remove(fileName);
+			if(JStickies.METADATA != null)
+				JStickies.METADATA.deleteNote(fileName);
+			if(JStickies.SYNCHRONIZER != null)
+				JStickies.SYNCHRONIZER.noteChanged(fileName);
+
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					Note.remove(fileName);
+				}
+			});
+			return;
+		}
+
+		final NoteData data = store.load(fileName);
+		if(data == null)
+			return; //Possibly still being written, in which case another event follows
+		logger.info("Note file {} was changed by another program", fileName);
+		if(JStickies.SEARCH_INDEX != null)
+			JStickies.SEARCH_INDEX.update(data);
+		if(JStickies.METADATA != null)
+			JStickies.METADATA.updateNote(data);
+		if(JStickies.SYNCHRONIZER != null)
+			JStickies.SYNCHRONIZER.noteChanged(fileName);
+
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				Note.reload(data);
+			}
+		});
+	}
+}
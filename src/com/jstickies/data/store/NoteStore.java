@@ -0,0 +1,356 @@
+/*
+ * Abstract class representing a storage engine for notes. NoteData uses the active NoteStore (JStickies.NOTE_STORE) for saving, loading and
+ * deleting notes. A NoteStore only deals with records, i.e. the encoded form of a NoteData identified by its file name. Records are
+ * encoded and decoded by this class using NoteCodec, so all storage engines share the same record format.
+ *
+ * The storage engine is selected using the jstickies.store system property :
+ * 	- file - One .note file per note in the note folder (default)
+ * 	- log - Append-only segment log with an in-memory index (see LogNoteStore)
+ * 	- mmap - Single memory-mapped file with slotted pages (see MappedNoteStore)
+ *
+ * Large notes are saved by appending their edits to a delta log (see DeltaLog), which is applied whenever the note is loaded.
+ *
+ * If NoteCompression is enabled, records are compressed when they are written and exported, so notes are compressed both at rest and when
+ * they are uploaded. Compressed and uncompressed records are read alike.
+ */
+
+package com.jstickies.data.store;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.data.NoteCodec;
+import com.jstickies.data.NoteCompression;
+import com.jstickies.data.NoteData;
+
+public abstract class NoteStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(NoteStore.class);
+
+	protected File folder;
+	private DeltaLog deltas;
+
+	/*
+	 * Creates a NoteStore that keeps its data in the folder folder.
+	 */
+	protected NoteStore(File folder) {
+		this.folder = folder;
+		deltas = new DeltaLog(folder);
+	}
+
+	/*
+	 * Reads the record stored for the note fileName. Returns null if there is no such note.
+	 */
+	protected abstract byte[] readRecord(String fileName) throws IOException;
+
+	/*
+	 * Writes the record for the note fileName, replacing any previously stored record.
+	 */
+	protected abstract void writeRecord(String fileName, byte[] record) throws IOException;
+
+	/*
+	 * Removes the record stored for the note fileName.
+	 */
+	protected abstract void deleteRecord(String fileName) throws IOException;
+
+	/*
+	 * Returns the file names of all the stored notes.
+	 */
+	public abstract String[] getFileNames();
+
+	/*
+	 * Checks whether a note with the file name fileName has been stored.
+	 */
+	public abstract boolean contains(String fileName);
+
+	/*
+	 * Releases any resources held by the store. Called once when the application exits.
+	 */
+	public void close() {}
+
+	/*
+	 * Starts watching the stored notes for changes made by other programs, which are then reloaded into the open notes. Only stores that keep
+	 * the notes in files that other programs can change support this, so it does nothing by default.
+	 */
+	public void watch() {}
+
+	/*
+	 * Makes all the records written so far durable.
+	 */
+	protected void sync() throws IOException {}
+
+	/*
+	 * Returns the record stored for the note fileName as a ByteBuffer. Stores that can hand out their records without copying them override
+	 * this method.
+	 */
+	protected ByteBuffer readBuffer(String fileName) throws IOException {
+		byte[] record = readRecord(fileName);
+		return (record == null)? null : ByteBuffer.wrap(record);
+	}
+
+	/*
+	 * Saves the NoteData to the store. If only the edits of a large note need to be saved, they are appended to its delta log. Returns true if
+	 * only the edits were saved.
+	 */
+	public boolean save(NoteData data) {
+		if(deltas.append(data))
+			return true;
+
+		try {
+			writeRecord(data.fileName, encode(data));
+			deltas.reset(data);
+		}
+		catch(IOException e) {
+			logger.error("Error while saving note {} : {}", data.fileName, e.getMessage());
+			deltas.invalidate(data.fileName);
+		}
+		return false;
+	}
+
+	/*
+	 * Loads the NoteData stored with the file name fileName. Returns null if the note could not be loaded.
+	 */
+	public NoteData load(String fileName) {
+		try {
+			ByteBuffer record = readBuffer(fileName);
+			if(record == null)
+				return null;
+
+			NoteData data = NoteCodec.decode(record);
+			deltas.apply(data);
+			return data;
+		}
+		catch(IOException e) {
+			logger.error("Error while loading note {} : {}", fileName, e.getMessage());
+		}
+		return null;
+	}
+
+	/*
+	 * Loads all the stored notes, decoding them in parallel on a fork-join pool. Notes that could not be loaded are skipped.
+	 */
+	public NoteData[] loadAll() {
+		String[] fileNames = getFileNames();
+		NoteData[] loaded = new NoteData[fileNames.length];
+		long start = System.nanoTime();
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new LoadTask(fileNames, loaded, 0, fileNames.length));
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		ArrayList<NoteData> noteData = new ArrayList<NoteData>(loaded.length);
+		for(NoteData d : loaded)
+			if(d != null)
+				noteData.add(d);
+
+		long time = (System.nanoTime() - start) / 1000000;
+		logger.info("Decoded {} note(s) in {}ms using {} thread(s)", noteData.size(), time, pool.getParallelism());
+		return noteData.toArray(new NoteData[noteData.size()]);
+	}
+
+	/*
+	 * Deletes the note with the file name fileName from the store.
+	 */
+	public void delete(String fileName) {
+		try {
+			deleteRecord(fileName);
+			deltas.discard(fileName);
+		}
+		catch(IOException e) {
+			logger.error("Error while deleting note {} : {}", fileName, e.getMessage());
+		}
+	}
+
+	/*
+	 * Returns a file containing the stored note fileName, so that it can be uploaded by the Synchronizer. The returned file must be handed
+	 * back using NoteStore#releaseExport(File) once it is no longer required.
+	 */
+	public File exportNote(String fileName) throws IOException {
+		byte[] record;
+		if(hasDeltas(fileName)) {
+			NoteData data = load(fileName);
+			record = (data == null)? null : encode(data);
+		}
+		else
+			record = readRecord(fileName);
+		if(record == null)
+			throw new IOException("No such note : " + fileName);
+		record = NoteCompression.compress(record); //Records written before compression was enabled
+
+		File file = File.createTempFile("export", ".tmp", folder);
+		writeFile(file, record);
+		return file;
+	}
+
+	/*
+	 * Releases a file returned by NoteStore#exportNote(String).
+	 */
+	public void releaseExport(File file) {
+		file.delete();
+	}
+
+	/*
+	 * Stores the note contained in file (as downloaded by the Synchronizer) with the file name fileName. The file is consumed by this method.
+	 * Returns the imported NoteData, or null if the file does not contain a valid note.
+	 */
+	public NoteData importNote(String fileName, File file) {
+		try {
+			byte[] record = readFile(file);
+			NoteData data = decode(record);
+			writeRecord(fileName, record);
+			deltas.discard(fileName);
+			return data;
+		}
+		catch(IOException e) {
+			logger.error("Error while importing note {} : {}", fileName, e.getMessage());
+			return null;
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/*
+	 * Checks whether edits of the note fileName are kept in its delta log, i.e. whether its stored record is not up to date.
+	 */
+	protected boolean hasDeltas(String fileName) {
+		return deltas.exists(fileName);
+	}
+
+	/*
+	 * Migrates the .note files in the note folder into this store, and moves them into the migrated folder. Used by stores that do not keep
+	 * the notes in .note files, the first time they are opened.
+	 */
+	protected void migrateNoteFiles() throws IOException {
+		File[] noteFiles = folder.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".note");
+			}
+		});
+		if(noteFiles == null || noteFiles.length == 0)
+			return;
+
+		logger.info("Migrating {} note file(s) into the note store", noteFiles.length);
+		ArrayList<File> migrated = new ArrayList<File>();
+		for(File f : noteFiles) {
+			try {
+				byte[] record = readFile(f);
+				writeRecord(f.getName(), encode(decode(record))); //Only migrate valid notes, and convert them to the current format
+				migrated.add(f);
+			}
+			catch(IOException e) {
+				logger.error("Unable to migrate note file {} : {}", f.getName(), e.getMessage());
+			}
+		}
+		sync();
+
+		File migratedFolder = new File(folder, "migrated");
+		migratedFolder.mkdirs();
+		for(File f : migrated)
+			if(!f.renameTo(new File(migratedFolder, f.getName())))
+				logger.warn("Unable to move migrated note file {}", f.getName());
+	}
+
+	/*
+	 * Encodes a NoteData into a record, compressing it if NoteCompression is enabled.
+	 */
+	protected static byte[] encode(NoteData data) {
+		return NoteCompression.compress(NoteCodec.encode(data));
+	}
+
+	/*
+	 * Decodes a record into a NoteData.
+	 */
+	protected static NoteData decode(byte[] record) throws IOException {
+		return NoteCodec.decode(record);
+	}
+
+	/*
+	 * Reads the entire contents of file.
+	 */
+	protected static byte[] readFile(File file) throws IOException {
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			dis.readFully(bytes);
+			return bytes;
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+	/*
+	 * Writes bytes to file, replacing its contents.
+	 */
+	protected static void writeFile(File file, byte[] bytes) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file, false);
+		try {
+			fos.write(bytes);
+		}
+		finally {
+			fos.close();
+		}
+	}
+
+	/*
+	 * Loads a range of notes, splitting it into smaller ranges that are loaded in parallel.
+	 */
+	private class LoadTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private static final int BATCH = 64;
+
+		private String[] fileNames;
+		private NoteData[] loaded;
+		private int from, to;
+
+		LoadTask(String[] fileNames, NoteData[] loaded, int from, int to) {
+			this.fileNames = fileNames;
+			this.loaded = loaded;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= BATCH) {
+				for(int i=from; i<to; i++)
+					loaded[i] = load(fileNames[i]);
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new LoadTask(fileNames, loaded, from, middle), new LoadTask(fileNames, loaded, middle, to));
+		}
+	}
+
+	/*
+	 * Opens the NoteStore selected by the jstickies.store system property for the folder folder.
+	 */
+	public static NoteStore getStore(File folder) {
+		String type = System.getProperty("jstickies.store", "file");
+		logger.info("Opening {} note store", type);
+
+		if(type.equals("log"))
+			return new LogNoteStore(folder);
+		if(type.equals("mmap"))
+			return new MappedNoteStore(folder);
+		return new FileNoteStore(folder);
+	}
+}
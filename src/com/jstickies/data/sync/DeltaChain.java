@@ -0,0 +1,149 @@
+/*
+ * This class represents the delta chain of a note on the server : the note file, which is a snapshot of the note, followed by the files of the
+ * Deltas (see TextHistory.Delta) that were uploaded since the snapshot, in order. The server MetaData keeps the chain of every note that has
+ * been uploaded with its history, and the local MetaData keeps a copy of the chain of every note as of its last synchronization, so the
+ * Synchronizer only downloads the Deltas that were added since then.
+ *
+ * The generation changes whenever the snapshot is replaced, i.e. when the chain is compacted (see Synchronizer.Merge). A copy with an older
+ * generation must then be merged with the new snapshot.
+ *
+ * The chain also keeps the version that every computer had merged when it last updated the chain, so that the tombstones that every
+ * computer has seen can be removed (see TextHistory#collect(VersionVector)). Nothing is removed until every device that has edited the note has recorded what it
+ * has seen, and chains saved by older versions do not record it, so nothing is removed until their snapshot is replaced.
+ */
+
+package com.jstickies.data.sync;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import com.jstickies.data.TextHistory;
+import com.jstickies.data.VersionVector;
+
+class DeltaChain implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final Random random = new Random();
+
+	final long generation;
+	final ArrayList<String> files; //Server files of the Deltas, in the order they were uploaded
+	final VersionVector version; //Version of the note after the snapshot and all the Deltas
+	final int bytes; //Total size of the Deltas
+	final VersionVector base; //Version of the snapshot
+	final HashMap<Long, VersionVector> seen; //Version merged by every computer, by device
+
+	/*
+	 * Creates the chain of a note whose snapshot, with the history history, has just been uploaded.
+	 */
+	DeltaChain(TextHistory history) {
+		this(random.nextLong(), new ArrayList<String>(), history.getVersion(), 0, history.getVersion(), snapshot(null, history));
+	}
+
+	private DeltaChain(long generation, ArrayList<String> files, VersionVector version, int bytes, VersionVector base,
+			HashMap<Long, VersionVector> seen) {
+		this.generation = generation;
+		this.files = files;
+		this.version = version;
+		this.bytes = bytes;
+		this.base = base;
+		this.seen = seen;
+	}
+
+	/*
+	 * Returns the chain after the Delta with the version version has been uploaded to the server file file.
+	 */
+	DeltaChain append(String file, int size, VersionVector version) {
+		ArrayList<String> files = new ArrayList<String>(this.files);
+		files.add(file);
+		return new DeltaChain(generation, files, version, bytes + size, base, seen(seen, version));
+	}
+
+	/*
+	 * Returns the chain after its snapshot has been replaced by a snapshot with the history history. The computers keep what they have seen.
+	 */
+	DeltaChain compact(TextHistory history) {
+		return new DeltaChain(random.nextLong(), new ArrayList<String>(), history.getVersion(), 0, history.getVersion(), snapshot(seen, history));
+	}
+
+	/*
+	 * Returns the chain after this computer has merged it, and has the version version.
+	 */
+	DeltaChain acknowledge(VersionVector version) {
+		if(version.equals(this.version))
+			version = this.version; //Serialized once
+		return new DeltaChain(generation, files, this.version, bytes, base, seen(seen, version));
+	}
+
+	/*
+	 * Checks whether the chain records that this computer has seen its snapshot. Nothing newer than the snapshot is removed (see
+	 * DeltaChain#getStableVersion()), so every computer only has to record what it has merged once per snapshot.
+	 */
+	boolean isAcknowledged() {
+		return base == null || (seen != null && seen.containsKey(TextHistory.DEVICE) && seen.get(TextHistory.DEVICE).dominates(base));
+	}
+
+	/*
+	 * Returns the version that every computer that has merged the chain has seen. Computers that download the note later start from the
+	 * snapshot, which may be the only thing they have seen, so the version is at most the version of the snapshot. The version is empty
+	 * until every device that has edited the note has recorded what it has seen, since a computer that has not may still need any tombstone.
+	 */
+	VersionVector getStableVersion() {
+		VersionVector stable = new VersionVector();
+		if(base == null || seen == null || !seen.keySet().containsAll(base.getDevices()))
+			return stable;
+		for(long device : base.getDevices()) {
+			long counter = base.get(device);
+			for(VersionVector v : seen.values())
+				counter = Math.min(counter, v.get(device));
+			stable.advance(device, counter);
+		}
+		return stable;
+	}
+
+	/*
+	 * Returns a copy of seen in which this computer has seen version.
+	 */
+	private static HashMap<Long, VersionVector> seen(HashMap<Long, VersionVector> seen, VersionVector version) {
+		HashMap<Long, VersionVector> copy = (seen == null)? new HashMap<Long, VersionVector>() : new HashMap<Long, VersionVector>(seen);
+		copy.put(TextHistory.DEVICE, version);
+		return copy;
+	}
+
+	/*
+	 * Returns a copy of seen in which this computer has seen the snapshot with the history history. The device of the text the history was
+	 * created from never edits the note, so it has seen everything it will ever see (see TextHistory#getGenesis()).
+	 */
+	private static HashMap<Long, VersionVector> snapshot(HashMap<Long, VersionVector> seen, TextHistory history) {
+		HashMap<Long, VersionVector> copy = seen(seen, history.getVersion());
+		if(history.getGenesis() != 0)
+			copy.put(history.getGenesis(), history.getVersion());
+		return copy;
+	}
+
+	/*
+	 * Checks whether the Delta in the server file file is part of this chain.
+	 */
+	boolean contains(String file) {
+		return files.contains(file);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof DeltaChain))
+			return false;
+		DeltaChain c = (DeltaChain) o;
+		return generation == c.generation && files.equals(c.files);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) generation ^ files.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "generation " + Long.toHexString(generation) + ", " + files.size() + " delta(s), " + bytes + " bytes";
+	}
+}
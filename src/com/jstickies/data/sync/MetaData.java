@@ -1,17 +1,49 @@
 /*
  * This class represents the metadata associated with every .note file. It is used by the Synchronizer to synchronize files between the server
  * and disk
+ *
+ * For every note, the metadata contains an update count, which is incremented every time the contents of the note change, along with the
+ * hash and size of the encoded note. Notes with equal hashes on the server and the disk are not transferred. MetaData saved before the hashes
+ * were added is still read, with no hashes for its notes.
+ *
+ * Notes that have been uploaded with their edit history also have a DeltaChain, which lists the Deltas uploaded since the note file. In the
+ * server MetaData it is the chain on the server, and in the local MetaData it is the chain as of the last synchronization.
+ *
+ * The entries are kept in an open-addressing table of immutable entries, one per note, which hold the counters, hashes and sizes as
+ * primitive fields instead of the boxed values of the HashMaps that older versions kept. It is serialized with the same fields as those
+ * HashMaps, so the server MetaData can be read by every version. Every change of the local MetaData is appended to its change log (see
+ * MetaDataLog) as it is made, so changes are durable without serializing the whole MetaData. The local MetaData is serialized as a
+ * checkpoint after every synchronization, or, on a background thread, once the log has more records than there are notes.
+ *
+ * The local MetaData is changed by the AutoSaver, the EDT and the Synchronizer at the same time. A change replaces the entry of its file
+ * with a compare-and-set and queues it for the writer thread of the log, so changes do not wait for each other or for the disk, and readers
+ * never lock. Only growing the table and taking the checkpoint cut hold the table lock exclusively. The Synchronizer compares an immutable snapshot (see
+ * MetaData#snapshot()), which only copies the table, while notes keep being saved.
  */
 
 package com.jstickies.data.sync;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.jstickies.JStickies;
+import com.jstickies.data.NoteCodec;
 import com.jstickies.data.NoteData;
-import java.util.HashMap;
-import java.util.Iterator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,29 +51,204 @@ import org.slf4j.LoggerFactory;
 public class MetaData implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
-	private HashMap<String, Long> hashMap;
+	private static final ObjectStreamField[] serialPersistentFields = { //The HashMaps kept by older versions
+		new ObjectStreamField("hashMap", HashMap.class),
+		new ObjectStreamField("contentHashes", HashMap.class), //Not present in MetaData saved by older versions
+		new ObjectStreamField("contentSizes", HashMap.class),
+		new ObjectStreamField("deltaChains", HashMap.class) //Not present in MetaData saved by older versions
+	};
+	private static final int MIN_CAPACITY = 16;
+	private static final int MIN_CHECKPOINT_RECORDS = 1024; //The log is checkpointed once it has more records than this and the note count
 	private static final Logger logger = LoggerFactory.getLogger(MetaData.class);
 	
 	public static String fileName = "metadata";
 	public static File metaDataFile = new File(JStickies.NOTE_FOLDER + "/" + fileName);
+	static File serverMetaDataFile = new File(JStickies.NOTE_FOLDER + "/" + fileName + ".server"); //Copy of the server metadata
+	static File logFile = new File(JStickies.NOTE_FOLDER + "/" + fileName + ".log");
+	
+	private transient volatile AtomicReferenceArray<Entry> table; //Indexed by the hash of the file name, with linear probing
+	private transient AtomicInteger count;
+	private transient AtomicLong sequence; //Numbers the changes, so that the records of the log can be ordered
+	private transient ReentrantReadWriteLock lock; //Shared by changes, held exclusively to grow the table or take a checkpoint
+	private transient MetaDataLog log; //Only for the local MetaData
+	private transient AtomicBoolean checkpointing; //A checkpoint is being taken on a background thread
+	private transient boolean readOnly; //Set for snapshots
 	
+	/*
+	 * Creates the local MetaData from the stored notes, with an update count of 1 for every note.
+	 */
 	public MetaData() {
 		logger.info("Creating new MetaData");
 		NoteData[] noteData = NoteData.getSavedData();
 		
-		hashMap = new HashMap<String, Long>();
-		for(NoteData n : noteData)
-			hashMap.put(n.fileName, 1L);
+		init((noteData == null)? 0 : noteData.length);
+		if(noteData != null)
+			for(NoteData n : noteData) {
+				byte[] record = NoteCodec.encode(n);
+				addNote(n.fileName, 1L, hash(record), record.length);
+			}
 		
+		openLog(false);
 		saveMetaData();
 	}
 	
 	/*
-	 * Saves this MetaData object to disk. 
+	 * Creates a read-only snapshot with the entries of table.
+	 */
+	private MetaData(AtomicReferenceArray<Entry> table, int count) {
+		this.table = table;
+		this.count = new AtomicInteger(count);
+		sequence = new AtomicLong();
+		lock = new ReentrantReadWriteLock();
+		readOnly = true;
+	}
+	
+	/*
+	 * Loads the local MetaData from its last checkpoint, and replays the changes logged since then. Creates the MetaData from the stored notes
+	 * if there is no checkpoint.
+	 */
+	public static MetaData load() {
+		MetaData metaData = (metaDataFile.exists())? getMetaData(metaDataFile) : null;
+		if(metaData == null)
+			return new MetaData();
+		
+		metaData.openLog(true);
+		return metaData;
+	}
+	
+	/*
+	 * Opens the change log, replaying it if replay is set. Else the logs are discarded, since they do not apply to this MetaData.
+	 */
+	private void openLog(boolean replay) {
+		try {
+			MetaDataLog log = new MetaDataLog(logFile);
+			if(replay) {
+				long start = System.nanoTime();
+				int records = log.replay(this);
+				logger.info("Replayed {} change(s) of the MetaData in {}ms", records, (System.nanoTime() - start) / 1000000);
+			}
+			else {
+				log.clear();
+				log.discardRotated();
+			}
+			this.log = log;
+		}
+		catch(IOException e) {
+			logger.error("Unable to open the MetaData log. Changes are only saved at synchronizations : {}", e.getMessage());
+		}
+	}
+	
+	/*
+	 * Reads a MetaData object from the HashMaps of its serialized form. MetaData saved by older versions has no content hashes or delta chains.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		HashMap<String, Long> hashMap = (HashMap<String, Long>) fields.get("hashMap", null);
+		HashMap<String, Long> contentHashes = (HashMap<String, Long>) fields.get("contentHashes", null);
+		HashMap<String, Integer> contentSizes = (HashMap<String, Integer>) fields.get("contentSizes", null);
+		HashMap<String, DeltaChain> deltaChains = (HashMap<String, DeltaChain>) fields.get("deltaChains", null);
+		if(hashMap == null)
+			hashMap = new HashMap<String, Long>();
+		if(deltaChains == null)
+			deltaChains = new HashMap<String, DeltaChain>();
+		
+		init(hashMap.size());
+		for(Map.Entry<String, Long> e : hashMap.entrySet()) {
+			Long hash = (contentHashes == null)? null : contentHashes.get(e.getKey());
+			Integer size = (contentSizes == null)? null : contentSizes.get(e.getKey());
+			boolean known = hash != null && size != null;
+			apply(new Entry(e.getKey(), e.getValue(), (known)? hash : 0, (known)? size : 0, deltaChains.get(e.getKey()), 0));
+		}
+		for(Map.Entry<String, DeltaChain> e : deltaChains.entrySet())
+			if(!hashMap.containsKey(e.getKey()))
+				apply(new Entry(e.getKey(), -1, 0, 0, e.getValue(), 0));
+	}
+	
+	/*
+	 * Writes this MetaData as the HashMaps that older versions kept.
 	 */
-	void saveMetaData() {
-		logger.info("Saving MetaData to disk");
-		JStickies.saveFile(metaDataFile, this);
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		HashMap<String, Long> hashMap = new HashMap<String, Long>(), contentHashes = new HashMap<String, Long>();
+		HashMap<String, Integer> contentSizes = new HashMap<String, Integer>();
+		HashMap<String, DeltaChain> deltaChains = new HashMap<String, DeltaChain>();
+		AtomicReferenceArray<Entry> table = this.table;
+		for(int i=0; i<table.length(); i++) {
+			Entry e = table.get(i);
+			if(e == null)
+				continue;
+			if(e.update >= 0)
+				hashMap.put(e.fileName, e.update);
+			if(e.hash != 0) {
+				contentHashes.put(e.fileName, e.hash);
+				contentSizes.put(e.fileName, e.size);
+			}
+			if(e.chain != null)
+				deltaChains.put(e.fileName, e.chain);
+		}
+		
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("hashMap", hashMap);
+		fields.put("contentHashes", contentHashes);
+		fields.put("contentSizes", contentSizes);
+		fields.put("deltaChains", deltaChains);
+		out.writeFields();
+	}
+	
+	/*
+	 * Saves this MetaData object to disk. For the local MetaData, this is a checkpoint : a snapshot is taken while no change is being made,
+	 * and the log is rotated at the same time, so the log only has to keep the changes made after the snapshot once it has been written.
+	 */
+	synchronized void saveMetaData() {
+		if(log == null) {
+			saveMetaData(metaDataFile);
+			return;
+		}
+		
+		MetaData snapshot;
+		lock.writeLock().lock();
+		try {
+			snapshot = snapshot();
+			log.rotate();
+		}
+		catch(IOException e) {
+			logger.error("Unable to rotate the MetaData log : {}", e.getMessage());
+			return;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		
+		if(snapshot.saveMetaData(metaDataFile))
+			log.discardRotated();
+	}
+	
+	/*
+	 * Saves this MetaData object to file. Returns true if it was saved.
+	 */
+	boolean saveMetaData(File file) {
+		logger.info("Saving MetaData to file : {}", file.getName());
+		return JStickies.saveFileAndWait(file, this);
+	}
+	
+	/*
+	 * Waits until all the changes made so far have been written to the change log, and until a checkpoint that is being taken has been
+	 * written. If the changes could not be written to the log, the MetaData is saved in full instead.
+	 */
+	public synchronized void flush() {
+		if(log == null)
+			return;
+		log.flush();
+		try {
+			while(checkpointing.get())
+				wait();
+		}
+		catch(InterruptedException e) {
+			logger.warn("Interrupted while waiting for a checkpoint of the MetaData");
+			Thread.currentThread().interrupt();
+		}
+		if(log.hasFailed())
+			saveMetaData();
 	}
 	
 	/*
@@ -52,22 +259,98 @@ public class MetaData implements Serializable {
 		return (MetaData) JStickies.loadFile(file); 
 	}
 	
+	/*
+	 * Returns an immutable snapshot of this MetaData, which the Synchronizer can compare while notes are being saved. Since entries are 
+	 * immutable, only the table is copied. Every entry of the snapshot is consistent, though changes made while it is being taken may or may
+	 * not be in it.
+	 */
+	public MetaData snapshot() {
+		AtomicReferenceArray<Entry> table = this.table;
+		Entry[] entries = new Entry[table.length()];
+		for(int i=0; i<entries.length; i++)
+			entries[i] = table.get(i);
+		return new MetaData(new AtomicReferenceArray<Entry>(entries), count.get());
+	}
+	
+	/*
+	 * Updates the metadata for the note data. Called everytime NoteData is saved. The update count is only incremented if the encoded note 
+	 * differs from the one that was last recorded.
+	 */
+	public void updateNote(NoteData data) {
+		byte[] record = NoteCodec.encode(data);
+		final long hash = hash(record);
+		final int size = record.length;
+		
+		Entry e = change(data.fileName, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				if(e == null || e.update == -1) //If there is no entry for the file, then create one
+					return new Entry(fileName, 1L, hash, size, chain(e), sequence);
+				if(e.update > 0 && e.hash == hash)
+					return e;
+				return new Entry(fileName, e.update + 1L, hash, size, e.chain, sequence);
+			}
+		});
+		logger.info("Metadata for file {} updated to {}", data.fileName, e.update);
+	}
 	
 	/*
-	 * Updates the metadata for the file fileName. Called everytime NoteData is saved. 
+	 * Increments the update count of a note that was saved incrementally, and clears the hash of its contents until it is set by
+	 * MetaData#setContentHash(NoteData, long). Returns the new update count.
 	 */
-	public void updateNote(String fileName) {
-		if(hashMap.containsKey(fileName)) //If there is already an entry for the file, then update it
-			addNote(fileName, hashMap.get(fileName).longValue() + 1L);
-		else //Else create a new entry
-			addNote(fileName, 1L);
+	public long touchNote(String fileName) {
+		Entry e = change(fileName, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				if(e == null || e.update == -1)
+					return new Entry(fileName, 1L, 0, 0, chain(e), sequence);
+				return new Entry(fileName, e.update + 1L, 0, 0, e.chain, sequence);
+			}
+		});
+		logger.info("Metadata for file {} updated to {}", fileName, e.update);
+		return e.update;
 	}
 	
 	/*
-	 * Adds the metadata for a new file into the HashMap. Works even if the metadata for the file already exists.
+	 * Sets the hash and size of the contents of a note that was saved incrementally, unless it has been changed since its update count was
+	 * set to update.
 	 */
-	public void addNote(String fileName, long update) {
-		hashMap.put(fileName, update);
+	public void setContentHash(NoteData data, final long update) {
+		byte[] record = NoteCodec.encode(data);
+		final long hash = hash(record);
+		final int size = record.length;
+		
+		change(data.fileName, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				if(e == null || e.update != update || e.hash != 0)
+					return e;
+				return new Entry(fileName, e.update, hash, size, e.chain, sequence);
+			}
+		});
+	}
+	
+	/*
+	 * Adds the metadata for a new file. Works even if the metadata for the file already exists, in which case the hash and size of its
+	 * contents are kept.
+	 */
+	public void addNote(String fileName, final long update) {
+		change(fileName, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				if(e == null)
+					return new Entry(fileName, update, 0, 0, null, sequence);
+				return new Entry(fileName, update, e.hash, e.size, e.chain, sequence);
+			}
+		});
+		logger.info("Metadata for file {} updated to {}", fileName, update);
+	}
+	
+	/*
+	 * Adds the metadata for a file along with the hash and size of its contents. A hash of 0 means that the contents are not known.
+	 */
+	public void addNote(String fileName, final long update, final long hash, final int size) {
+		change(fileName, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				return new Entry(fileName, update, hash, (hash == 0)? 0 : size, chain(e), sequence);
+			}
+		});
 		logger.info("Metadata for file {} updated to {}", fileName, update);
 	}
 	
@@ -75,22 +358,378 @@ public class MetaData implements Serializable {
 	 * Deletes the metadata for the file fileName. It basically sets the update count for the file fileName to 0.
 	 */
 	public void deleteNote(String fileName) {
-		addNote(fileName, 0L);
+		addNote(fileName, 0L, 0L, 0);
+	}
+	
+	/*
+	 * Sets the update count of the file to update, if it is still expect. Returns false if it was changed.
+	 */
+	public boolean compareAndSetUpdate(String fileName, final long expect, final long update) {
+		final boolean[] set = new boolean[1];
+		change(fileName, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				set[0] = e != null && e.update == expect;
+				return (set[0])? new Entry(fileName, update, e.hash, e.size, e.chain, sequence) : e;
+			}
+		});
+		if(set[0])
+			logger.info("Metadata for file {} updated to {}", fileName, update);
+		return set[0];
+	}
+	
+	/*
+	 * Sets the update count of the file to one more than the larger of its update count and floor, and returns the new update count. Used
+	 * for changes that must be newer than both copies of a note.
+	 */
+	public long advanceUpdate(String fileName, final long floor) {
+		Entry e = change(fileName, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				long update = Math.max(floor, (e == null)? -1 : e.update) + 1;
+				return new Entry(fileName, update, (e == null)? 0 : e.hash, (e == null)? 0 : e.size, chain(e), sequence);
+			}
+		});
+		logger.info("Metadata for file {} updated to {}", fileName, e.update);
+		return e.update;
 	}
 	
 	/*
 	 * Returns the update count of the file.
 	 */
 	public long getUpdateCount(String s) {
-		if(hashMap.containsKey(s))
-			return hashMap.get(s);
-		return -1;
+		Entry e = get(s);
+		return (e == null)? -1 : e.update;
+	}
+	
+	/*
+	 * Returns the hash of the contents of the file, or 0 if it is not known.
+	 */
+	public long getContentHash(String s) {
+		Entry e = get(s);
+		return (e == null)? 0 : e.hash;
+	}
+	
+	/*
+	 * Returns the size of the contents of the file, or -1 if it is not known.
+	 */
+	public int getContentSize(String s) {
+		Entry e = get(s);
+		return (e == null || e.hash == 0)? -1 : e.size;
+	}
+	
+	/*
+	 * Checks whether the contents of the file are known to be the same in this MetaData and in metaData.
+	 */
+	public boolean hasSameContent(String s, MetaData metaData) {
+		Entry e = get(s), other = metaData.get(s);
+		return e != null && other != null && e.hash != 0 && e.hash == other.hash && e.size == other.size;
+	}
+	
+	/*
+	 * Returns the delta chain of the file, or null if it has none.
+	 */
+	DeltaChain getDeltaChain(String s) {
+		Entry e = get(s);
+		return (e == null)? null : e.chain;
 	}
 	
 	/*
-	 * Returns an Iterator over the filenames. 
+	 * Sets the delta chain of the file.
+	 */
+	void setDeltaChain(String s, final DeltaChain chain) {
+		change(s, new Change() {
+			public Entry apply(String fileName, Entry e, long sequence) {
+				if(e == null)
+					return new Entry(fileName, -1, 0, 0, chain, sequence);
+				return new Entry(fileName, e.update, e.hash, e.size, chain, sequence);
+			}
+		});
+		logger.debug("Delta chain of file {} updated to {}", s, chain);
+	}
+	
+	/*
+	 * Returns the hash of an encoded note, which is the first 8 bytes of its SHA-1 digest. Never returns 0.
+	 */
+	public static long hash(byte[] record) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(record);
+			long hash = 0;
+			for(int i=0; i<8; i++)
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			return (hash == 0)? 1 : hash;
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e); //Every Java platform is required to support SHA-1
+		}
+	}
+	
+	/*
+	 * Returns an Iterator over the filenames. Files that are added while iterating may not be returned.
 	 */
 	public Iterator<String> getFilenameIterator() {
-		return hashMap.keySet().iterator();
+		final AtomicReferenceArray<Entry> table = this.table;
+		
+		return new Iterator<String>() {
+			private Entry next = advance(0);
+			private int index;
+			
+			public boolean hasNext() {
+				return next != null;
+			}
+			
+			public String next() {
+				if(next == null)
+					throw new NoSuchElementException();
+				String fileName = next.fileName;
+				next = advance(index + 1);
+				return fileName;
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+			
+			private Entry advance(int i) {
+				for(; i<table.length(); i++) {
+					Entry e = table.get(i);
+					if(e != null && e.update >= 0) {
+						index = i;
+						return e;
+					}
+				}
+				return null;
+			}
+		};
+	}
+	
+	/*
+	 * Applies an entry replayed from the change log or read from the serialized form, unless the entry of its file was made by a later change.
+	 * Only used while the MetaData is being loaded, so the table is not shared yet.
+	 */
+	void apply(Entry entry) {
+		AtomicReferenceArray<Entry> table = this.table;
+		int i = slot(table, entry.fileName);
+		Entry e = table.get(i);
+		if(e != null && e.sequence > entry.sequence)
+			return;
+		
+		table.set(i, entry);
+		if(e == null && count.incrementAndGet() * 4 > table.length() * 3)
+			grow();
+		if(entry.sequence > sequence.get())
+			sequence.set(entry.sequence);
+	}
+	
+	/*
+	 * Returns the entry of the file, or null if it has none.
+	 */
+	Entry get(String fileName) {
+		AtomicReferenceArray<Entry> table = this.table;
+		int mask = table.length() - 1;
+		for(int i=hash(fileName) & mask, probes=0; probes<=mask; i=(i + 1) & mask, probes++) {
+			Entry e = table.get(i);
+			if(e == null || e.fileName.equals(fileName))
+				return e;
+		}
+		return null;
+	}
+	
+	/*
+	 * Makes a change to the entry of the file fileName, and appends the changed entry to the log. Returns the entry after the change.
+	 */
+	private Entry change(String fileName, Change change) {
+		if(readOnly)
+			throw new IllegalStateException("A snapshot of the MetaData cannot be changed");
+		
+		while(true) {
+			Changed changed;
+			boolean logged = true, grow;
+			lock.readLock().lock();
+			try {
+				changed = tryChange(fileName, change);
+				if(changed != null && changed.logged && log != null)
+					try {
+						log.append(changed.entry);
+					}
+					catch(IOException e) {
+						logger.error("Unable to append to the MetaData log : {}", e.getMessage());
+						logged = false;
+					}
+				grow = changed == null || count.get() * 4 > table.length() * 3;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+			
+			if(grow)
+				grow();
+			if(changed == null)
+				continue; //The table was full
+			if(log != null && (!logged || needsCheckpoint()))
+				checkpointLater(); //Also saves a change that could not be logged
+			return changed.entry;
+		}
+	}
+	
+	/*
+	 * Applies change to the entry of the file fileName with a compare-and-set, applying it again if the entry was changed concurrently.
+	 * Returns null if the file has no entry and the table is full.
+	 */
+	private Changed tryChange(String fileName, Change change) {
+		AtomicReferenceArray<Entry> table = this.table;
+		int mask = table.length() - 1;
+		int i = hash(fileName) & mask, probes = 0;
+		while(probes <= mask) {
+			Entry e = table.get(i);
+			if(e != null && !e.fileName.equals(fileName)) {
+				i = (i + 1) & mask;
+				probes++;
+				continue;
+			}
+			
+			Entry entry = change.apply(fileName, e, sequence.incrementAndGet());
+			if(entry == e)
+				return new Changed(e, false);
+			if(table.compareAndSet(i, e, entry)) {
+				if(e == null)
+					count.incrementAndGet();
+				return new Changed(entry, true);
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Checks whether the log has grown beyond the size of the MetaData, or could not be written.
+	 */
+	private boolean needsCheckpoint() {
+		return log.hasFailed() || log.getRecords() > Math.max(MIN_CHECKPOINT_RECORDS, count.get());
+	}
+	
+	/*
+	 * Takes a checkpoint on a background thread, unless one is already being taken, so that the thread making a change (which may be the EDT)
+	 * does not wait for it.
+	 */
+	private void checkpointLater() {
+		if(!checkpointing.compareAndSet(false, true))
+			return;
+		
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					logger.debug("Checkpointing the MetaData after {} change(s)", log.getRecords());
+					saveMetaData();
+				}
+				finally {
+					synchronized(MetaData.this) {
+						checkpointing.set(false);
+						MetaData.this.notifyAll();
+					}
+				}
+			}
+		}, "MetaData checkpoint");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/*
+	 * Creates an empty table for about size entries.
+	 */
+	private void init(int size) {
+		int capacity = MIN_CAPACITY;
+		while(capacity * 3 < size * 4)
+			capacity <<= 1;
+		table = new AtomicReferenceArray<Entry>(capacity);
+		count = new AtomicInteger();
+		sequence = new AtomicLong();
+		lock = new ReentrantReadWriteLock();
+		checkpointing = new AtomicBoolean();
+	}
+	
+	/*
+	 * Doubles the capacity of the table, if it is still more than three quarters full.
+	 */
+	private void grow() {
+		lock.writeLock().lock();
+		try {
+			AtomicReferenceArray<Entry> old = table;
+			if(count.get() * 4 <= old.length() * 3)
+				return;
+			
+			AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<Entry>(old.length() * 2);
+			for(int i=0; i<old.length(); i++) {
+				Entry e = old.get(i);
+				if(e != null)
+					grown.set(slot(grown, e.fileName), e);
+			}
+			table = grown;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/*
+	 * Returns the slot of the file in table, i.e. the slot holding its entry or the free slot where it would be added. The table must not be
+	 * full.
+	 */
+	private static int slot(AtomicReferenceArray<Entry> table, String fileName) {
+		int mask = table.length() - 1;
+		int i = hash(fileName) & mask;
+		while(table.get(i) != null && !table.get(i).fileName.equals(fileName))
+			i = (i + 1) & mask;
+		return i;
+	}
+	
+	private static int hash(String fileName) {
+		int h = fileName.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private static DeltaChain chain(Entry e) {
+		return (e == null)? null : e.chain;
+	}
+	
+	/*
+	 * The immutable entry of a file. A change replaces the entry of its file, so readers always see a consistent entry.
+	 */
+	static class Entry {
+		
+		final String fileName;
+		final long update; //-1 if the entry only has a delta chain
+		final long hash; //0 if the contents are not known
+		final int size;
+		final DeltaChain chain;
+		final long sequence; //Number of the change that made this entry, or 0 if it was read from a checkpoint
+		
+		Entry(String fileName, long update, long hash, int size, DeltaChain chain, long sequence) {
+			this.fileName = fileName;
+			this.update = update;
+			this.hash = hash;
+			this.size = size;
+			this.chain = chain;
+			this.sequence = sequence;
+		}
+	}
+	
+	/*
+	 * A change of the entry of the file fileName. Returns the entry after the change, numbered sequence, or e itself if nothing has to be
+	 * changed. e is null if the file has no entry. May be applied several times if the entry is changed concurrently.
+	 */
+	private interface Change {
+		Entry apply(String fileName, Entry e, long sequence);
+	}
+	
+	/*
+	 * The result of a change : the entry after it, and whether it has to be logged.
+	 */
+	private static class Changed {
+		
+		final Entry entry;
+		final boolean logged;
+		
+		Changed(Entry entry, boolean logged) {
+			this.entry = entry;
+			this.logged = logged;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,342 @@
+/*
+ * This class represents the change log of the local MetaData. Serializing the whole MetaData on every save of a note costs time proportional
+ * to the number of notes, so instead every change is appended to the log as it is made, and the MetaData is only serialized at checkpoints
+ * (see MetaData#saveMetaData()), after which the log is started again. Loading the MetaData reads the last checkpoint and replays the log.
+ *
+ * Log format :
+ * 	- Header - Magic 'J' 'M' and version (1 byte)
+ * 	- Records, until the end of the log. Every record is written as a type (1 byte), a length (int), the data and a CRC32 (int)
+ * 		- ENTRY - File name (UTF), the number of the change, update count and hash (3 longs), size (int) and, if the note has a delta chain
+ * 		  (boolean), the serialized DeltaChain of the note after the change
+ *
+ * Records hold the entry of a note after the change instead of the change itself, and changes made concurrently may be appended out of
+ * order, so a replayed entry only replaces an entry with a lower number. Replaying records that were already included in a checkpoint
+ * therefore gives the same MetaData.
+ *
+ * Appending a record only queues it. The log has its own writer thread, which writes the queued records in batches with a single fsync per
+ * batch (group commit), so a change never waits for the disk and the EDT never fsyncs. A change is durable once the batch that contains it
+ * has been written; MetaDataLog#flush() waits for that. If a batch cannot be written, the log is marked as failed and the MetaData takes a
+ * checkpoint, so that the changes are saved with it.
+ *
+ * At a checkpoint the log is rotated : it is renamed, and a new log is started for the changes made after the snapshot. The rotated log is
+ * deleted once the checkpoint has been written, and replayed along with the log if the checkpoint was not written. The log is truncated at
+ * the first record that is torn.
+ */
+
+package com.jstickies.data.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class MetaDataLog implements Runnable {
+
+	private static final byte MAGIC_0 = 'J', MAGIC_1 = 'M', VERSION = 2;
+	private static final byte ENTRY = 3;
+	private static final int HEADER = 3;
+	private static final Logger logger = LoggerFactory.getLogger(MetaDataLog.class);
+
+	private File logFile, rotatedFile;
+	private RandomAccessFile file; //Guarded by fileLock
+	private final Object fileLock = new Object();
+	private ArrayList<byte[]> queue; //Records waiting to be written, guarded by this
+	private long appended, written; //Records appended and records written since the log was opened, guarded by this
+	private volatile int records; //Records appended since the log was started
+	private volatile boolean failed; //A batch could not be written since the log was started
+
+	/*
+	 * Opens the log in logFile, creating it if it does not exist. The rotated log is kept next to it.
+	 */
+	MetaDataLog(File logFile) throws IOException {
+		this.logFile = logFile;
+		rotatedFile = new File(logFile.getPath() + ".old");
+		queue = new ArrayList<byte[]>();
+		file = new RandomAccessFile(logFile, "rw");
+		if(file.length() < HEADER)
+			clear();
+
+		Thread t = new Thread(this, "MetaDataLog");
+		t.setDaemon(true); //Queued records are flushed by JStickies#exit()
+		t.start();
+	}
+
+	/*
+	 * Applies the records of the rotated log and the log to metaData, and truncates the log after its last valid record. Returns the number of
+	 * records applied.
+	 */
+	int replay(MetaData metaData) throws IOException {
+		synchronized(fileLock) {
+			return replayLogs(metaData);
+		}
+	}
+
+	private int replayLogs(MetaData metaData) throws IOException {
+		int applied = 0;
+		if(rotatedFile.exists()) {
+			RandomAccessFile rotated = new RandomAccessFile(rotatedFile, "r");
+			try {
+				applied += replay(rotated, metaData, false);
+			}
+			finally {
+				rotated.close();
+			}
+		}
+		records = replay(file, metaData, true);
+		return applied + records;
+	}
+
+	/*
+	 * Queues the entry of a note after a change, to be appended by the writer thread.
+	 */
+	void append(MetaData.Entry e) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeUTF(e.fileName);
+		out.writeLong(e.sequence);
+		out.writeLong(e.update);
+		out.writeLong(e.hash);
+		out.writeInt(e.size);
+		out.writeBoolean(e.chain != null);
+		if(e.chain != null) {
+			ObjectOutputStream chain = new ObjectOutputStream(out);
+			chain.writeObject(e.chain);
+			chain.close();
+		}
+
+		byte[] data = bos.toByteArray();
+		ByteBuffer record = ByteBuffer.allocate(9 + data.length);
+		record.put(ENTRY).putInt(data.length).put(data);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, 5 + data.length);
+		record.putInt((int) crc.getValue());
+
+		synchronized(this) {
+			queue.add(record.array());
+			appended++;
+			records++;
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Waits until all the records appended so far have been written.
+	 */
+	synchronized void flush() {
+		long target = appended;
+		try {
+			while(written < target)
+				wait();
+		}
+		catch(InterruptedException e) {
+			logger.warn("Interrupted while waiting for the MetaData log");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Writes the queued records in batches, with a single fsync per batch.
+	 */
+	@Override
+	public void run() {
+		while(true) {
+			ArrayList<byte[]> batch;
+			synchronized(this) {
+				while(queue.isEmpty())
+					try {
+						wait();
+					}
+					catch(InterruptedException e) {
+						return;
+					}
+				batch = takeQueue();
+			}
+
+			synchronized(fileLock) {
+				write(batch, true);
+			}
+		}
+	}
+
+	/*
+	 * Takes the queued records. Must be called while holding the monitor of the log.
+	 */
+	private ArrayList<byte[]> takeQueue() {
+		ArrayList<byte[]> batch = queue;
+		queue = new ArrayList<byte[]>();
+		return batch;
+	}
+
+	/*
+	 * Writes a batch of records to the log, forcing it if force is set, and marks them as written. Must be called while holding fileLock.
+	 */
+	private void write(ArrayList<byte[]> batch, boolean force) {
+		if(batch.isEmpty())
+			return;
+		
+		int length = 0;
+		for(byte[] record : batch)
+			length += record.length;
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		for(byte[] record : batch)
+			bytes.put(record);
+
+		try {
+			file.write(bytes.array());
+			if(force)
+				file.getChannel().force(false);
+		}
+		catch(IOException e) {
+			logger.error("Unable to append {} record(s) to the MetaData log : {}", batch.size(), e.getMessage());
+			failed = true;
+		}
+		synchronized(this) {
+			written += batch.size();
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Rotates the log at a checkpoint. If the rotated log of an earlier checkpoint that was not written still exists, the log is kept
+	 * instead, since both are needed until a checkpoint is written.
+	 */
+	void rotate() throws IOException {
+		synchronized(fileLock) {
+			ArrayList<byte[]> batch;
+			synchronized(this) {
+				batch = takeQueue();
+			}
+			write(batch, true); //The queued records were made before the snapshot
+			if(rotatedFile.exists())
+				return;
+
+			file.close();
+			if(!logFile.renameTo(rotatedFile)) {
+				file = new RandomAccessFile(logFile, "rw");
+				file.seek(file.length());
+				throw new IOException("Unable to rename " + logFile.getName());
+			}
+			file = new RandomAccessFile(logFile, "rw");
+			clear();
+		}
+	}
+
+	/*
+	 * Deletes the rotated log, once the checkpoint that includes it has been written.
+	 */
+	void discardRotated() {
+		synchronized(fileLock) {
+			if(rotatedFile.exists() && !rotatedFile.delete())
+				logger.warn("Unable to delete the rotated MetaData log");
+		}
+	}
+
+	/*
+	 * Starts the log again, discarding its records.
+	 */
+	void clear() throws IOException {
+		synchronized(fileLock) {
+			file.setLength(0);
+			file.seek(0);
+			file.write(new byte[] {MAGIC_0, MAGIC_1, VERSION});
+			file.getChannel().force(false);
+			records = 0;
+			failed = false;
+		}
+	}
+
+	/*
+	 * Returns the number of records in the log.
+	 */
+	int getRecords() {
+		return records;
+	}
+
+	/*
+	 * Checks whether a batch of records could not be written since the log was started.
+	 */
+	boolean hasFailed() {
+		return failed;
+	}
+
+	/*
+	 * Applies the records of log to metaData. If truncate is set, the log is truncated after the last valid record and positioned for
+	 * appending. Returns the number of records applied.
+	 */
+	private int replay(RandomAccessFile log, MetaData metaData, boolean truncate) throws IOException {
+		byte[] bytes = new byte[(int) log.length()];
+		log.seek(0);
+		log.readFully(bytes);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		if(bytes.length < HEADER || buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1 || buffer.get() != VERSION) {
+			logger.warn("Discarding a MetaData log, since it has an unknown format");
+			if(truncate)
+				clear();
+			return 0;
+		}
+
+		int valid = buffer.position(), applied = 0;
+		try {
+			CRC32 crc = new CRC32();
+			while(buffer.hasRemaining()) {
+				int start = buffer.position();
+				byte type = buffer.get();
+				int length = buffer.getInt();
+				if(length < 0 || length + 4 > buffer.remaining())
+					break;
+
+				crc.reset();
+				crc.update(bytes, start, 5 + length);
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes, buffer.position(), length));
+				buffer.position(buffer.position() + length);
+				if(buffer.getInt() != (int) crc.getValue())
+					break;
+
+				metaData.apply(decode(type, record));
+				valid = buffer.position();
+				applied++;
+			}
+		}
+		catch(BufferUnderflowException e) {
+			//Torn record at the end of the log
+		}
+		catch(ClassNotFoundException e) {
+			logger.error("Invalid record in the MetaData log : {}", e.getMessage());
+		}
+
+		if(truncate) {
+			if(valid < bytes.length) {
+				logger.warn("Truncating the MetaData log after {} valid record(s)", applied);
+				log.setLength(valid);
+				log.getChannel().force(false);
+			}
+			log.seek(valid);
+		}
+		return applied;
+	}
+
+	/*
+	 * Decodes a record into the entry of its note.
+	 */
+	private static MetaData.Entry decode(byte type, DataInputStream record) throws IOException, ClassNotFoundException {
+		if(type != ENTRY)
+			throw new IOException("Unknown record type " + type);
+		String fileName = record.readUTF();
+		long sequence = record.readLong(), update = record.readLong(), hash = record.readLong();
+		int size = record.readInt();
+		DeltaChain chain = (record.readBoolean())? (DeltaChain) new ObjectInputStream(record).readObject() : null;
+		return new MetaData.Entry(fileName, update, hash, size, chain, sequence);
+	}
+}
@@ -2,6 +2,8 @@
  * SyncSettings is used to represent the synchronization settings. It contains the following synchronization information :
  *	- Interval - the intervals at which to run the Synchronizer thread (default: 5min)
  *	- Provider - the authorized Provider 
+ *	- Concurrency - the number of files transferred in parallel (default: 4)
+ *	- Change cursor - the cursor of the Provider's change feed, along with the revision of the server metadata cached by the Synchronizer
  * 	- Authorization Information - authorization info that is required to access the server. (Eg: OAuth Access Tokens) 
  * 
  * All this information will be saved to the synchronization settings file once synchronization has been configured by the user. 
@@ -24,9 +26,13 @@ public class SyncSettings implements Serializable {
 	private static File SYNC_FILE = new File(JStickies.NOTE_FOLDER + "/sync");
 	private static final Logger logger = LoggerFactory.getLogger(SyncSettings.class);
 	
+	private static final int DEFAULT_CONCURRENCY = 4;
+	
 	private int syncInterval; //Synchronization interval in minutes
+	private int concurrency; //0 in settings saved by older versions
 	private Class<Provider> provider;
 	private Object authInfo;
+	private String changeCursor, metaDataRev; //null until the first synchronization
 	
 	/*
 	 * Creates SyncSettings with default settings and p as the Provider.
@@ -34,6 +40,7 @@ public class SyncSettings implements Serializable {
 	public SyncSettings(Class<Provider> p) {
 		provider = p;
 		syncInterval = 5;
+		concurrency = DEFAULT_CONCURRENCY;
 		authInfo = null;
 	}
 	
@@ -68,10 +75,48 @@ public class SyncSettings implements Serializable {
 	}
 	
 	/*
-	 * Sets the Provider.
+	 * Sets the number of files that are transferred in parallel.
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+		logger.debug("Synchronization concurrency changed : {}", concurrency);
+	}
+	
+	/*
+	 * Returns the number of files that are transferred in parallel.
+	 */
+	public int getConcurrency() {
+		return (concurrency > 0)? concurrency : DEFAULT_CONCURRENCY;
+	}
+	
+	/*
+	 * Sets the cursor of the change feed, and the revision of the server metadata that was cached when the cursor was retrieved.
+	 */
+	public void setChangeCursor(String cursor, String metaDataRev) {
+		changeCursor = cursor;
+		this.metaDataRev = metaDataRev;
+	}
+	
+	/*
+	 * Returns the cursor of the change feed.
+	 */
+	public String getChangeCursor() {
+		return changeCursor;
+	}
+	
+	/*
+	 * Returns the revision of the cached server metadata.
+	 */
+	public String getMetaDataRev() {
+		return metaDataRev;
+	}
+	
+	/*
+	 * Sets the Provider. The change cursor of the previous Provider is cleared.
 	 */
 	public void setProvider(Class<Provider> p) {
 		provider = p;
+		setChangeCursor(null, null);
 		logger.debug("Synchronization provider changed!");
 	}
 	
@@ -103,7 +148,7 @@ public class SyncSettings implements Serializable {
 	 */
 	public void saveSettings() {
 		logger.info("Saving SyncSettings file");
-		JStickies.saveFile(SYNC_FILE, this);
+		JStickies.saveFileAndWait(SYNC_FILE, this);
 	}
 	
 	/*
@@ -1,9 +1,27 @@
 /*
- * This class creates a new Thread that performs the job of synchronization. It synchronizes the notes between the cloud server and the 
- * computer. Its main tasks include :
+ * This class schedules the synchronization of the notes between the cloud server and the computer. Its main tasks include :
  * 	- Getting files (or metadata) from the server and comparing with local files
- * 	- Synchronizing the files
- * 	- Instantiating any newly downloaded notes
+ * 	- Synchronizing the files, using a pool of transfer threads
+ * 	- Showing any newly downloaded notes, by updating their windows in place
+ * 
+ * Synchronizations run on a single scheduler thread, every JStickies.SYNC_SETTINGS.getInterval() minutes. Before every synchronization, the
+ * Provider is probed using Provider#isAvailable(). When a probe or a synchronization fails, the next attempt is made after an exponential
+ * backoff with jitter. After FAILURE_THRESHOLD consecutive failures the circuit is opened : the Synchronizer is OFFLINE and only probes the 
+ * Provider, at most MAX_BACKOFF apart, until it is available again. The Synchronizer never stops on its own, and its state is shown in the 
+ * tray.
+ * 
+ * Notes are uploaded along with their edit history (see TextHistory). Once a note is on the server, its edits are exchanged as Deltas, which
+ * are appended to the delta chain of the note (see DeltaChain) : every synchronization merges the Deltas that other computers have added 
+ * since the last one, and uploads the edits that the chain does not cover as a new Delta. Edits made concurrently on several computers are 
+ * merged instead of the copy with the larger update count overwriting the other, and only the edits are transferred.
+ * 
+ * Notes are also pushed as soon as they change : NoteData#saveData() and NoteData#deleteData() notify the Synchronizer, which uploads the 
+ * changed notes once no note has changed for PUSH_DELAY, or at most MAX_PUSH_DELAY after the first change. A push only compares the changed 
+ * notes, and only if the server metadata has not changed since the last synchronization, else all the notes are synchronized. The periodic 
+ * synchronization then only has to pull the changes made on other computers.
+ * 
+ * A note deleted on one computer is recorded in the server metadata with an update count of 0, and is then deleted on the other computers, 
+ * even if they have edited it since.
  */
 
 package com.jstickies.data.sync;
@@ -11,34 +29,81 @@ package com.jstickies.data.sync;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jstickies.JStickies;
+import com.jstickies.data.NoteCodec;
+import com.jstickies.data.NoteCompression;
 import com.jstickies.data.NoteData;
+import com.jstickies.data.TextHistory;
+import com.jstickies.data.VersionVector;
+import com.jstickies.data.sync.provider.ChangeSet;
 import com.jstickies.data.sync.provider.Provider;
+import com.jstickies.data.sync.provider.RemoteFile;
 import com.jstickies.gui.Note;
 
 public class Synchronizer implements Runnable, FilenameFilter {
 	
+	/*
+	 * States of the Synchronizer, as shown in the tray.
+	 */
+	public enum State {
+		WAITING, //Waiting for the next synchronization
+		SYNCHRONIZING,
+		RETRYING, //The last attempt failed, retrying after a backoff
+		OFFLINE, //The circuit is open, probing the Provider until it is available
+		STOPPED
+	}
+	
 	private Provider provider;
-	private int tries;
 	private static final Logger logger = LoggerFactory.getLogger(Synchronizer.class);
 	private static final int MAXTRIES = 3;
+	private static final long RETRY_DELAY = 1000; //in milliseconds, multiplied by the number of attempts
+	private static final int FAILURE_THRESHOLD = 3;
+	private static final long MIN_BACKOFF = 15 * 1000, MAX_BACKOFF = 5 * 60 * 1000; //in milliseconds
+	private static final int MAX_DELTAS = 32, MAX_DELTA_BYTES = 64 * 1024; //A delta chain is compacted once it is longer
+	private static final long PUSH_DELAY = 3000, MAX_PUSH_DELAY = 15000; //in milliseconds
 	
-	public volatile long interval;
-	public volatile boolean syncNow;
-	public Thread t;
+	private long interval;
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> next;
+	private boolean running, syncRequested; //Guarded by this
+	private ScheduledFuture<?> push; //Guarded by this
+	private LinkedHashSet<String> changedNotes = new LinkedHashSet<String>(); //Notes to push, guarded by this
+	private long firstChange; //Time of the first change that has not been pushed, guarded by this
+	private int failures; //Consecutive failures, accessed only on the scheduler thread
+	private Random random = new Random();
+	private final ArrayList<NoteData> downloaded = new ArrayList<NoteData>(); //Notes waiting to be shown, guarded by itself
+	private volatile State state = State.STOPPED;
+	private volatile long nextRun, lastSync;
 	
 	/*
-	 * Creates and starts a new Thread.
+	 * Creates the Synchronizer and schedules the first synchronization.
 	 */
 	public Synchronizer() {
 		Class<Provider> providerClass = JStickies.SYNC_SETTINGS.getProvider();
@@ -55,147 +120,886 @@ public class Synchronizer implements Runnable, FilenameFilter {
 		}
 		
 		interval = JStickies.SYNC_SETTINGS.getInterval() * 60 * 1000; //in milliseconds
-		syncNow = false;
-		tries = 0;
+		JStickies.METADATA = MetaData.load();
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Synchronizer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.info("Starting Synchronizer. Interval : {}ms", interval);
+		schedule(interval, State.WAITING);
+	}
+	
+	/*
+	 * Creates a Synchronizer for provider, which only synchronizes when Synchronizer#compare() is called. Used by the benchmarks.
+	 */
+	public Synchronizer(Provider provider) {
+		this.provider = provider;
+		JStickies.METADATA = MetaData.load();
+	}
+	
+	/*
+	 * Runs a synchronization as soon as possible. If a synchronization is running, another one is run once it completes.
+	 */
+	public synchronized void syncNow() {
+		if(running)
+			syncRequested = true;
+		else
+			schedule(0, state);
+	}
+	
+	/*
+	 * Called every time a note is saved or deleted. Schedules the note to be pushed once the changes have settled. Called on any thread.
+	 */
+	public synchronized void noteChanged(String fileName) {
+		if(scheduler == null || scheduler.isShutdown())
+			return;
 		
-		JStickies.METADATA = (MetaData.metaDataFile.exists())? MetaData.getMetaData(MetaData.metaDataFile) : new MetaData();
+		long now = System.currentTimeMillis();
+		if(changedNotes.isEmpty())
+			firstChange = now;
+		changedNotes.add(fileName);
 		
-		t = new Thread(this);
-		logger.info("Starting new Thread : {}", t);
-		t.start();
+		if(push != null)
+			push.cancel(false);
+		push = scheduler.schedule(new Runnable() {
+			public void run() {
+				push();
+			}
+		}, Math.max(0, Math.min(PUSH_DELAY, firstChange + MAX_PUSH_DELAY - now)), TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * Stops the Synchronizer, interrupting a running synchronization.
+	 */
+	public synchronized void stop() {
+		logger.info("Stopping Synchronizer");
+		if(scheduler != null)
+			scheduler.shutdownNow();
+		if(provider != null)
+			provider.close();
+		setState(State.STOPPED);
+	}
+	
+	/*
+	 * Returns the state of the Synchronizer.
+	 */
+	public State getState() {
+		return state;
+	}
+	
+	/*
+	 * Returns a description of the state of the Synchronizer, to be shown to the user.
+	 */
+	public String getStatus() {
+		long wait = Math.max(nextRun - System.currentTimeMillis(), 0) / 1000;
+		String in = (wait < 60)? wait + " sec" : (wait / 60) + " min";
+		switch(state) {
+			case SYNCHRONIZING :
+				return "Synchronizing..";
+			case RETRYING :
+				return "Synchronization failed, retrying in " + in;
+			case OFFLINE :
+				return "Offline, checking again in " + in;
+			case STOPPED :
+				return "Stopped";
+			default :
+				return (lastSync == 0)? "Next synchronization in " + in : 
+					"Synchronized at " + DateFormat.getTimeInstance(DateFormat.SHORT).format(new Date(lastSync));
+		}
 	}
 	
+	/*
+	 * Runs a single synchronization on the scheduler thread, and schedules the next one.
+	 */
 	@Override
 	public void run() {
-		while(true) {
-			try {
-				if(!syncNow)
-					Thread.sleep(interval);
-				else
-					syncNow = false;
-				
-				if(tries == MAXTRIES) {
-					logger.error("Maximum number of tries reached! Stopping Synchronizer");
-					JStickies.SYNCHRONIZER = null;
-					SwingUtilities.invokeLater(new Runnable() {
-						public void run() {
-							JOptionPane.showMessageDialog(null, "<html>Synchronizer has been stopped due to network connectivity problems. Please <br>restart the application to start synchronization</html>", "Network Connection Error", JOptionPane.ERROR_MESSAGE);
-						}
-					});
-					break;
-				}
-				
-				InetAddress address = InetAddress.getByName(provider.getServerAddress());
-				if(address.isReachable(1000))
-					compare();
+		synchronized(this) {
+			changedNotes.clear(); //Pushed by this synchronization
+		}
+		synchronize(null);
+	}
+	
+	/*
+	 * Pushes the notes that have changed, on the scheduler thread. If the last synchronization failed, the notes are pushed by the next 
+	 * attempt instead.
+	 */
+	private void push() {
+		Set<String> notes;
+		synchronized(this) {
+			notes = new HashSet<String>(changedNotes);
+			changedNotes.clear();
+			push = null;
+			if(notes.isEmpty() || state != State.WAITING)
+				return;
+		}
+		logger.info("Pushing {} changed note(s)", notes.size());
+		synchronize(notes);
+	}
+	
+	/*
+	 * Runs a synchronization of notes, or of all the notes if it is null. The next synchronization is scheduled after a failure, or after a 
+	 * synchronization of all the notes. Waits until the saved notes have been loaded, since notes that are not open yet cannot be merged.
+	 */
+	private void synchronize(Set<String> notes) {
+		try {
+			Note.awaitLoaded();
+		}
+		catch(InterruptedException e) { //Stopped
+			Thread.currentThread().interrupt();
+			return;
+		}
+		synchronized(this) {
+			running = true;
+		}
+		State previous = state;
+		setState(State.SYNCHRONIZING);
+		
+		boolean success = false;
+		try {
+			if(!provider.isAvailable())
+				logger.warn("Provider {} is not available", provider.getDisplayName());
+			else {
+				if(previous == State.OFFLINE)
+					logger.info("Provider {} is available again. Resuming synchronization", provider.getDisplayName());
+				success = compare(notes);
+			}
+		}
+		catch(RuntimeException e) {
+			logger.error("Error during synchronization : {}", e.toString());
+		}
+		
+		if(Thread.currentThread().isInterrupted()) //Stopped
+			return;
+		
+		synchronized(this) {
+			running = false;
+			if(success) {
+				failures = 0;
+				lastSync = System.currentTimeMillis();
+				if(notes == null || syncRequested)
+					schedule((syncRequested)? 0 : interval, State.WAITING);
 				else
-					tries++;
-			} catch (InterruptedException e) {
-				logger.info("Thread interrupted. SyncNow : {}", syncNow);
-				if(!syncNow)
-					break;
-			} catch (UnknownHostException e) {
-				logger.error("Error connecting to host : " + e);
-				tries++;
-			} catch (IOException e) {
-				logger.error("Error connecting to host : " + e);
-				tries++;
+					setState(State.WAITING); //The periodic synchronization stays scheduled
+			}
+			else {
+				failures++;
+				long backoff = Math.min(MIN_BACKOFF << Math.min(failures - 1, 16), MAX_BACKOFF);
+				backoff = backoff / 2 + (long) (random.nextDouble() * backoff / 2); //Jitter, so that clients do not retry together
+				logger.warn("Synchronization failed {} time(s) in a row. Retrying in {}ms", failures, backoff);
+				schedule((syncRequested)? 0 : Math.min(backoff, interval), (failures >= FAILURE_THRESHOLD)? State.OFFLINE : State.RETRYING);
 			}
+			syncRequested = false;
 		}
 	}
 	
 	/*
-	 * Compares the local and server files and performs synchronization. 
+	 * Schedules the next synchronization after delay milliseconds, replacing the one scheduled earlier. Must be called holding the lock.
 	 */
-	public void compare() {
-		tries = 0; //reset no of tries
+	private void schedule(long delay, State s) {
+		if(scheduler == null || scheduler.isShutdown())
+			return;
+		if(next != null)
+			next.cancel(false);
+		nextRun = System.currentTimeMillis() + delay;
+		next = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+		setState(s);
+	}
+	
+	/*
+	 * Sets the state, and notifies the tray.
+	 */
+	private void setState(State s) {
+		state = s;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if(JStickies.TRAY_APPLICATION != null)
+					JStickies.TRAY_APPLICATION.synchronizerChanged();
+			}
+		});
+	}
+	
+	/*
+	 * Compares the local and server files and performs synchronization. The comparison produces a transfer plan, which is executed in 
+	 * parallel (see Synchronizer#execute(List)). The metadata is only saved and uploaded once all the transfers have succeeded, else the 
+	 * remaining transfers are planned again in the next cycle. Returns true if the synchronization completed.
+	 * 
+	 * A copy of the server metadata is kept on the disk. If the Provider supports change feeds and the metadata has not changed on the server
+	 * since the last synchronization, the copy is used instead of downloading the metadata, so an idle synchronization takes a single request.
+	 */
+	public boolean compare() {
+		return compare(null);
+	}
+	
+	/*
+	 * Compares and synchronizes the notes notes, or all the notes if it is null. Only the notes that have changed on this computer are 
+	 * compared, which requires the copy of the server metadata to be up to date : if the metadata has changed on the server, all the notes are
+	 * synchronized.
+	 */
+	private boolean compare(Set<String> notes) {
 		logger.info("Synchronization started..");
-		if(!provider.fileExists(MetaData.fileName)) { //First synchronization
-			JStickies.METADATA.saveMetaData();
-			upload(MetaData.metaDataFile, false);
-			
+		ArrayList<Transfer> plan = new ArrayList<Transfer>();
+		provider.beginCycle();
+		
+		ChangeSet changes = provider.getChanges(JStickies.SYNC_SETTINGS.getChangeCursor());
+		MetaData serverMetaData = getCachedMetaData(changes);
+		String serverRev = null; //Revision of the server metadata that serverMetaData was read from
+		
+		if(serverMetaData == null && notes != null) {
+			logger.info("MetaData may have changed on the server. Synchronizing all notes");
+			notes = null;
+		}
+		
+		boolean exists;
+		if(serverMetaData != null) {
+			logger.info("MetaData has not changed on the server");
+			exists = true;
+			serverRev = JStickies.SYNC_SETTINGS.getMetaDataRev();
+		}
+		else if(changes != null && changes.isDeleted(MetaData.fileName))
+			exists = false;
+		else if(changes != null && changes.getChanged(MetaData.fileName) != null)
+			exists = true;
+		else if(changes != null && changes.isReset())
+			exists = false;
+		else
+			exists = provider.fileExists(MetaData.fileName);
+		
+		if(!exists) { //First synchronization
 			logger.info("Uploading all local files to server");
 			Iterator<String> iterator = JStickies.METADATA.getFilenameIterator();
-			while(iterator.hasNext())
-				upload(new File(JStickies.NOTE_FOLDER + "/" + iterator.next()), false);
+			while(iterator.hasNext()) {
+				String s = iterator.next();
+				if(JStickies.METADATA.getUpdateCount(s) > 0) //Deleted notes cannot be uploaded
+					plan.add(new Transfer(s, true, true)); //Overwrite, since an earlier attempt may have uploaded some of the files
+			}
+			
+			if(!execute(plan))
+				return false;
+			for(Transfer t : plan)
+				JStickies.METADATA.setDeltaChain(t.fileName, new DeltaChain(t.history));
+			JStickies.METADATA.saveMetaData();
+			if(!upload(MetaData.metaDataFile, MetaData.fileName, false))
+				return false;
+			if(changes != null) {
+				JStickies.METADATA.saveMetaData(MetaData.serverMetaDataFile);
+				serverRev = getRev(MetaData.fileName);
+			}
 		}
 		else {
 			File tempFile = new File(JStickies.NOTE_FOLDER + "/" + "temp");
-			logger.info("Downloading MetaData from server to file : {}", tempFile.getName());
-			provider.downloadFile(MetaData.fileName, tempFile);
-			MetaData serverMetaData = MetaData.getMetaData(tempFile);
+			if(serverMetaData == null) {
+				if(changes != null) //Get the revision before downloading, so that the copy is never older than the revision
+					serverRev = (changes.getChanged(MetaData.fileName) != null)? changes.getChanged(MetaData.fileName).rev : getRev(MetaData.fileName);
+				
+				logger.info("Downloading MetaData from server to file : {}", tempFile.getName());
+				if(!provider.downloadFile(MetaData.fileName, tempFile) || (serverMetaData = MetaData.getMetaData(tempFile)) == null) {
+					logger.error("Unable to download MetaData from server");
+					return false;
+				}
+				if(changes != null)
+					serverMetaData.saveMetaData(MetaData.serverMetaDataFile);
+			}
+			
+			boolean serverChanged = false;
+			MetaData local = JStickies.METADATA.snapshot(); //Notes saved while comparing are synchronized in the next cycle
+			ArrayList<String> obsolete = new ArrayList<String>(); //Server files that the metadata no longer refers to once it is committed
 			
-			//Check all server files
+			//Check all server files, or the changed notes that are on the server
 			logger.info("Comparing server files..");
-			Iterator<String> iterator = serverMetaData.getFilenameIterator();
+			Iterator<String> iterator = (notes == null)? serverMetaData.getFilenameIterator() : notes.iterator();
 			while(iterator.hasNext()) {
 				String s = iterator.next();
-				long u = serverMetaData.getUpdateCount(s), localu = JStickies.METADATA.getUpdateCount(s);
+				long u = serverMetaData.getUpdateCount(s), localu = local.getUpdateCount(s);
+				if(notes != null && (u == -1 || (localu <= u && localu != 0))) //Pushing, and the note is not on the server or has nothing to upload
+					continue;
+				DeltaChain chain = serverMetaData.getDeltaChain(s);
+				if(localu == 0 && u > 0) { //Deleted on this computer
+					logger.info("File {} was deleted. Deleting it from the server", s);
+					serverMetaData.deleteNote(s);
+					obsolete.add(s);
+					if(chain != null)
+						obsolete.addAll(chain.files);
+					serverChanged = true;
+					continue;
+				}
+				if(u == 0 && localu > 0) { //Deleted on another computer
+					logger.info("File {} was deleted on another computer. Deleting it", s);
+					plan.add(new Deletion(s));
+					continue;
+				}
+				if(chain != null && u > 0) {
+					if(u != localu || !chain.equals(local.getDeltaChain(s))) {
+						logger.info("Merging file : {}; Server Update Count : {}; Local Update Count : {}; Chain : {}", s, u, localu, chain);
+						plan.add(new Merge(s, chain, u, localu));
+					}
+					continue;
+				}
+				if(u == localu)
+					continue;
 				logger.info("Comparing file : {}; Server Update Count : {}; Local Update Count : {}", s, u, localu);
 				if(localu == -1) {//If does not exist on desktop, then download
-					if(u != 0) {
-						download(s);
-						JStickies.METADATA.addNote(s, u);
-					}
+					if(u != 0)
+						plan.add(new Transfer(s, false, false).update(u, serverMetaData));
 				}
 				else if(u > localu) { //Server contains latest copy
-					download(s);
-					JStickies.METADATA.addNote(s, u);
+					if(serverMetaData.hasSameContent(s, local)) {
+						logger.info("File {} has the same contents on the server. Skipping download", s);
+						JStickies.METADATA.addNote(s, u, serverMetaData.getContentHash(s), serverMetaData.getContentSize(s));
+					}
+					else
+						plan.add(new Transfer(s, false, false).update(u, serverMetaData));
 				}
 				else if(u < localu) { //Desktop contains latest copy
-					upload(new File(JStickies.NOTE_FOLDER + "/" + s), true);
-					serverMetaData.addNote(s, localu);
+					if(serverMetaData.hasSameContent(s, local)) {
+						logger.info("File {} has the same contents on the server. Skipping upload", s);
+						serverMetaData.addNote(s, localu, local.getContentHash(s), local.getContentSize(s));
+						serverChanged = true;
+					}
+					else
+						plan.add(new Transfer(s, true, true).update(localu, local));
 				}
-				logger.info("File {} is synchronized!", s);
 			}
 			
-			//Check the local files
+			//Check the local files, or the changed notes
 			logger.info("Comparing local files..");
-			iterator = JStickies.METADATA.getFilenameIterator();
+			iterator = (notes == null)? local.getFilenameIterator() : notes.iterator();
 			while(iterator.hasNext()) {
 				String s = iterator.next();
-				if(serverMetaData.getUpdateCount(s) == -1) { //The file is only on the desktop
+				if(serverMetaData.getUpdateCount(s) == -1 && local.getUpdateCount(s) > 0) { //The file is only on the desktop
 					logger.info("File {} was newly created. Uploading to server..", s);
-					upload(new File(JStickies.NOTE_FOLDER + "/" + s), false);
-					serverMetaData.addNote(s, JStickies.METADATA.getUpdateCount(s));
+					plan.add(new Transfer(s, true, false).update(local.getUpdateCount(s), local));
+				}
+			}
+			
+			boolean complete = execute(plan);
+			
+			//Record the transfers that succeeded
+			for(Transfer t : plan) {
+				if(!t.succeeded)
+					continue;
+				if(t instanceof Merge) {
+					Merge m = (Merge) t;
+					serverChanged |= record(m, serverMetaData);
+					if(m.result.generation != m.chain.generation)
+						obsolete.addAll(m.chain.files); //The snapshot was replaced
+				}
+				else if(t.upload) {
+					DeltaChain old = serverMetaData.getDeltaChain(t.fileName);
+					if(old != null)
+						obsolete.addAll(old.files);
+					serverMetaData.addNote(t.fileName, t.update, t.hash, t.size);
+					DeltaChain chain = new DeltaChain(t.history);
+					serverMetaData.setDeltaChain(t.fileName, chain);
+					JStickies.METADATA.setDeltaChain(t.fileName, chain);
+					serverChanged = true;
 				}
+				else
+					JStickies.METADATA.addNote(t.fileName, t.update, t.hash, t.size);
+				logger.info("File {} is synchronized!", t.fileName);
+			}
+			
+			if(!complete) {
+				logger.warn("Not all files could be transferred. MetaData will be committed in the next synchronization");
+				saveChangeCursor(changes, serverRev);
+				return false;
 			}
 			
-			//Save the metadata and upload the server metadata
+			//Save the metadata and upload the server metadata, if anything was uploaded
 			JStickies.METADATA.saveMetaData();
-			serverMetaData.saveMetaData();
-			provider.uploadFile(tempFile, MetaData.fileName, true);
+			if(serverChanged) {
+				serverMetaData.saveMetaData(tempFile);
+				if(!provider.uploadFile(tempFile, MetaData.fileName, true)) {
+					logger.warn("Unable to upload MetaData to server");
+					saveChangeCursor(changes, serverRev);
+					return false;
+				}
+				if(changes != null) {
+					serverMetaData.saveMetaData(MetaData.serverMetaDataFile);
+					serverRev = getRev(MetaData.fileName);
+				}
+			}
+			delete(obsolete);
 		}
+		saveChangeCursor(changes, serverRev);
 		logger.info("Synchronization complete!");
+		return true;
+	}
+	
+	/*
+	 * Records a merge that succeeded in the metadata. Returns true if the server metadata changed, i.e. if edits were uploaded or the chain
+	 * records the Deltas merged.
+	 */
+	private boolean record(Merge m, MetaData serverMetaData) {
+		JStickies.METADATA.setDeltaChain(m.fileName, m.result);
+		if(m.result.equals(m.chain)) {
+			JStickies.METADATA.compareAndSetUpdate(m.fileName, m.localUpdate, m.serverUpdate); //Unless changed again while merging
+			if(m.result == m.chain)
+				return false;
+			serverMetaData.setDeltaChain(m.fileName, m.result); //Only records what this computer has merged
+			return true;
+		}
+		
+		long update = JStickies.METADATA.advanceUpdate(m.fileName, m.serverUpdate);
+		serverMetaData.addNote(m.fileName, update, 0, 0);
+		serverMetaData.setDeltaChain(m.fileName, m.result);
+		return true;
+	}
+	
+	/*
+	 * Deletes the server files that the server metadata no longer refers to, i.e. the Deltas of chains whose snapshot has been replaced and the
+	 * files of deleted notes. A computer that still reads an older metadata fails to download them, and synchronizes the note again in its
+	 * next synchronization.
+	 */
+	private void delete(List<String> files) {
+		int deleted = 0;
+		for(String file : files)
+			if(provider.deleteFile(file))
+				deleted++;
+			else
+				logger.warn("Unable to delete file {} from the server", file);
+		if(!files.isEmpty())
+			logger.info("Deleted {} of {} obsolete file(s) from the server", deleted, files.size());
+	}
+	
+	/*
+	 * Returns the copy of the server metadata if it is still the same as the metadata on the server, i.e. if the metadata was not changed
+	 * since the last synchronization, or was last changed by this computer. Returns null if the metadata must be downloaded.
+	 */
+	private MetaData getCachedMetaData(ChangeSet changes) {
+		String rev = JStickies.SYNC_SETTINGS.getMetaDataRev();
+		if(changes == null || rev == null || !MetaData.serverMetaDataFile.exists() || changes.isDeleted(MetaData.fileName))
+			return null;
+		
+		RemoteFile file = changes.getChanged(MetaData.fileName);
+		if((file == null && !changes.isReset()) || (file != null && rev.equals(file.rev)))
+			return MetaData.getMetaData(MetaData.serverMetaDataFile);
+		return null;
+	}
+	
+	/*
+	 * Returns the revision of a file on the server, or null if it is not known.
+	 */
+	private String getRev(String serverFile) {
+		RemoteFile file = provider.getFileInfo(serverFile);
+		return (file == null)? null : file.rev;
+	}
+	
+	/*
+	 * Saves the cursor of changes along with the revision of the copy of the server metadata. If the revision is not known, the metadata is
+	 * downloaded in the next synchronization.
+	 */
+	private void saveChangeCursor(ChangeSet changes, String serverRev) {
+		if(changes == null)
+			return;
+		JStickies.SYNC_SETTINGS.setChangeCursor(changes.getCursor(), serverRev);
+		JStickies.SYNC_SETTINGS.saveSettings();
+	}
+	
+	/*
+	 * Executes the transfers of plan on a pool of JStickies.SYNC_SETTINGS.getConcurrency() threads. Returns true if all the transfers 
+	 * succeeded.
+	 */
+	private boolean execute(List<Transfer> plan) {
+		if(plan.isEmpty())
+			return true;
+		
+		final int threads = Math.min(JStickies.SYNC_SETTINGS.getConcurrency(), plan.size());
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Transfer-" + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		logger.info("Transferring {} file(s) using {} thread(s)", plan.size(), threads);
+		long start = System.nanoTime();
+		int failed = 0;
+		try {
+			for(Future<Boolean> f : pool.invokeAll(plan))
+				if(!f.get())
+					failed++;
+		}
+		catch(InterruptedException e) {
+			logger.info("Interrupted while transferring files");
+			Thread.currentThread().interrupt(); //Handled by the Synchronizer thread
+			return false;
+		}
+		catch(ExecutionException e) {
+			logger.error("Error while transferring files : {}", e.getCause().getMessage());
+			return false;
+		}
+		finally {
+			pool.shutdownNow();
+			SwingUtilities.invokeLater(new Runnable() { //All the notes downloaded by the transfers are shown in a single task
+				public void run() {
+					showDownloaded();
+				}
+			});
+		}
+		
+		logger.info("{} file(s) transferred in {}ms, {} failed", plan.size() - failed, (System.nanoTime() - start) / 1000000, failed);
+		return failed == 0;
 	}
 	
 	/*
-	 * Downloads a file from the server to disk. 
+	 * Downloads a note from the server into the note store. Returns true if the note was downloaded.
 	 */
-	private void download(String fileName) {
+	private boolean download(String fileName) {
 		logger.info("Downloading file {} from server", fileName);
-		File diskFile = new File(JStickies.NOTE_FOLDER + "/" + fileName);
-		provider.downloadFile(fileName, diskFile);
+		File diskFile;
+		try {
+			diskFile = File.createTempFile("download", ".tmp", JStickies.NOTE_FOLDER);
+		}
+		catch(IOException e) {
+			logger.error("Unable to create a temporary file for downloading {} : {}", fileName, e.getMessage());
+			return false;
+		}
+		if(!provider.downloadFile(fileName, diskFile)) {
+			diskFile.delete();
+			return false;
+		}
+		NoteData noteData = JStickies.NOTE_STORE.importNote(fileName, diskFile);
+		if(noteData == null)
+			return false;
+		JStickies.SEARCH_INDEX.update(noteData);
+		TextHistory.of(noteData); //A note without a history is not an edit made on this computer, so it starts a history of its own
+		
+		synchronized(downloaded) {
+			downloaded.add(noteData);
+		}
+		return true;
+	}
+	
+	/*
+	 * Shows the downloaded notes that are waiting to be shown. The notes that are open are updated in place (see Note#reload(NoteData)), so
+	 * that their windows, carets and scroll positions are kept. Must be called on the EDT.
+	 */
+	private void showDownloaded() {
+		NoteData[] batch;
+		synchronized(downloaded) {
+			batch = downloaded.toArray(new NoteData[downloaded.size()]);
+			downloaded.clear();
+		}
+		
+		for(NoteData d : batch)
+			Note.reload(d);
+		if(batch.length > 0)
+			logger.info("Showed {} downloaded note(s)", batch.length);
+	}
+	
+	/*
+	 * Uploads a note from the note store to the server. Returns the history of the uploaded note, or null if the note was not uploaded.
+	 */
+	private TextHistory uploadNote(String fileName, boolean overwrite) {
+		try {
+			File diskFile = JStickies.NOTE_STORE.exportNote(fileName);
+			try {
+				NoteData data = NoteCodec.read(diskFile);
+				return (upload(diskFile, fileName, overwrite))? TextHistory.of(data) : null;
+			}
+			finally {
+				JStickies.NOTE_STORE.releaseExport(diskFile);
+			}
+		}
+		catch(IOException e) {
+			logger.error("Unable to export note {} for uploading : {}", fileName, e.getMessage());
+			return null;
+		}
+	}
+	
+	/*
+	 * Uploads a file from the disk to the server. Returns true if the file was uploaded.
+	 */
+	private boolean upload(File diskFile, String serverFile, boolean overwrite) {
+		logger.info("Uploading file {} to server", serverFile);
+		return provider.uploadFile(diskFile, serverFile, overwrite);
+	}
+	
+	/*
+	 * Uploads bytes to the server file serverFile. Returns true if the file was uploaded.
+	 */
+	private boolean upload(byte[] bytes, String serverFile, boolean overwrite) throws IOException {
+		File diskFile = File.createTempFile("upload", ".tmp", JStickies.NOTE_FOLDER);
+		try {
+			Files.write(diskFile.toPath(), bytes);
+			return upload(diskFile, serverFile, overwrite);
+		}
+		finally {
+			diskFile.delete();
+		}
+	}
+	
+	/*
+	 * Downloads the server file serverFile. Returns null if it could not be downloaded.
+	 */
+	private byte[] downloadBytes(String serverFile, String description) throws IOException {
+		logger.info("Downloading {} {} from server", description, serverFile);
+		File diskFile = File.createTempFile("download", ".tmp", JStickies.NOTE_FOLDER);
+		try {
+			return (provider.downloadFile(serverFile, diskFile))? Files.readAllBytes(diskFile.toPath()) : null;
+		}
+		finally {
+			diskFile.delete();
+		}
+	}
+	
+	/*
+	 * Runs task on the EDT and waits for its result. The downloaded notes are shown first, since task may use them.
+	 */
+	private <T> T runOnEDT(final Callable<T> task) throws IOException, InterruptedException {
+		FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+			public T call() throws Exception {
+				showDownloaded();
+				return task.call();
+			}
+		});
+		try {
+			SwingUtilities.invokeAndWait(future);
+			return future.get();
+		}
+		catch(InvocationTargetException e) {
+			throw new IOException(e.getCause().toString());
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause().toString());
+		}
+	}
+	
+	/*
+	 * A single upload or download of a note, which is retried up to MAXTRIES times. If the transfer succeeds, the metadata of the note is 
+	 * updated to the update count, hash and size recorded when the transfer was planned.
+	 */
+	private class Transfer implements Callable<Boolean> {
 		
-		//If a new copy of the file was downloaded, then delete it and initialize a new copy
-		Iterator<Note> notes = Note.notes.iterator();
-		while(notes.hasNext()) {
-			Note n = notes.next();
-			if(n.noteData.fileName == fileName) {
-				n.dispose();
-				Note.notes.remove(n);
+		String fileName;
+		boolean upload, overwrite;
+		long update, hash;
+		int size;
+		TextHistory history; //History of an uploaded note
+		volatile boolean succeeded;
+		
+		Transfer(String fileName, boolean upload, boolean overwrite) {
+			this.fileName = fileName;
+			this.upload = upload;
+			this.overwrite = overwrite;
+			update = -1;
+		}
+		
+		/*
+		 * Sets the update count of the note after the transfer, along with the hash and size of the note from metaData.
+		 */
+		Transfer update(long update, MetaData metaData) {
+			this.update = update;
+			hash = metaData.getContentHash(fileName);
+			size = metaData.getContentSize(fileName);
+			return this;
+		}
+		
+		/*
+		 * Makes a single attempt at the transfer. Returns true if it succeeded.
+		 */
+		boolean attempt() throws IOException, InterruptedException {
+			if(!upload)
+				return download(fileName);
+			history = uploadNote(fileName, overwrite);
+			return history != null;
+		}
+		
+		@Override
+		public Boolean call() throws InterruptedException {
+			for(int attempt=1; ; attempt++) {
+				boolean done;
+				try {
+					done = attempt();
+				}
+				catch(IOException e) {
+					logger.error("Error while transferring file {} : {}", fileName, e.getMessage());
+					done = false;
+				}
+				if(done) {
+					succeeded = true;
+					return true;
+				}
+				if(attempt == MAXTRIES) {
+					logger.error("Unable to transfer file {} after {} attempts", fileName, attempt);
+					return false;
+				}
+				logger.warn("Transfer of file {} failed. Retrying..", fileName);
+				Thread.sleep(RETRY_DELAY * attempt);
 			}
 		}
+	}
+	
+	/*
+	 * Deletes a note that was deleted on another computer. The note is recorded as deleted like any other transfer, with an update count of 0.
+	 */
+	private class Deletion extends Transfer {
+		
+		Deletion(String fileName) {
+			super(fileName, false, false);
+			update = 0;
+		}
 		
-		new Note(NoteData.getNoteData(diskFile)).setVisible(true);
+		@Override
+		boolean attempt() throws IOException, InterruptedException {
+			runOnEDT(new Callable<Boolean>() {
+				public Boolean call() {
+					return Note.remove(fileName);
+				}
+			});
+			JStickies.NOTE_STORE.delete(fileName);
+			if(JStickies.SEARCH_INDEX != null)
+				JStickies.SEARCH_INDEX.remove(fileName);
+			return true;
+		}
 	}
 	
 	/*
-	 * Uploads a file from the disk to the server.
+	 * Synchronizes a note that has a delta chain on the server. The Deltas added to the chain since the last synchronization are merged into
+	 * the note, after the snapshot if the note is not on this computer or the chain has been compacted since. The edits that the chain does not
+	 * cover are then uploaded as a new Delta, or as a new snapshot once the chain has MAX_DELTAS Deltas or MAX_DELTA_BYTES bytes. If there
+	 * are none, the chain records that this computer has merged it, once per snapshot. The tombstones that every computer has seen are removed
+	 * from the note. If the merge succeeds, result is the chain on the server.
 	 */
-	private void upload(File diskFile, boolean overwrite) {
-		logger.info("Uploading file {} to server", diskFile.getName());
-		provider.uploadFile(diskFile, diskFile.getName(), overwrite);
+	private class Merge extends Transfer {
+		
+		DeltaChain chain, local, result;
+		long serverUpdate, localUpdate;
+		private boolean snapshotMerged;
+		private HashSet<String> merged; //Deltas merged by earlier attempts
+		
+		Merge(String fileName, DeltaChain chain, long serverUpdate, long localUpdate) {
+			super(fileName, false, false);
+			this.chain = chain;
+			this.serverUpdate = serverUpdate;
+			this.localUpdate = localUpdate;
+			local = JStickies.METADATA.getDeltaChain(fileName);
+			merged = new HashSet<String>();
+		}
+		
+		@Override
+		boolean attempt() throws IOException, InterruptedException {
+			boolean fresh = localUpdate <= 0 || local == null || local.generation != chain.generation;
+			if(fresh && !snapshotMerged) {
+				if(!((localUpdate <= 0)? download(fileName) : mergeSnapshot()))
+					return false;
+				snapshotMerged = true;
+			}
+			for(String file : chain.files)
+				if((fresh || !local.contains(file)) && !merged.contains(file)) {
+					byte[] bytes = downloadBytes(file, "delta");
+					if(bytes == null || !merge(TextHistory.Delta.decode(bytes)))
+						return false;
+					merged.add(file);
+				}
+			
+			TextHistory.Delta delta = runOnEDT(new Callable<TextHistory.Delta>() {
+				public TextHistory.Delta call() {
+					Note.collect(fileName, chain.getStableVersion());
+					return Note.getDelta(fileName, chain.version);
+				}
+			});
+			if(delta == null) {
+				logger.warn("Note {} is not open. Merging it in the next synchronization", fileName);
+				return false;
+			}
+			if(delta.isEmpty()) {
+				result = (chain.isAcknowledged())? chain : chain.acknowledge(delta.getVersion());
+				return true;
+			}
+			if(chain.files.size() >= MAX_DELTAS || chain.bytes >= MAX_DELTA_BYTES)
+				return uploadSnapshot();
+			
+			byte[] bytes = delta.encode();
+			String file = fileName + "." + Long.toHexString(TextHistory.DEVICE) + "." + System.currentTimeMillis() + ".delta";
+			if(!upload(bytes, file, false))
+				return false;
+			logger.info("Uploaded {} run(s) of edits of note {} in {} bytes", delta.getRunCount(), fileName, bytes.length);
+			result = chain.append(file, bytes.length, delta.getVersion());
+			return true;
+		}
+		
+		/*
+		 * Merges the snapshot of the note on the server into the local note. If their histories cannot be merged, e.g. since the text of the
+		 * note differed when the computers started recording histories, the snapshot replaces the local note, whose text is first kept as a
+		 * new note if it differs from the snapshot (see Note#keepConflictCopy(String, String)). The downloaded note is shown before the Deltas
+		 * are merged (see Synchronizer#runOnEDT(Callable)).
+		 */
+		private boolean mergeSnapshot() throws IOException, InterruptedException {
+			byte[] bytes = downloadBytes(fileName, "snapshot");
+			if(bytes == null)
+				return false;
+			NoteData snapshot = NoteCodec.decode(bytes);
+			final TextHistory history = TextHistory.of(snapshot);
+			Boolean mergeable = runOnEDT(new Callable<Boolean>() {
+				public Boolean call() {
+					return Note.canMerge(fileName, history);
+				}
+			});
+			if(mergeable == null) {
+				logger.warn("Note {} is not open. Merging it in the next synchronization", fileName);
+				return false;
+			}
+			if(!mergeable) {
+				final String text = snapshot.noteText;
+				Boolean kept = runOnEDT(new Callable<Boolean>() {
+					public Boolean call() {
+						return Note.keepConflictCopy(fileName, text);
+					}
+				});
+				if(kept == null) {
+					logger.warn("Note {} is not open. Merging it in the next synchronization", fileName);
+					return false;
+				}
+				if(kept)
+					logger.warn("History of note {} cannot be merged with the snapshot on the server. Kept the local text as a conflict copy "
+							+ "and replacing the note with the snapshot", fileName);
+				else
+					logger.info("History of note {} cannot be merged with the snapshot on the server, but the note has no local changes. "
+							+ "Replacing the note with the snapshot", fileName);
+				return download(fileName);
+			}
+			return merge(history.getDelta(new VersionVector(), snapshot));
+		}
+		
+		/*
+		 * Merges a Delta into the local note. Returns false if the note is not open.
+		 */
+		private boolean merge(final TextHistory.Delta delta) throws IOException, InterruptedException {
+			boolean found = runOnEDT(new Callable<Boolean>() {
+				public Boolean call() throws IOException {
+					return Note.merge(fileName, delta);
+				}
+			});
+			if(!found)
+				logger.warn("Note {} is not open. Merging it in the next synchronization", fileName);
+			return found;
+		}
+		
+		/*
+		 * Replaces the snapshot on the server with the local note, starting a new chain.
+		 */
+		private boolean uploadSnapshot() throws IOException, InterruptedException {
+			NoteData snapshot = runOnEDT(new Callable<NoteData>() {
+				public NoteData call() {
+					return Note.getSnapshot(fileName);
+				}
+			});
+			if(snapshot == null || !upload(NoteCompression.compress(NoteCodec.encode(snapshot)), fileName, true))
+				return false;
+			logger.info("Compacted the delta chain of note {} ({})", fileName, chain);
+			result = chain.compact(snapshot.history);
+			return true;
+		}
 	}
 	
 	@Override
@@ -0,0 +1,96 @@
+/*
+ * This class represents the changes made to the files on the server since a cursor, as returned by Provider#getChanges(String). The cursor of
+ * the ChangeSet is passed to the next call of Provider#getChanges(String) to get only the changes made after it.
+ *
+ * If the ChangeSet is a reset, the previous cursor was not known or has expired, and the ChangeSet contains all the files on the server.
+ * File names are compared ignoring case, since some Providers only report deleted files in lower case.
+ */
+
+package com.jstickies.data.sync.provider;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+public class ChangeSet {
+
+	private String cursor;
+	private boolean reset;
+	private HashMap<String, RemoteFile> changed;
+	private HashSet<String> deleted;
+
+	ChangeSet(boolean reset) {
+		this.reset = reset;
+		changed = new HashMap<String, RemoteFile>();
+		deleted = new HashSet<String>();
+	}
+
+	/*
+	 * Records a file that was created or modified. A later change of a file replaces the earlier one.
+	 */
+	void addChanged(RemoteFile file) {
+		String key = key(file.name);
+		deleted.remove(key);
+		changed.put(key, file);
+	}
+
+	/*
+	 * Records a file that was deleted.
+	 */
+	void addDeleted(String name) {
+		String key = key(name);
+		changed.remove(key);
+		deleted.add(key);
+	}
+
+	void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	/*
+	 * Returns the cursor to pass to the next call of Provider#getChanges(String).
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	/*
+	 * Checks whether the ChangeSet contains all the files on the server rather than the changes since the cursor.
+	 */
+	public boolean isReset() {
+		return reset;
+	}
+
+	/*
+	 * Returns the file with the name name if it was created or modified, else null.
+	 */
+	public RemoteFile getChanged(String name) {
+		return changed.get(key(name));
+	}
+
+	/*
+	 * Checks whether the file with the name name was deleted.
+	 */
+	public boolean isDeleted(String name) {
+		return deleted.contains(key(name));
+	}
+
+	/*
+	 * Returns all the files that were created or modified.
+	 */
+	public Collection<RemoteFile> getChanged() {
+		return changed.values();
+	}
+
+	/*
+	 * Returns the number of changes.
+	 */
+	public int size() {
+		return changed.size() + deleted.size();
+	}
+
+	private static String key(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+}
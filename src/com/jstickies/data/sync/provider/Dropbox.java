@@ -1,33 +1,72 @@
 /*
  * This class represents the Dropbox Provider. It uses of the DropboxAPI to implement all the methods specified in the Provider interface.
+ *
+ * Every Dropbox instance uses a single session for all its requests, so the connections to Dropbox are kept alive and reused across a 
+ * synchronization. The connections are pooled by a thread safe connection manager, which allows as many connections to each Dropbox server
+ * as there are parallel transfers.
+ *
+ * Files larger than Provider#CHUNK_SIZE are uploaded with chunked upload sessions and downloaded with range requests, so that an interrupted
+ * transfer of a large note is resumed instead of being started again (see Provider#uploadChunked(File, String, boolean)).
  */
 
 package com.jstickies.data.sync.provider;
 
 import java.awt.Desktop;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.ImageIcon;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRoute;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.RESTUtility;
+import com.dropbox.client2.DropboxAPI.ChunkedUploadResponse;
+import com.dropbox.client2.DropboxAPI.DeltaEntry;
+import com.dropbox.client2.DropboxAPI.DeltaPage;
 import com.dropbox.client2.DropboxAPI.DropboxFileInfo;
+import com.dropbox.client2.DropboxAPI.DropboxInputStream;
 import com.dropbox.client2.DropboxAPI.Entry;
 import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxServerException;
 import com.dropbox.client2.session.AccessTokenPair;
 import com.dropbox.client2.session.AppKeyPair;
 import com.dropbox.client2.session.Session.AccessType;
@@ -42,8 +81,14 @@ public class Dropbox extends Provider {
 	final static private AccessType ACCESS_TYPE = AccessType.APP_FOLDER;
 	final static private String DISPLAY_NAME = "Dropbox";
 	final static private Logger logger = LoggerFactory.getLogger(Dropbox.class);
+	final static private int METADATA_LIMIT = 25000; //Maximum number of files returned by a metadata request
 	
-	private DropboxAPI<WebAuthSession> DBAPI;
+	private DropboxAPI<WebAuthSession> dropboxAPI; //Guarded by this
+	private volatile PooledSession session;
+	private volatile Map<String, RemoteFile> listing; //Files on the server, cached during a synchronization
+	private volatile boolean unlisted; //The files could not be listed during this synchronization
+	private volatile boolean largeFolder; //The folder has more than METADATA_LIMIT files, so it is listed from the delta pages
+	private Map<String, RemoteFile> uploaded = new ConcurrentHashMap<String, RemoteFile>(); //Files uploaded during a synchronization
 	
 	public Dropbox() {}
 	
@@ -68,11 +113,11 @@ public class Dropbox extends Provider {
 	 */
 	@Override
 	public String getUsername() {
-		initSession();
+		DropboxAPI<WebAuthSession> api = getAPI();
 		String name = null;
 		
 		try {
-			name = DBAPI.accountInfo().displayName;
+			name = api.accountInfo().displayName;
 		} 
 		catch (DropboxException e) {
 			logger.error("Error getting username from Dropbox server : {}", e.getMessage());
@@ -140,10 +185,7 @@ public class Dropbox extends Provider {
 	public void unAuthorize() {}
 	
 	public String getServerAddress() {
-		AppKeyPair appKeys = new AppKeyPair(APP_KEY, APP_SECRET);
-		AccessTokenPair token = (AccessTokenPair) getAuthInfo();
-		WebAuthSession session = new WebAuthSession(appKeys, ACCESS_TYPE, token);
-		return session.getWebServer();
+		return getAPI().getSession().getWebServer();
 	}
 
 	/*
@@ -152,41 +194,224 @@ public class Dropbox extends Provider {
 	@Override
 	public String[] getFiles() {
 		ArrayList<String> fileNames = new ArrayList<String>();
-		initSession();
+		List<RemoteFile> files = listFiles();
+		if(files != null)
+			for(RemoteFile f : files)
+				fileNames.add(f.name);
+		
+		return fileNames.toArray(new String[fileNames.size()]);
+	}
+	
+	/*
+	 * Clears the listing of the files cached during the previous synchronization.
+	 */
+	@Override
+	public void beginCycle() {
+		listing = null;
+		unlisted = false;
+		uploaded.clear();
+		
+		PooledSession s = session;
+		if(s != null)
+			s.closeIdleConnections();
+	}
+	
+	/*
+	 * Closes all the connections of the session.
+	 */
+	@Override
+	public synchronized void close() {
+		if(session != null) {
+			logger.info("Closing the session with Dropbox");
+			session.shutdown();
+			session = null;
+			dropboxAPI = null;
+		}
+	}
+	
+	/*
+	 * Lists all the files in the JStickies folder with a single metadata request, or from the delta pages if the folder has more than
+	 * METADATA_LIMIT files. The listing is cached until the next synchronization.
+	 */
+	@Override
+	public List<RemoteFile> listFiles() {
+		Map<String, RemoteFile> files = getListing();
+		return (files == null)? null : new ArrayList<RemoteFile>(files.values());
+	}
+	
+	/*
+	 * Checks which of the files exist using the cached listing.
+	 */
+	@Override
+	public boolean[] filesExist(String[] serverFiles) {
+		Map<String, RemoteFile> files = getListing();
+		if(files == null)
+			return super.filesExist(serverFiles);
+		
+		boolean[] exist = new boolean[serverFiles.length];
+		for(int i=0; i<serverFiles.length; i++)
+			exist[i] = files.containsKey(serverFiles[i]);
+		return exist;
+	}
+	
+	/*
+	 * Returns the cached listing of the files, listing them if required. A metadata request returns at most METADATA_LIMIT files, so larger
+	 * folders are listed from the delta pages, which are not limited. Returns null if the files could not be listed, in which case they are
+	 * not listed again during this synchronization.
+	 */
+	private synchronized Map<String, RemoteFile> getListing() {
+		if(listing != null || unlisted)
+			return listing;
 		
+		if(!largeFolder) {
+			DropboxAPI<WebAuthSession> api = getAPI();
+			try {
+				logger.info("Getting files from server");
+				Entry entry = api.metadata("/", METADATA_LIMIT, null, true, null);
+				
+				ConcurrentHashMap<String, RemoteFile> files = new ConcurrentHashMap<String, RemoteFile>();
+				for(Entry e : entry.contents)
+					if(!e.isDir && !e.isDeleted)
+						files.put(e.fileName(), toRemoteFile(e));
+				logger.info("{} files found on the server", files.size());
+				listing = files;
+				return listing;
+			}
+			catch (DropboxServerException e) {
+				if(e.error == DropboxServerException._406_NOT_ACCEPTABLE) {
+					logger.info("More than {} files on Dropbox. Listing them from the delta pages", METADATA_LIMIT);
+					largeFolder = true;
+				}
+				else
+					logger.error("Error while getting files from Dropbox : {}", e.getMessage());
+			}
+			catch (DropboxException e) {
+				logger.error("Error while getting files from Dropbox : {}", e.getMessage());
+			}
+		}
+		if(largeFolder)
+			getChanges(null); //A reset contains all the files, and is used as the listing
+		
+		if(listing == null) {
+			logger.warn("Unable to list the files on Dropbox. Searching for the files one at a time during this synchronization");
+			unlisted = true;
+		}
+		return listing;
+	}
+	
+	/*
+	 * Records an uploaded file, and adds it to the cached listing if there is one.
+	 */
+	private void addToListing(RemoteFile file) {
+		uploaded.put(file.name, file);
+		Map<String, RemoteFile> files = listing;
+		if(files != null)
+			files.put(file.name, file);
+	}
+	
+	/*
+	 * Returns the details of a file from the files uploaded or listed during this synchronization, and requests its metadata otherwise.
+	 */
+	@Override
+	public RemoteFile getFileInfo(String serverFile) {
+		RemoteFile file = uploaded.get(serverFile);
+		Map<String, RemoteFile> files = listing;
+		if(file == null && files != null)
+			file = files.get(serverFile);
+		if(file != null || files != null)
+			return file;
+		
+		DropboxAPI<WebAuthSession> api = getAPI();
 		try {
-			logger.info("Getting files from server");
-			Entry entry = DBAPI.metadata("/", 0, null, true, null);
-			
-			logger.info("{} files found on the server", entry.size);
-			List<Entry> l = entry.contents;
-			for(int i=0; i<l.size(); i++)
-				fileNames.add(l.get(i).fileName());
-			
-		} catch (DropboxException e) {
-			logger.error("Error while getting files from Dropbox : {}", e.getMessage());
+			Entry entry = api.metadata("/" + serverFile, 1, null, false, null);
+			if(!entry.isDeleted)
+				return toRemoteFile(entry);
+		}
+		catch (DropboxException e) {
+			logger.error("Error while getting the metadata of file {} from Dropbox : {}", serverFile, e.getMessage());
+		}
+		return null;
+	}
+	
+	/*
+	 * Gets the changes since cursor from the delta endpoint of Dropbox, following the pages until there are no more changes. A reset contains
+	 * all the files on the server, so it is also used as the listing of the files for this synchronization.
+	 */
+	@Override
+	public ChangeSet getChanges(String cursor) {
+		DropboxAPI<WebAuthSession> api = getAPI();
+		ChangeSet changes = null;
+		try {
+			DeltaPage<Entry> page;
+			do {
+				page = api.delta(cursor);
+				if(changes == null || page.reset)
+					changes = new ChangeSet(page.reset);
+				
+				for(DeltaEntry<Entry> e : page.entries) {
+					if(e.lcPath.lastIndexOf('/') != 0) //Only the files in the JStickies folder are used
+						continue;
+					if(e.metadata == null || e.metadata.isDeleted)
+						changes.addDeleted(e.lcPath.substring(1));
+					else if(!e.metadata.isDir)
+						changes.addChanged(toRemoteFile(e.metadata));
+				}
+				cursor = page.cursor;
+			} while(page.hasMore);
+		}
+		catch (DropboxException e) {
+			logger.error("Error while getting changes from Dropbox : {}", e.getMessage());
+			return null;
 		}
 		
-		return fileNames.toArray(new String[fileNames.size()]);
+		changes.setCursor(cursor);
+		logger.info("{} change(s) found on the server{}", changes.size(), (changes.isReset())? " (reset)" : "");
+		if(changes.isReset()) {
+			ConcurrentHashMap<String, RemoteFile> files = new ConcurrentHashMap<String, RemoteFile>();
+			for(RemoteFile f : changes.getChanged())
+				files.put(f.name, f);
+			listing = files;
+		}
+		return changes;
+	}
+	
+	private static RemoteFile toRemoteFile(Entry e) {
+		Date modified = (e.modified == null)? null : RESTUtility.parseDate(e.modified);
+		return new RemoteFile(e.fileName(), e.bytes, e.rev, (modified == null)? -1 : modified.getTime());
 	}
 
 	/*
-	 * Uploads the file diskFile to Dropbox with the name serverFile
+	 * Uploads the file diskFile to Dropbox with the name serverFile. Files larger than CHUNK_SIZE are uploaded in chunks.
 	 */
 	@Override
-	public void uploadFile(File diskFile, String serverFile, boolean overwrite) {
-		initSession();
+	public boolean uploadFile(File diskFile, String serverFile, boolean overwrite) {
+		logger.info("Uploading file {} to Dropbox", diskFile.getName());
+		RemoteFile file = (diskFile.length() > CHUNK_SIZE)? uploadChunked(diskFile, serverFile, overwrite) : upload(diskFile, serverFile, overwrite);
+		
+		if(file != null && file.size == diskFile.length()) {
+			logger.info("File {} successfully uploaded", diskFile.getName());
+			addToListing(file);
+			return true;
+		}
+		logger.warn("File {} was not uploaded properly", diskFile.getName());
+		return false;
+	}
+	
+	/*
+	 * Uploads the file diskFile in a single request. Returns the uploaded file, or null if it was not uploaded.
+	 */
+	private RemoteFile upload(File diskFile, String serverFile, boolean overwrite) {
+		DropboxAPI<WebAuthSession> api = getAPI();
 		FileInputStream fis = null;
 		Entry temp = null;
-		logger.info("Uploading file {} to Dropbox", diskFile.getName());
 		
 		try {
 			fis = new FileInputStream(diskFile);
 			
 			if(overwrite)
-				temp = DBAPI.putFileOverwrite("/" + serverFile, fis, diskFile.length(), null);
+				temp = api.putFileOverwrite("/" + serverFile, fis, diskFile.length(), null);
 			else
-				temp = DBAPI.putFile("/" + serverFile, fis, diskFile.length(), null, null);
+				temp = api.putFile("/" + serverFile, fis, diskFile.length(), null, null);
 		} 
 		catch (FileNotFoundException e) {
 			logger.error("Error while uploading file {} to Dropbox : {}", diskFile.getName(), e.getMessage());
@@ -194,47 +419,178 @@ public class Dropbox extends Provider {
 		catch (DropboxException e) {
 			logger.error("Error while uploading file to Dropbox : {}", e.getMessage());
 		}
-		
-		if(temp.bytes == diskFile.length())
-			logger.info("File {} successfully uploaded", diskFile.getName());
-		else
-			logger.warn("File {} was not uploaded properly", diskFile.getName());
+		finally {
+			close(fis);
+		}
+		return (temp == null)? null : toRemoteFile(temp);
 	}
-
+	
+	/*
+	 * Downloads the file serverFile from Dropbox into diskFile. Files larger than CHUNK_SIZE are downloaded in chunks. If the size of the file
+	 * is not known from this synchronization, it is read from the response, and the download is restarted in chunks if the file is large.
+	 */
 	@Override
-	public void downloadFile(String serverFile, File diskFile) {
-		initSession();
-		FileOutputStream fos = null;
-		DropboxFileInfo temp = null;
+	public boolean downloadFile(String serverFile, File diskFile) {
+		DropboxAPI<WebAuthSession> api = getAPI();
+		RemoteFile file = uploaded.get(serverFile);
+		Map<String, RemoteFile> files = listing;
+		if(file == null && files != null)
+			file = files.get(serverFile);
 		logger.info("Downloading {} from Dropbox", serverFile);
 		
-		try{
-			fos = new FileOutputStream(diskFile);
-			temp = DBAPI.getFile("/" + serverFile, null, fos, null);
-		} 
-		catch(FileNotFoundException e) {
-			logger.error("Error while downloading file from Dropbox : {}", e.getMessage());
-		} 
-		catch (DropboxException e) {
-			logger.error("Error while downloading file from Dropbox : {}", e.getMessage());
+		if(file == null || file.size <= CHUNK_SIZE || file.rev == null) {
+			DropboxInputStream in = null;
+			FileOutputStream fos = null;
+			DropboxFileInfo temp = null;
+			try {
+				in = api.getFileStream("/" + serverFile, null);
+				temp = in.getFileInfo();
+				if(temp != null && temp.getFileSize() > CHUNK_SIZE && temp.getMetadata() != null)
+					file = toRemoteFile(temp.getMetadata());
+				else {
+					fos = new FileOutputStream(diskFile);
+					in.copyStreamToOutput(fos, null);
+				}
+			}
+			catch(FileNotFoundException e) {
+				logger.error("Error while downloading file from Dropbox : {}", e.getMessage());
+			} 
+			catch (DropboxException e) {
+				logger.error("Error while downloading file from Dropbox : {}", e.getMessage());
+			}
+			finally {
+				close(fos);
+				close(in);
+			}
+			
+			if(fos != null) {
+				if(temp != null && temp.getFileSize() == diskFile.length()) {
+					logger.info("File {} successfully downloaded", serverFile);
+					return true;
+				}
+				logger.info("File {} was not downloaded properly", serverFile);
+				return false;
+			}
+			if(file == null || file.size <= CHUNK_SIZE) {
+				logger.info("File {} was not downloaded properly", serverFile);
+				return false;
+			}
 		}
 		
-		if(temp.getFileSize() == diskFile.length())
+		if(downloadChunked(file, diskFile)) {
 			logger.info("File {} successfully downloaded", serverFile);
-		else
-			logger.info("File {} was not downloaded properly", serverFile);
+			return true;
+		}
+		logger.info("File {} was not downloaded properly", serverFile);
+		return false;
+	}
+	
+	/*
+	 * Uploads a chunk with a chunked upload request. Sends the same request as DropboxAPI#chunkedUploadRequest(InputStream, long,
+	 * ProgressListener, long, String), whose result cannot be used outside the SDK. An upload session that Dropbox does not know, or whose
+	 * offset does not match, is started again.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected String uploadChunk(String session, long offset, byte[] chunk, int length) throws IOException {
+		WebAuthSession s = getAPI().getSession();
+		String url = RESTUtility.buildURL(s.getContentServer(), DropboxAPI.VERSION, "/chunked_upload/",
+				new String[] {"upload_id", session, "offset", String.valueOf(offset)});
+		HttpPut request = new HttpPut(url);
+		s.sign(request);
+		ByteArrayEntity entity = new ByteArrayEntity(Arrays.copyOf(chunk, length));
+		entity.setContentType("application/octet-stream");
+		request.setEntity(entity);
+		
+		try {
+			ChunkedUploadResponse response = new ChunkedUploadResponse((Map<String, Object>) RESTUtility.parseAsJSON(
+					RESTUtility.execute(s, request)));
+			if(response.getOffset() != offset + length)
+				throw new IOException("Dropbox received " + response.getOffset() + " bytes instead of " + (offset + length));
+			return response.getUploadId();
+		}
+		catch(DropboxServerException e) {
+			if(session != null && (e.error == DropboxServerException._404_NOT_FOUND || e.error == DropboxServerException._400_BAD_REQUEST))
+				return null;
+			throw new IOException(e.toString(), e);
+		}
+		catch(DropboxException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+	
+	/*
+	 * Commits a chunked upload session. Sends the same request as DropboxAPI.ChunkedUploader#finish(String, String), which needs the
+	 * ChunkedUploader that started the session, so it cannot commit a session that was resumed.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected RemoteFile commitChunks(String session, String serverFile, boolean overwrite) throws IOException {
+		WebAuthSession s = getAPI().getSession();
+		String url = RESTUtility.buildURL(s.getContentServer(), DropboxAPI.VERSION, "/commit_chunked_upload/" + s.getAccessType() + "/" +
+				serverFile, new String[] {"overwrite", String.valueOf(overwrite), "locale", s.getLocale().toString(), "upload_id", session});
+		HttpPost request = new HttpPost(url);
+		s.sign(request);
+		
+		try {
+			Map<String, Object> entry = (Map<String, Object>) RESTUtility.parseAsJSON(RESTUtility.execute(s, request));
+			return toRemoteFile(new Entry(entry));
+		}
+		catch(DropboxException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+	
+	/*
+	 * Requests a range of a revision of the file. If Dropbox ignores the range and sends the whole file, the bytes before the range are skipped.
+	 */
+	@Override
+	protected InputStream openRange(String serverFile, String rev, long offset, long length) throws IOException {
+		WebAuthSession s = getAPI().getSession();
+		String url = RESTUtility.buildURL(s.getContentServer(), DropboxAPI.VERSION, "/files/" + s.getAccessType() + "/" + serverFile,
+				new String[] {"rev", rev, "locale", s.getLocale().toString()});
+		HttpGet request = new HttpGet(url);
+		request.addHeader("Range", "bytes=" + offset + "-" + (offset + length - 1));
+		s.sign(request);
+		
+		try {
+			HttpResponse response = RESTUtility.execute(s, request);
+			DropboxInputStream in = new DropboxInputStream(request, response);
+			if(response.getStatusLine().getStatusCode() != DropboxServerException._206_PARTIAL_CONTENT)
+				for(long skipped = 0; skipped < offset; ) {
+					long n = in.skip(offset - skipped);
+					if(n <= 0) {
+						in.close();
+						throw new IOException("The file ended before byte " + offset);
+					}
+					skipped += n;
+				}
+			return in;
+		}
+		catch(DropboxServerException e) {
+			if(e.error == DropboxServerException._404_NOT_FOUND)
+				return null;
+			throw new IOException(e.toString(), e);
+		}
+		catch(DropboxException e) {
+			throw new IOException(e.getMessage(), e);
+		}
 	}
 
 	/*
-	 * Checks whether the file ServerFile exists on Dropbox
+	 * Checks whether the file ServerFile exists on Dropbox. Uses the cached listing of the files, and searches for the file only if the files
+	 * could not be listed.
 	 */
 	@Override
 	public boolean fileExists(String serverFile) {
-		initSession();
+		Map<String, RemoteFile> files = getListing();
+		if(files != null)
+			return files.containsKey(serverFile);
 		
+		DropboxAPI<WebAuthSession> api = getAPI();
 		try {
 			logger.info("Searching for file {} on Dropbox", serverFile);
-			List<Entry> results = DBAPI.search("/", serverFile, 0, false);
+			List<Entry> results = api.search("/", serverFile, 0, false);
 			Iterator<Entry> iterator = results.iterator();
 			
 			while(iterator.hasNext())
@@ -250,13 +606,119 @@ public class Dropbox extends Provider {
 	}
 	
 	/*
-	 * Initializes a web session with Dropbox
+	 * Deletes the file serverFile from Dropbox, and from the files uploaded or listed during this synchronization. A file that is not on
+	 * Dropbox any more counts as deleted.
 	 */
-	private void initSession() {
-		logger.info("Initializing a session with Dropbox");
-		AppKeyPair appKeys = new AppKeyPair(APP_KEY, APP_SECRET);
-		AccessTokenPair token = (AccessTokenPair) getAuthInfo();
-		WebAuthSession session = new WebAuthSession(appKeys, ACCESS_TYPE, token);
-		DBAPI = new DropboxAPI<WebAuthSession>(session);
+	@Override
+	public boolean deleteFile(String serverFile) {
+		DropboxAPI<WebAuthSession> api = getAPI();
+		try {
+			logger.info("Deleting file {} from Dropbox", serverFile);
+			api.delete("/" + serverFile);
+		}
+		catch (DropboxServerException e) {
+			if(e.error != DropboxServerException._404_NOT_FOUND) {
+				logger.error("Error while deleting file {} from Dropbox : {}", serverFile, e.getMessage());
+				return false;
+			}
+		}
+		catch (DropboxException e) {
+			logger.error("Error while deleting file {} from Dropbox : {}", serverFile, e.getMessage());
+			return false;
+		}
+		
+		uploaded.remove(serverFile);
+		Map<String, RemoteFile> files = listing;
+		if(files != null)
+			files.remove(serverFile);
+		return true;
+	}
+	
+	/*
+	 * Returns the DropboxAPI of this Provider, initializing a session with Dropbox on the first call. The DropboxAPI is shared by all the 
+	 * threads, since the session only holds the access token and the pooled HttpClient.
+	 */
+	private synchronized DropboxAPI<WebAuthSession> getAPI() {
+		if(dropboxAPI == null) {
+			logger.info("Initializing a session with Dropbox");
+			AppKeyPair appKeys = new AppKeyPair(APP_KEY, APP_SECRET);
+			AccessTokenPair token = (AccessTokenPair) getAuthInfo();
+			session = new PooledSession(appKeys, ACCESS_TYPE, token);
+			dropboxAPI = new DropboxAPI<WebAuthSession>(session);
+		}
+		return dropboxAPI;
+	}
+	
+	/*
+	 * Closes a stream used for transferring a file.
+	 */
+	private void close(Closeable c) {
+		if(c != null)
+			try {
+				c.close();
+			}
+			catch(IOException e) {
+				logger.warn("Unable to close stream : {}", e.getMessage());
+			}
+	}
+	
+	/*
+	 * A WebAuthSession whose HttpClient allows as many connections to each Dropbox server as there are parallel transfers. The HttpClient of
+	 * WebAuthSession limits the connections to each server to 10.
+	 */
+	private static class PooledSession extends WebAuthSession {
+		
+		private static final int MAX_CONNECTIONS = 64, TIMEOUT = 30000; //Timeout in milliseconds
+		private static final long IDLE_TIME = 20; //in seconds
+		
+		private ThreadSafeClientConnManager connManager;
+		private DefaultHttpClient client;
+		
+		PooledSession(AppKeyPair appKeys, AccessType accessType, AccessTokenPair token) {
+			super(appKeys, accessType, token);
+		}
+		
+		@Override
+		public synchronized HttpClient getHttpClient() {
+			if(client == null) {
+				HttpParams params = new BasicHttpParams();
+				ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+				ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRoute() {
+					public int getMaxForRoute(HttpRoute route) {
+						return Math.min(JStickies.SYNC_SETTINGS.getConcurrency() + 1, MAX_CONNECTIONS); //Transfers and a metadata request
+					}
+				});
+				
+				SchemeRegistry schemes = new SchemeRegistry();
+				schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+				schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+				connManager = new ThreadSafeClientConnManager(params, schemes);
+				
+				HttpParams clientParams = new BasicHttpParams();
+				HttpConnectionParams.setConnectionTimeout(clientParams, TIMEOUT);
+				HttpConnectionParams.setSoTimeout(clientParams, TIMEOUT);
+				HttpConnectionParams.setSocketBufferSize(clientParams, 8192);
+				HttpProtocolParams.setUserAgent(clientParams, "JStickies");
+				client = new DefaultHttpClient(connManager, clientParams);
+			}
+			return client;
+		}
+		
+		/*
+		 * Closes the connections that have been idle for longer than Dropbox keeps them alive.
+		 */
+		synchronized void closeIdleConnections() {
+			if(connManager != null) {
+				connManager.closeExpiredConnections();
+				connManager.closeIdleConnections(IDLE_TIME, TimeUnit.SECONDS);
+			}
+		}
+		
+		synchronized void shutdown() {
+			if(connManager != null)
+				connManager.shutdown();
+			client = null;
+			connManager = null;
+		}
 	}
 }
@@ -0,0 +1,489 @@
+/*
+ * This class represents a Provider that stores the files in a folder, e.g. a folder on a network drive or one that is synchronized by another
+ * program. Every file on the server is a file in the folder, and its revision is derived from its modification time and size. Files are
+ * uploaded to a temporary file in the folder and then moved into place, so other computers never read a partially uploaded file.
+ *
+ * Since it does not need a network, it is also used for benchmarking the Synchronizer (see SyncBenchmark in the bench folder). The cost of a
+ * remote server can be simulated using system properties :
+ * 	- jstickies.localfolder.latency - Delay added to every request, in milliseconds (default: 0)
+ * 	- jstickies.localfolder.bandwidth - Transfer rate of uploads and downloads, in bytes per second. Unlimited if it is 0 (default: 0)
+ * 	- jstickies.localfolder.failures - Probability that a request fails, from 0 to 1 (default: 0)
+ *
+ * Files larger than Provider#CHUNK_SIZE are transferred in chunks, every chunk being a request, so that resuming interrupted transfers can be
+ * tested with simulated failures. The chunks of an upload are appended to a temporary file in the folder, which is moved into place when the
+ * upload is committed.
+ *
+ * The requests made and the bytes transferred are counted, see LocalFolderProvider#getStatistics().
+ */
+
+package com.jstickies.data.sync.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.ImageIcon;
+import javax.swing.JFileChooser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+
+public class LocalFolderProvider extends Provider {
+
+	private static final String DISPLAY_NAME = "Local Folder";
+	private static final String TEMP_PREFIX = "."; //Temporary files of uploads, which are not listed
+	private static final String CURSOR_PREFIX = "r:";
+	private static final int CURSOR_ENTRY = 24; //Hex digits of the hash of the name (16) and of the revision (8) of a file in the cursor
+	private static final Logger logger = LoggerFactory.getLogger(LocalFolderProvider.class);
+
+	private File folder; //null until it is read from the authorization information
+	private final long latency = Long.getLong("jstickies.localfolder.latency", 0); //in milliseconds
+	private final long bandwidth = Long.getLong("jstickies.localfolder.bandwidth", 0); //in bytes per second
+	private final double failureRate = Double.parseDouble(System.getProperty("jstickies.localfolder.failures", "0"));
+	private final Random random = new Random();
+
+	private final AtomicLong requests = new AtomicLong(), failures = new AtomicLong(), bytesUploaded = new AtomicLong(),
+			bytesDownloaded = new AtomicLong();
+
+	/*
+	 * Creates a LocalFolderProvider for the folder selected during authorization.
+	 */
+	public LocalFolderProvider() {}
+
+	/*
+	 * Creates a LocalFolderProvider for folder.
+	 */
+	public LocalFolderProvider(File folder) {
+		this.folder = folder;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return DISPLAY_NAME;
+	}
+
+	@Override
+	public ImageIcon getIcon() {
+		return JStickies.loadImage(JStickies.MEDIA_FOLDER + "/settings.png");
+	}
+
+	/*
+	 * Returns the path of the folder, since there is no account.
+	 */
+	@Override
+	public String getUsername() {
+		return getFolder().getAbsolutePath();
+	}
+
+	/*
+	 * Lets the user select the folder, and saves its path as the authorization information.
+	 */
+	@Override
+	public void authorize() {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setDialogTitle("Select the folder to synchronize the notes with");
+		chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if(chooser.showOpenDialog(JStickies.JFRAME) != JFileChooser.APPROVE_OPTION)
+			return;
+
+		folder = chooser.getSelectedFile();
+		logger.info("Synchronizing with folder {}", folder.getAbsolutePath());
+		saveAuthInfo(folder.getAbsolutePath());
+	}
+
+	@Override
+	public void unAuthorize() {}
+
+	@Override
+	public String getServerAddress() {
+		return getFolder().getAbsolutePath();
+	}
+
+	/*
+	 * Checks whether the folder exists, e.g. whether the network drive it is on is mounted.
+	 */
+	@Override
+	public boolean isAvailable() {
+		return request("probe") && getFolder().isDirectory();
+	}
+
+	@Override
+	public String[] getFiles() {
+		List<RemoteFile> files = listFiles();
+		if(files == null)
+			return new String[0];
+
+		String[] fileNames = new String[files.size()];
+		for(int i=0; i<fileNames.length; i++)
+			fileNames[i] = files.get(i).name;
+		return fileNames;
+	}
+
+	/*
+	 * Lists the folder in a single request.
+	 */
+	@Override
+	public List<RemoteFile> listFiles() {
+		if(!request("list"))
+			return null;
+		return list();
+	}
+
+	@Override
+	public RemoteFile getFileInfo(String serverFile) {
+		if(!request("metadata"))
+			return null;
+		File f = new File(getFolder(), serverFile);
+		return (f.isFile())? toRemoteFile(f) : null;
+	}
+
+	@Override
+	public boolean fileExists(String serverFile) {
+		return request("exists") && new File(getFolder(), serverFile).isFile();
+	}
+
+	@Override
+	public boolean deleteFile(String serverFile) {
+		if(!request("delete " + serverFile))
+			return false;
+		try {
+			Files.deleteIfExists(new File(getFolder(), serverFile).toPath());
+			return true;
+		}
+		catch(IOException e) {
+			logger.error("Error while deleting file {} : {}", serverFile, e.getMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * Returns the files whose revision differs from the one in the listing that cursor was made from. The cursor holds a hash of the name and
+	 * of the revision of every file, so a file is reported even if its modification time went backwards, e.g. when it was written by a
+	 * computer whose clock is behind or by a program that keeps modification times. Since a folder cannot report the names of deleted files,
+	 * all the files are returned as a reset if a file of the cursor is not listed any more.
+	 */
+	@Override
+	public ChangeSet getChanges(String cursor) {
+		if(!request("changes"))
+			return null;
+		List<RemoteFile> files = list();
+		if(files == null)
+			return null;
+
+		HashMap<Long, Integer> previous = decodeCursor(cursor);
+		long[] names = new long[files.size()];
+		int[] revs = new int[files.size()];
+		int listed = 0; //Files of the cursor that are still listed
+		for(int i=0; i<names.length; i++) {
+			names[i] = hash(files.get(i).name);
+			revs[i] = (int) hash(files.get(i).rev);
+			if(previous != null && previous.containsKey(names[i]))
+				listed++;
+		}
+
+		boolean reset = previous == null || listed < previous.size();
+		ChangeSet changes = new ChangeSet(reset);
+		StringBuilder next = new StringBuilder(CURSOR_PREFIX.length() + names.length * CURSOR_ENTRY);
+		next.append(CURSOR_PREFIX);
+		for(int i=0; i<names.length; i++) {
+			Integer rev = (reset)? null : previous.get(names[i]);
+			if(rev == null || rev != revs[i])
+				changes.addChanged(files.get(i));
+			appendHex(next, names[i] >>> 32, 8);
+			appendHex(next, names[i], 8);
+			appendHex(next, revs[i], 8);
+		}
+		changes.setCursor(next.toString());
+		logger.info("{} change(s) found in the folder{}", changes.size(), (reset)? " (reset)" : "");
+		return changes;
+	}
+
+	/*
+	 * Returns the hashes of the revisions of the files in cursor by the hashes of their names, or null if the cursor is not known.
+	 */
+	private static HashMap<Long, Integer> decodeCursor(String cursor) {
+		if(cursor == null)
+			return null;
+		if(!cursor.startsWith(CURSOR_PREFIX) || (cursor.length() - CURSOR_PREFIX.length()) % CURSOR_ENTRY != 0) {
+			logger.info("Change cursor of an earlier version or invalid, listing all the files");
+			return null;
+		}
+
+		HashMap<Long, Integer> revs = new HashMap<Long, Integer>();
+		try {
+			for(int i=CURSOR_PREFIX.length(); i<cursor.length(); i+=CURSOR_ENTRY) {
+				long name = (Long.parseLong(cursor.substring(i, i + 8), 16) << 32) | Long.parseLong(cursor.substring(i + 8, i + 16), 16);
+				revs.put(name, (int) Long.parseLong(cursor.substring(i + 16, i + 24), 16));
+			}
+		}
+		catch(NumberFormatException e) {
+			logger.warn("Invalid change cursor : {}", e.getMessage());
+			return null;
+		}
+		return revs;
+	}
+
+	private static void appendHex(StringBuilder s, long value, int digits) {
+		for(int shift=(digits - 1) * 4; shift>=0; shift-=4)
+			s.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+	}
+
+	/*
+	 * Returns the 64 bit FNV-1a hash of s.
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for(int i=0; i<s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean uploadFile(File diskFile, String serverFile, boolean overwrite) {
+		if(diskFile.length() > CHUNK_SIZE)
+			return uploadChunked(diskFile, serverFile, overwrite) != null;
+		if(!request("upload " + serverFile))
+			return false;
+
+		File temp = null;
+		try {
+			temp = File.createTempFile(TEMP_PREFIX + serverFile, ".tmp", getFolder());
+			Files.copy(diskFile.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			throttle(temp.length());
+			if(overwrite)
+				Files.move(temp.toPath(), new File(getFolder(), serverFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			else
+				Files.move(temp.toPath(), new File(getFolder(), serverFile).toPath());
+			bytesUploaded.addAndGet(diskFile.length());
+			return true;
+		}
+		catch(FileAlreadyExistsException e) {
+			logger.warn("File {} was not uploaded, since it already exists", serverFile);
+		}
+		catch(IOException e) {
+			logger.error("Error while uploading file {} : {}", serverFile, e.getMessage());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if(temp != null)
+				temp.delete();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean downloadFile(String serverFile, File diskFile) {
+		File file = new File(getFolder(), serverFile);
+		if(file.length() > CHUNK_SIZE)
+			return downloadChunked(toRemoteFile(file), diskFile);
+		if(!request("download " + serverFile))
+			return false;
+
+		try {
+			File f = new File(getFolder(), serverFile);
+			throttle(f.length());
+			Files.copy(f.toPath(), diskFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			bytesDownloaded.addAndGet(diskFile.length());
+			return true;
+		}
+		catch(IOException e) {
+			logger.error("Error while downloading file {} : {}", serverFile, e.getMessage());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/*
+	 * Appends a chunk to the temporary file of the upload session. A session whose file does not exist or does not end at offset is not known.
+	 */
+	@Override
+	protected String uploadChunk(String session, long offset, byte[] chunk, int length) throws IOException {
+		if(!request("upload chunk at " + offset))
+			throw new IOException("Request failed");
+		String id = (session == null)? UUID.randomUUID().toString() : session;
+		File temp = getUploadFile(id);
+		if(session != null && (!temp.isFile() || temp.length() != offset))
+			return null;
+		
+		FileOutputStream out = new FileOutputStream(temp, true);
+		try {
+			out.write(chunk, 0, length);
+			throttle(length);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		finally {
+			out.close();
+		}
+		bytesUploaded.addAndGet(length);
+		return id;
+	}
+	
+	/*
+	 * Moves the temporary file of the upload session into place.
+	 */
+	@Override
+	protected RemoteFile commitChunks(String session, String serverFile, boolean overwrite) throws IOException {
+		if(!request("commit " + serverFile))
+			throw new IOException("Request failed");
+		File file = new File(getFolder(), serverFile);
+		if(overwrite)
+			Files.move(getUploadFile(session).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		else
+			Files.move(getUploadFile(session).toPath(), file.toPath());
+		return toRemoteFile(file);
+	}
+	
+	/*
+	 * Opens the file at offset. Only the current revision of a file is kept.
+	 */
+	@Override
+	protected InputStream openRange(String serverFile, String rev, long offset, long length) throws IOException {
+		if(!request("download chunk of " + serverFile + " at " + offset))
+			throw new IOException("Request failed");
+		File file = new File(getFolder(), serverFile);
+		if(!file.isFile() || !toRemoteFile(file).rev.equals(rev))
+			return null;
+		
+		try {
+			throttle(length);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		InputStream in = new FileInputStream(file);
+		if(in.skip(offset) != offset) {
+			in.close();
+			throw new IOException("File " + serverFile + " ended before byte " + offset);
+		}
+		bytesDownloaded.addAndGet(length);
+		return in;
+	}
+	
+	/*
+	 * Returns the number of requests made, including the ones that failed.
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/*
+	 * Returns the number of bytes uploaded.
+	 */
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+
+	/*
+	 * Returns the number of bytes downloaded.
+	 */
+	public long getBytesDownloaded() {
+		return bytesDownloaded.get();
+	}
+
+	/*
+	 * Returns the requests made and the bytes transferred since the LocalFolderProvider was created.
+	 */
+	public String getStatistics() {
+		return String.format("%d request(s), %d failed, %d bytes uploaded, %d bytes downloaded", requests.get(), failures.get(),
+				bytesUploaded.get(), bytesDownloaded.get());
+	}
+
+	/*
+	 * Starts a request : waits for the latency, and decides whether the request fails. Returns false if it fails.
+	 */
+	private boolean request(String description) {
+		requests.incrementAndGet();
+		try {
+			if(latency > 0)
+				Thread.sleep(latency);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		if(failureRate > 0 && random.nextDouble() < failureRate) {
+			failures.incrementAndGet();
+			logger.warn("Request failed : {}", description);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Waits for the time that transferring bytes takes at the bandwidth.
+	 */
+	private void throttle(long bytes) throws InterruptedException {
+		if(bandwidth > 0)
+			Thread.sleep(bytes * 1000 / bandwidth);
+	}
+
+	/*
+	 * Lists the files in the folder, or returns null if it cannot be read.
+	 */
+	private List<RemoteFile> list() {
+		File[] files = getFolder().listFiles();
+		if(files == null) {
+			logger.error("Unable to list folder {}", getFolder());
+			return null;
+		}
+
+		ArrayList<RemoteFile> list = new ArrayList<RemoteFile>(files.length);
+		for(File f : files)
+			if(f.isFile() && !f.getName().startsWith(TEMP_PREFIX))
+				list.add(toRemoteFile(f));
+		return list;
+	}
+
+	/*
+	 * Returns the temporary file holding the chunks of an upload session.
+	 */
+	private File getUploadFile(String session) {
+		return new File(getFolder(), TEMP_PREFIX + "upload-" + session);
+	}
+	
+	/*
+	 * Returns the details of a file in the folder. The revision is the modification time in nanoseconds and the size, as hex.
+	 */
+	private static RemoteFile toRemoteFile(File f) {
+		long modified;
+		try {
+			modified = Files.getLastModifiedTime(f.toPath()).to(TimeUnit.NANOSECONDS);
+		}
+		catch(IOException e) {
+			modified = f.lastModified() * 1000000;
+		}
+		return new RemoteFile(f.getName(), f.length(), Long.toHexString(modified) + "-" + Long.toHexString(f.length()), modified / 1000000);
+	}
+
+	private synchronized File getFolder() {
+		if(folder == null)
+			folder = new File((String) getAuthInfo());
+		return folder;
+	}
+}
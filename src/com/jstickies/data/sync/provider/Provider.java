@@ -1,14 +1,35 @@
 /*
  * Abstract class representing a synchronization provider. The methods specified in this class is used by the Synchronizer to synchronize
  * notes to a server. All providers must implement all the abstract methods.
+ *
+ * The batch methods (Provider#listFiles() and Provider#filesExist(String[])) have default implementations based on the single file methods.
+ * Providers that can list the server files in a single request should override them, and may cache the listing until the next call to
+ * Provider#beginCycle().
+ *
+ * Providers that can report the changes made to the server since an earlier request override Provider#getChanges(String), so that the
+ * Synchronizer does not have to download the metadata when nothing has changed.
+ *
+ * Every provider implements the chunk methods (Provider#uploadChunk(String, long, byte[], int), Provider#commitChunks(String, String,
+ * boolean) and Provider#openRange(String, String, long, long)), and transfers files larger than CHUNK_SIZE with
+ * Provider#uploadChunked(File, String, boolean) and Provider#downloadChunked(RemoteFile, File). These send and receive the
+ * file in chunks of CHUNK_SIZE bytes, and save their progress after every chunk (see TransferSessions), so a large note that is interrupted
+ * by a flaky connection continues from the last chunk in the next attempt instead of being sent again.
  */
 
 package com.jstickies.data.sync.provider;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -22,6 +43,12 @@ import com.jstickies.data.sync.SyncSettings;
 
 public abstract class Provider {
 	private static final Logger logger = LoggerFactory.getLogger(Provider.class);
+	private static final int PROBE_TIMEOUT = 5000; //in milliseconds
+	
+	/*
+	 * Size of the chunks of resumable transfers, in bytes. Smaller files are transferred in a single request.
+	 */
+	protected static final int CHUNK_SIZE = Integer.getInteger("jstickies.chunkSize", 4 * 1024 * 1024);
 	
 	/*
 	 * Gets the display name of the Provider.
@@ -55,25 +82,252 @@ public abstract class Provider {
 	public abstract String[] getFiles();
 	
 	/*
-	 * Uploads the file diskFile from the local disk to the server with the file name serverFile.
+	 * Uploads the file diskFile from the local disk to the server with the file name serverFile. Returns true if the file was uploaded 
+	 * completely. Called concurrently by the transfer threads of the Synchronizer.
 	 */
-	public abstract void uploadFile(File diskFile, String serverFile, boolean overwrite);
+	public abstract boolean uploadFile(File diskFile, String serverFile, boolean overwrite);
 	
 	/*
-	 * Downloads the server file with the file name serverFile into the local disk file diskFile.
+	 * Downloads the server file with the file name serverFile into the local disk file diskFile. Returns true if the file was downloaded 
+	 * completely. Called concurrently by the transfer threads of the Synchronizer.
 	 */
-	public abstract void downloadFile(String serverFile, File diskFile);
+	public abstract boolean downloadFile(String serverFile, File diskFile);
 	
 	/*
 	 * Checks if there is a file on the server with the file name serverFile. If so, then returns true, else false.
 	 */
 	public abstract boolean fileExists(String serverFile);
 	
+	/*
+	 * Deletes the file serverFile from the server. Returns true if the file was deleted or did not exist. Called concurrently by the transfer
+	 * threads of the Synchronizer.
+	 */
+	public abstract boolean deleteFile(String serverFile);
+	
 	/*
 	 * Returns the Provider's server address
 	 */
 	public abstract String getServerAddress();
 	
+	/*
+	 * Checks whether the server can be reached, before every synchronization. This must be cheap, since it is called repeatedly while the 
+	 * server cannot be reached. The default implementation opens a connection to port 443 of Provider#getServerAddress(), since ICMP 
+	 * requests are often blocked.
+	 */
+	public boolean isAvailable() {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(getServerAddress(), 443), PROBE_TIMEOUT);
+			return true;
+		}
+		catch(IOException e) {
+			logger.info("Unable to connect to {} : {}", getServerAddress(), e.getMessage());
+			return false;
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch(IOException e) {}
+		}
+	}
+	
+	/*
+	 * Releases the connections held by the Provider, when the Synchronizer is stopped.
+	 */
+	public void close() {}
+	
+	/*
+	 * Called by the Synchronizer at the start of every synchronization. Providers that cache information about the server files clear it here.
+	 */
+	public void beginCycle() {}
+	
+	/*
+	 * Returns all the files on the server along with their size, revision and modification time, or null if the files could not be listed. 
+	 * The default implementation uses Provider#getFiles(), so the details of the files are not known.
+	 */
+	public List<RemoteFile> listFiles() {
+		String[] fileNames = getFiles();
+		ArrayList<RemoteFile> files = new ArrayList<RemoteFile>(fileNames.length);
+		for(String f : fileNames)
+			files.add(new RemoteFile(f, -1, null, -1));
+		return files;
+	}
+	
+	/*
+	 * Checks which of the files serverFiles exist on the server. The default implementation calls Provider#fileExists(String) for every file.
+	 */
+	public boolean[] filesExist(String[] serverFiles) {
+		boolean[] exist = new boolean[serverFiles.length];
+		for(int i=0; i<serverFiles.length; i++)
+			exist[i] = fileExists(serverFiles[i]);
+		return exist;
+	}
+	
+	/*
+	 * Returns the details of the file serverFile on the server, or null if the file does not exist or could not be found. The default 
+	 * implementation looks for the file in Provider#listFiles().
+	 */
+	public RemoteFile getFileInfo(String serverFile) {
+		List<RemoteFile> files = listFiles();
+		if(files != null)
+			for(RemoteFile f : files)
+				if(f.name.equals(serverFile))
+					return f;
+		return null;
+	}
+	
+	/*
+	 * Returns the changes made to the files on the server since cursor, or all the files on the server if cursor is null. Returns null if the
+	 * Provider does not support change feeds, or if the changes could not be retrieved.
+	 */
+	public ChangeSet getChanges(String cursor) {
+		return null;
+	}
+	
+	/*
+	 * Uploads length bytes of chunk at offset of the upload session session, or starts a new session if session is null. Returns the id of
+	 * the session, or null if the server does not know the session any more, e.g. because it expired.
+	 */
+	protected abstract String uploadChunk(String session, long offset, byte[] chunk, int length) throws IOException;
+	
+	/*
+	 * Stores the chunks uploaded in the upload session session as the server file serverFile. Returns the details of the uploaded file.
+	 */
+	protected abstract RemoteFile commitChunks(String session, String serverFile, boolean overwrite) throws IOException;
+	
+	/*
+	 * Opens a stream of length bytes from offset of the revision rev of the server file serverFile. Returns null if the revision is not on
+	 * the server any more.
+	 */
+	protected abstract InputStream openRange(String serverFile, String rev, long offset, long length) throws IOException;
+	
+	/*
+	 * Uploads diskFile to the server file serverFile in chunks of CHUNK_SIZE bytes. The upload session and the offset are saved after every
+	 * chunk, so an upload that was interrupted continues from the next chunk, as long as diskFile has the same contents. Returns the details
+	 * of the uploaded file, or null if the upload did not complete.
+	 */
+	protected RemoteFile uploadChunked(File diskFile, String serverFile, boolean overwrite) {
+		String key = getClass().getSimpleName() + "-upload-" + serverFile;
+		RandomAccessFile in = null;
+		try {
+			long length = diskFile.length();
+			String fingerprint = TransferSessions.fingerprint(diskFile);
+			TransferSessions.Session s = TransferSessions.get(key);
+			if(s != null && (!fingerprint.equals(s.fingerprint) || s.offset > length)) {
+				logger.info("File {} has changed since its upload was interrupted. Starting a new upload", serverFile);
+				TransferSessions.remove(key);
+				s = null;
+			}
+			
+			String session = (s == null)? null : s.id;
+			long offset = (s == null)? 0 : s.offset;
+			if(offset > 0)
+				logger.info("Resuming the upload of file {} at byte {} of {}", serverFile, offset, length);
+			
+			in = new RandomAccessFile(diskFile, "r");
+			byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+			while(offset < length) {
+				int n = (int) Math.min(chunk.length, length - offset);
+				in.seek(offset);
+				in.readFully(chunk, 0, n);
+				String id = uploadChunk(session, offset, chunk, n);
+				if(id == null) {
+					if(session == null)
+						throw new IOException("No upload session was started");
+					logger.info("The upload session of file {} has expired. Starting a new upload", serverFile);
+					TransferSessions.remove(key);
+					session = null;
+					offset = 0;
+					continue;
+				}
+				session = id;
+				offset += n;
+				TransferSessions.put(key, new TransferSessions.Session(session, fingerprint, offset));
+			}
+			
+			RemoteFile file = commitChunks(session, serverFile, overwrite);
+			TransferSessions.remove(key);
+			return file;
+		}
+		catch(IOException e) {
+			logger.error("Error while uploading file {} in chunks : {}", serverFile, e.getMessage());
+		}
+		finally {
+			if(in != null)
+				try {
+					in.close();
+				}
+				catch(IOException e) {}
+		}
+		return null;
+	}
+	
+	/*
+	 * Downloads the server file file into diskFile with a range request for every CHUNK_SIZE bytes. The bytes received are kept in a partial
+	 * file, so a download that was interrupted continues from the end of the partial file, as long as the file has the same revision on the
+	 * server. Returns true if the file was downloaded completely.
+	 */
+	protected boolean downloadChunked(RemoteFile file, File diskFile) {
+		String key = getClass().getSimpleName() + "-download-" + file.name;
+		File partial = TransferSessions.getPartialFile(key);
+		TransferSessions.Session s = TransferSessions.get(key);
+		if(s == null || !s.id.equals(file.rev) || partial.length() > file.size) {
+			TransferSessions.remove(key);
+			TransferSessions.put(key, new TransferSessions.Session(file.rev, null, 0));
+		}
+		else if(partial.length() > 0)
+			logger.info("Resuming the download of file {} at byte {} of {}", file.name, partial.length(), file.size);
+		
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(partial, true);
+			byte[] buffer = new byte[65536];
+			for(long offset = partial.length(); offset < file.size; ) {
+				long length = Math.min(CHUNK_SIZE, file.size - offset);
+				InputStream in = openRange(file.name, file.rev, offset, length);
+				if(in == null) {
+					logger.info("Revision {} of file {} is not on the server any more", file.rev, file.name);
+					out.close();
+					out = null;
+					TransferSessions.remove(key);
+					return false;
+				}
+				try {
+					for(long received = 0; received < length; ) {
+						int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+						if(n == -1)
+							throw new IOException("The connection was closed after " + received + " of " + length + " bytes");
+						out.write(buffer, 0, n);
+						received += n;
+						offset += n;
+					}
+				}
+				finally {
+					in.close();
+				}
+				out.flush();
+			}
+			out.close();
+			out = null;
+			
+			Files.move(partial.toPath(), diskFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			TransferSessions.remove(key);
+			return true;
+		}
+		catch(IOException e) {
+			logger.error("Error while downloading file {} in chunks : {}", file.name, e.getMessage());
+		}
+		finally {
+			if(out != null)
+				try {
+					out.close();
+				}
+				catch(IOException e) {}
+		}
+		return false;
+	}
+	
 	/*
 	 * Creates a SyncSettings file with the default settings and saves the authorization information. Eg: OAuth Access Tokens can be saved 
 	 * after the authorization process using this method and retrieved later to access the API using Provider#getAuthInfo(). 
@@ -120,20 +374,21 @@ public abstract class Provider {
 			logger.error("Error reading Jar file!");
 		}
 		
-		Class<Provider>[] providers = new Class[classFiles.size()];
-		logger.info("{} Provider(s) found", classFiles.size());
-		
+		ArrayList<Class<Provider>> providers = new ArrayList<Class<Provider>>();
 		for(int i=0; i<classFiles.size(); i++) {
 			String classPath = packagePath + "/" + classFiles.get(i).replace(".class", ""); //Relative path of the class
 			String className = classPath.replaceAll("/", "\\.");
 			try {
-				providers[i] = (Class<Provider>) Class.forName(className);	
+				Class<?> c = Class.forName(className);
+				if(Provider.class.isAssignableFrom(c)) //The package also contains the classes used by the Providers
+					providers.add((Class<Provider>) c);
 			} 
 			catch (ClassNotFoundException e) { 
 				logger.error("Error finding Provider class : {}", e.getMessage());
 			}
 		}
+		logger.info("{} Provider(s) found", providers.size());
 		
-		return providers;
+		return providers.toArray(new Class[providers.size()]);
 	}
 }
@@ -0,0 +1,26 @@
+/*
+ * This class represents a file on the server of a Provider, as returned by Provider#listFiles(). Details that a Provider cannot determine are
+ * set to -1 (size, modified) or null (rev).
+ */
+
+package com.jstickies.data.sync.provider;
+
+public class RemoteFile {
+
+	public final String name;
+	public final long size;
+	public final String rev; //Revision of the file, changes every time the file is modified
+	public final long modified; //Modification time in milliseconds
+
+	public RemoteFile(String name, long size, String rev, long modified) {
+		this.name = name;
+		this.size = size;
+		this.rev = rev;
+		this.modified = modified;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + size + " bytes, rev " + rev + ")";
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * This class keeps the state of the chunked transfers that were interrupted, so that a later attempt continues where they stopped instead of
+ * starting again, even after JStickies is restarted (see Provider#uploadChunked(File, String, boolean) and Provider#downloadChunked(RemoteFile,
+ * File)). For an upload, the session is the id of the upload session on the server, the offset of the next chunk and a fingerprint of the
+ * file being uploaded, so that a session is only continued with the same contents. For a download, the session is the revision being
+ * downloaded, and the bytes received so far are kept in a partial file.
+ *
+ * The sessions and the partial files are kept in the transfers folder of the note folder. The sessions are saved after every chunk.
+ */
+
+package com.jstickies.data.sync.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+
+class TransferSessions {
+
+	private static final File FOLDER = new File(JStickies.NOTE_FOLDER + "/transfers");
+	private static final File SESSIONS_FILE = new File(FOLDER, "sessions");
+	private static final Logger logger = LoggerFactory.getLogger(TransferSessions.class);
+
+	private static HashMap<String, Session> sessions; //Guarded by TransferSessions.class, loaded on first use
+
+	private TransferSessions() {}
+
+	/*
+	 * Returns the session of the transfer key, or null if there is none.
+	 */
+	static synchronized Session get(String key) {
+		return getSessions().get(key);
+	}
+
+	/*
+	 * Saves the session of the transfer key.
+	 */
+	static synchronized void put(String key, Session session) {
+		getSessions().put(key, session);
+		save();
+	}
+
+	/*
+	 * Removes the session of the transfer key, along with its partial file.
+	 */
+	static synchronized void remove(String key) {
+		File partial = getPartialFile(key);
+		if(partial.exists() && !partial.delete())
+			logger.warn("Unable to delete the partial file of transfer {}", key);
+		if(getSessions().remove(key) != null)
+			save();
+	}
+
+	/*
+	 * Returns the file holding the bytes received by the download key.
+	 */
+	static File getPartialFile(String key) {
+		return new File(FOLDER, key.replaceAll("[^A-Za-z0-9._-]", "_") + ".part");
+	}
+
+	/*
+	 * Returns the SHA-1 digest of the contents of file, as hex.
+	 */
+	static String fingerprint(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e); //Every Java platform is required to support SHA-1
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for(int n; (n = in.read(buffer)) != -1; )
+				digest.update(buffer, 0, n);
+		}
+		finally {
+			in.close();
+		}
+
+		StringBuilder s = new StringBuilder();
+		for(byte b : digest.digest())
+			s.append(String.format("%02x", b));
+		return s.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Session> getSessions() {
+		if(sessions == null) {
+			Object saved = (SESSIONS_FILE.exists())? JStickies.loadFile(SESSIONS_FILE) : null;
+			sessions = (saved instanceof HashMap)? (HashMap<String, Session>) saved : new HashMap<String, Session>();
+			if(!sessions.isEmpty())
+				logger.info("{} interrupted transfer(s) can be resumed", sessions.size());
+		}
+		return sessions;
+	}
+
+	private static void save() {
+		if(!FOLDER.exists())
+			FOLDER.mkdirs();
+		JStickies.saveFile(SESSIONS_FILE, new HashMap<String, Session>(sessions));
+	}
+
+	/*
+	 * The state of an interrupted transfer.
+	 */
+	static class Session implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final String id; //Id of the upload session, or revision of the download
+		final String fingerprint; //Contents being uploaded, null for downloads
+		final long offset; //Bytes transferred
+
+		Session(String id, String fingerprint, long offset) {
+			this.id = id;
+			this.fingerprint = fingerprint;
+			this.offset = offset;
+		}
+	}
+}
@@ -1,5 +1,8 @@
 /*
  * This class represents a sticky note. It creates the entire sticky note GUI including the title area and and also the text area for the note. 
+ * Every edit of the text is recorded in the TextHistory of the note as it is made, and edits merged from other computers are applied to the
+ * text in place (see Note#merge(String, TextHistory.Delta)), as are changes made to the stored note by other programs (see 
+ * Note#reload(NoteData)).
  */
 
 package com.jstickies.gui;
@@ -9,22 +12,43 @@ import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
 import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
+import javax.swing.JFrame;
 import javax.swing.JWindow;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JViewport;
 import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jstickies.JStickies;
 import com.jstickies.data.NoteData;
+import com.jstickies.data.TextEdit;
+import com.jstickies.data.TextHistory;
+import com.jstickies.data.VersionVector;
 import componentadapter.ComponentResizer;
 
 
@@ -32,6 +56,7 @@ public class Note extends JWindow implements Serializable {
 
 	private static final long serialVersionUID = 4536222406431913314L;
 	private static final Logger logger = LoggerFactory.getLogger(Note.class);
+	private static final int MAX_EDITS = 10000;
 	
 	public static EmptyBorder emptyBorder;
 	public static Dimension minimumSize, defaultSize;
@@ -39,6 +64,10 @@ public class Note extends JWindow implements Serializable {
 	public static ColorIcon[] colorIcons = new ColorIcon[5];
 	public static String[] colorNames = new String[5];
 	public static ArrayList<Note> notes; //Used to keep track of all created notes.
+	public static ArrayList<NoteData> parkedNotes; //Notes that are kept only as data, without a window (see JStickies.VIRTUAL_NOTES)
+	public static Set<Note> dirtyNotes; //Notes that have been changed since they were last saved
+	private static final CountDownLatch loaded = new CountDownLatch(1); //Released once the saved notes have been loaded
+	static boolean notesShown = true;
 	
 	/*
 	 * Static objects common to all Note objects
@@ -65,6 +94,8 @@ public class Note extends JWindow implements Serializable {
 		colorNames[4] = "Green";
 		
 		notes = new ArrayList<Note>();
+		parkedNotes = new ArrayList<NoteData>();
+		dirtyNotes = Collections.synchronizedSet(new LinkedHashSet<Note>());
 	}
 	
 	public NoteData noteData;
@@ -73,14 +104,18 @@ public class Note extends JWindow implements Serializable {
 	Container contentPane, centerPane;
 	JScrollPane pane;
 	EmptyBorder frameBorder;
-	boolean changed;
+	volatile boolean changed;
+	private ArrayList<TextEdit> edits; //Edits made since the last save, or null if there were too many to keep
+	private boolean created; //Changes made while creating the Note are not reported to the AutoSaver
+	private boolean merging; //Edits merged from other computers are already in the history
+	private boolean textChanged = true; //The text has changed since it was last copied to the NoteData
 	
 	/*
 	 * Creates a new Note with the title set to noteName
 	 */
 	public Note(String noteName) {
 		this(new NoteData(noteName, colors[0], "", null, defaultSize));
-		changed = true;
+		markChanged();
 	}
 	
 	/*
@@ -111,6 +146,7 @@ public class Note extends JWindow implements Serializable {
 		centerPane.setLayout(new BorderLayout());
 		contentPane.add(centerPane, BorderLayout.CENTER);
 		
+		TextHistory.of(noteData);
 		noteTextArea = new JTextArea(noteData.noteText);
 		noteTextArea.setBorder(emptyBorder);
 		noteTextArea.setLineWrap(true);
@@ -137,7 +173,44 @@ public class Note extends JWindow implements Serializable {
 		ContextMenu contextMenu = new ContextMenu(this);
 		noteTextArea.setComponentPopupMenu(contextMenu);
 		
-		changed = false; //Variable for detecting changes made during runtime
+		//Track changes made during runtime through events, instead of comparing the note with its NoteData
+		noteTextArea.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				try {
+					recordEdit(new TextEdit(e.getOffset(), 0, e.getDocument().getText(e.getOffset(), e.getLength())));
+				}
+				catch(BadLocationException ex) {
+					edits = null;
+					noteData.history = null; //Created again from the text when the note is saved
+				}
+				textChanged = true;
+				markChanged();
+			}
+			
+			public void removeUpdate(DocumentEvent e) {
+				recordEdit(new TextEdit(e.getOffset(), e.getLength(), ""));
+				textChanged = true;
+				markChanged();
+			}
+			
+			public void changedUpdate(DocumentEvent e) {} //Attribute changes are not saved
+		});
+		addComponentListener(new ComponentAdapter() {
+			public void componentMoved(ComponentEvent e) {
+				if(!getLocation().equals(noteData.noteLocation))
+					markChanged();
+			}
+			
+			public void componentResized(ComponentEvent e) {
+				if(!getSize().equals(noteData.noteSize))
+					markChanged();
+			}
+		});
+		
+		changed = false;
+		dirtyNotes.remove(this);
+		edits = new ArrayList<TextEdit>();
+		created = true;
 	}
 	
 	/*
@@ -149,75 +222,570 @@ public class Note extends JWindow implements Serializable {
 		noteTextArea.setBackground(color);
 		contentPane.setBackground(color);
 		rootPane.setBackground(color);
+		markChanged();
+	}
+	
+	/*
+	 * Marks this Note as changed and schedules it to be saved by the AutoSaver.
+	 */
+	void markChanged() {
 		changed = true;
+		dirtyNotes.add(this);
+		if(created)
+			JStickies.AUTO_SAVER.noteChanged(this);
+	}
+	
+	/*
+	 * Records an edit of the text, so that large notes can be saved incrementally. If too many edits are made between two saves, they are 
+	 * dropped and the note is saved in full.
+	 */
+	private void recordEdit(TextEdit edit) {
+		if(!merging && noteData.history != null)
+			try {
+				noteData.history.delete(edit.offset, edit.removed);
+				noteData.history.insert(edit.offset, edit.inserted);
+			}
+			catch(IndexOutOfBoundsException e) {
+				logger.error("History of Note({}) does not match its text : {}", noteData.noteName, e.getMessage());
+				noteData.history = null;
+			}
+		
+		if(edits == null)
+			return;
+		
+		TextEdit.add(edits, edit);
+		if(edits.size() > MAX_EDITS)
+			edits = null;
 	}
 	
 	/*
 	 * Checks if this Note has been changed compared to when it was previously saved. 
 	 */
 	public boolean isNoteChanged() {
-		if(changed | !noteData.noteText.equals(noteTextArea.getText()) | !noteData.noteLocation.equals(getLocation()) | !noteData.noteSize.equals(getSize()))
-			return true;
-		return false;
+		return changed;
+	}
+	
+	/*
+	 * Clears the changed flag without saving this Note, e.g. when it is deleted. Must be called on the EDT.
+	 */
+	public void discardChanges() {
+		changed = false;
+		dirtyNotes.remove(this);
 	}
 	
 	/*
 	 * Saves this Note to disk. Instead of saving the entire Note, it saves only the necessary data i.e the NoteData associated with this 
-	 * Note to disk.
+	 * Note to disk. The NoteData is written in the background by the AutoSaver. Must be called on the EDT.
 	 */
 	public void saveData() {
 		if(isNoteChanged()) {
-			noteData.noteLocation = getLocation();
-			noteData.noteSize = getSize();
-			noteData.noteText = noteTextArea.getText();
-			
 			logger.info("Note({}) has changed. Saving to disk", noteData.noteName);
-			noteData.saveData();
-			changed = false; //File has been updated
+			JStickies.AUTO_SAVER.saveNow(this);
 		}
 		else
 			logger.info("No changes to Note({})", noteData.noteName);
 	}
 	
 	/*
-	 * Deletes this Note. This method disposes the Note and also deletes any saved data.
+	 * Updates the NoteData with the current state of this Note, and returns a copy of it that can be saved on another thread. Clears the 
+	 * changed flag. Must be called on the EDT.
+	 */
+	public NoteData snapshot() {
+		//Clear the flag before reading the note, so that changes made while saving mark the note again
+		changed = false;
+		dirtyNotes.remove(this);
+		NoteData copy = copyData();
+		copy.edits = edits;
+		edits = new ArrayList<TextEdit>();
+		return copy;
+	}
+	
+	/*
+	 * Updates the NoteData with the current state of this Note, and returns its history. Changes of the name, color, location and size are
+	 * stamped in the history. The text is only copied if it has changed.
+	 */
+	private TextHistory update() {
+		noteData.noteLocation = getLocation();
+		noteData.noteSize = getSize();
+		if(textChanged) {
+			noteData.noteText = noteTextArea.getText();
+			textChanged = false;
+		}
+		
+		TextHistory history = TextHistory.of(noteData);
+		history.updateMeta(noteData);
+		return history;
+	}
+	
+	/*
+	 * Returns a copy of the current state of this Note along with a copy of its history, without clearing the changed flag.
+	 */
+	private NoteData copyData() {
+		TextHistory history = update();
+		NoteData copy = noteData.copy();
+		copy.history = history.copy();
+		return copy;
+	}
+	
+	/*
+	 * Merges edits made on another computer into this Note. The text is edited in place, so the caret and the edits being made are kept.
+	 */
+	private void merge(TextHistory.Delta delta) throws IOException {
+		TextHistory history = update();
+		String name = noteData.noteName;
+		Color color = noteData.noteColor;
+		List<TextEdit> changes = history.merge(delta, noteData);
+		
+		merging = true;
+		try {
+			edit(changes);
+		}
+		catch(BadLocationException e) {
+			noteData.history = null;
+			throw new IOException("Unable to apply the merged edits : " + e.getMessage());
+		}
+		finally {
+			merging = false;
+		}
+		
+		showChanges(name, color);
+		logger.info("Merged {} edit(s) into Note({})", changes.size(), noteData.noteName);
+		markChanged();
+	}
+	
+	/*
+	 * Replaces the contents of this Note with data, which was changed outside of this Note, e.g. by another program. Only the part of the 
+	 * text that differs is replaced, so the caret and the scroll position are kept. If data has a history, it becomes the history of this 
+	 * Note, and the Note is left unchanged since data has already been saved. Else the replacement is recorded in the history like an edit 
+	 * made by the user, and the Note is saved again along with its history.
+	 */
+	void replace(NoteData data) {
+		TextHistory history = update();
+		String name = noteData.noteName;
+		Color color = noteData.noteColor;
+		TextEdit change = TextEdit.diff(noteData.noteText, (data.noteText == null)? "" : data.noteText);
+		
+		merging = data.history != null;
+		try {
+			if(change != null)
+				edit(Collections.singletonList(change));
+		}
+		catch(BadLocationException e) {
+			logger.error("Unable to replace the text of Note({}) : {}", noteData.noteName, e.getMessage());
+			noteData.history = null;
+			return;
+		}
+		finally {
+			merging = false;
+		}
+		
+		noteData.noteName = data.noteName;
+		noteData.noteColor = data.noteColor;
+		noteData.noteLocation = (data.noteLocation == null)? getLocation() : data.noteLocation;
+		noteData.noteSize = (data.noteSize == null)? getSize() : data.noteSize;
+		if(data.history != null) {
+			noteData.history = data.history;
+			showChanges(name, color);
+			changed = false;
+			dirtyNotes.remove(this);
+			edits = new ArrayList<TextEdit>();
+		}
+		else {
+			showChanges(name, color);
+			history.updateMeta(noteData);
+			markChanged();
+		}
+		logger.info("Replaced Note({}) with its changed data", noteData.noteName);
+	}
+	
+	/*
+	 * Makes changes to the text through the Document, so that the caret moves along with the text around it. The scroll position is restored
+	 * afterwards, since moving the caret scrolls to it.
+	 */
+	private void edit(List<TextEdit> changes) throws BadLocationException {
+		final JViewport viewport = pane.getViewport();
+		final Point view = viewport.getViewPosition();
+		Document document = noteTextArea.getDocument();
+		for(TextEdit e : changes) {
+			if(e.removed > 0)
+				document.remove(e.offset, e.removed);
+			if(e.inserted.length() > 0)
+				document.insertString(e.offset, e.inserted, null);
+		}
+		noteData.noteText = noteTextArea.getText();
+		textChanged = false;
+		
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				viewport.setViewPosition(view);
+			}
+		});
+	}
+	
+	/*
+	 * Shows the name, color, location and size of the NoteData after they were changed from name and color outside of this Note.
+	 */
+	private void showChanges(String name, Color color) {
+		if(noteData.noteName != null && !noteData.noteName.equals(name))
+			titleBar.updateTitle(noteData.noteName);
+		if(noteData.noteColor != null && !noteData.noteColor.equals(color))
+			setNoteColor(noteData.noteColor);
+		if(noteData.noteLocation != null && !noteData.noteLocation.equals(getLocation()))
+			setLocation(noteData.noteLocation);
+		if(noteData.noteSize != null && !noteData.noteSize.equals(getSize()))
+			setSize(noteData.noteSize);
+	}
+	
+	/*
+	 * Deletes this Note. This method disposes the Note and also deletes any saved data. The data is deleted by the AutoSaver after any saves 
+	 * of this Note that are already queued.
 	 */
 	public void delete() {
 		logger.info("Deleting Note({})", noteData.noteName);
-		noteData.deleteData();
+		JStickies.AUTO_SAVER.cancel(this);
+		JStickies.AUTO_SAVER.delete(noteData);
 		noteData = null;
 		dispose();
 		notes.remove(this);
 	}
 	
 	/*
-	 * Loads all the saved notes from disk. 
+	 * Saves this Note and releases its window, keeping only its NoteData. Used when JStickies.VIRTUAL_NOTES is enabled.
+	 */
+	void park() {
+		logger.debug("Releasing the window of Note({})", noteData.noteName);
+		saveData();
+		notes.remove(this);
+		parkedNotes.add(noteData);
+		dispose();
+	}
+	
+	/*
+	 * Checks whether a note with the NoteData d would be visible on any of the screens.
+	 */
+	static boolean isOnScreen(NoteData d) {
+		if(d.noteLocation == null)
+			return true;
+		
+		Rectangle bounds = new Rectangle(d.noteLocation, d.noteSize);
+		for(GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices())
+			if(device.getDefaultConfiguration().getBounds().intersects(bounds))
+				return true;
+		return false;
+	}
+	
+	/*
+	 * Shows or hides all the notes. If JStickies.VIRTUAL_NOTES is enabled, hidden notes are released and kept only as data, and showing 
+	 * the notes creates windows only for the notes that are on a screen. Else, the notes are hidden by minimizing their owner frame.
+	 */
+	public static void showNotes(boolean show) {
+		notesShown = show;
+		if(!JStickies.VIRTUAL_NOTES) {
+			JStickies.JFRAME.setExtendedState((show)? JFrame.NORMAL : JFrame.ICONIFIED);
+			return;
+		}
+		
+		if(show) {
+			Iterator<NoteData> i = parkedNotes.iterator();
+			while(i.hasNext()) {
+				NoteData d = i.next();
+				if(isOnScreen(d)) {
+					i.remove();
+					new Note(d).setVisible(true);
+				}
+			}
+		}
+		else
+			for(Note n : new ArrayList<Note>(notes))
+				n.park();
+		logger.info("{} note window(s) open, {} note(s) kept as data", notes.size(), parkedNotes.size());
+	}
+	
+	/*
+	 * Checks whether the notes are currently shown.
+	 */
+	public static boolean areNotesShown() {
+		if(!JStickies.VIRTUAL_NOTES)
+			return JStickies.JFRAME.getExtendedState() == JFrame.NORMAL;
+		return notesShown;
+	}
+	
+	/*
+	 * Shows a Note for the NoteData d, replacing any parked NoteData with the same file name. If JStickies.VIRTUAL_NOTES is enabled and the 
+	 * notes are hidden or d is not on a screen, d is parked instead of creating a window. Must be called on the EDT.
+	 */
+	public static void show(NoteData d) {
+		Iterator<NoteData> i = parkedNotes.iterator();
+		while(i.hasNext())
+			if(i.next().fileName.equals(d.fileName))
+				i.remove();
+		
+		if(JStickies.VIRTUAL_NOTES && (!notesShown || !isOnScreen(d)))
+			parkedNotes.add(d);
+		else
+			new Note(d).setVisible(true);
+	}
+	
+	/*
+	 * Brings the note with the file name fileName to the front, showing the notes if they are hidden and creating a window for the note if it 
+	 * is parked. Returns false if there is no such note. Must be called on the EDT.
+	 */
+	public static boolean reveal(String fileName) {
+		if(!areNotesShown())
+			showNotes(true);
+		
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(fileName)) {
+				n.toFront();
+				n.noteTextArea.requestFocus();
+				return true;
+			}
+		
+		Iterator<NoteData> i = parkedNotes.iterator();
+		while(i.hasNext()) {
+			NoteData d = i.next();
+			if(d.fileName.equals(fileName)) {
+				i.remove();
+				Note n = new Note(d);
+				n.setVisible(true);
+				n.noteTextArea.requestFocus();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Merges edits made on another computer into the note with the file name fileName, whether it has a window or is kept only as data. 
+	 * Returns false if there is no such note. Must be called on the EDT.
+	 */
+	public static boolean merge(String fileName, TextHistory.Delta delta) throws IOException {
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(fileName)) {
+				n.merge(delta);
+				return true;
+			}
+		
+		for(NoteData d : parkedNotes)
+			if(d.fileName.equals(fileName)) {
+				List<TextEdit> changes = TextHistory.of(d).merge(delta, d);
+				d.noteText = TextEdit.apply((d.noteText == null)? "" : d.noteText, changes);
+				NoteData copy = d.copy();
+				copy.history = d.history.copy();
+				JStickies.AUTO_SAVER.save(copy);
+				return true;
+			}
+		return false;
+	}
+	
+	/*
+	 * Replaces the note with the file name of data by data, which was changed outside of JStickies, e.g. by another program or a backup 
+	 * restore. A note that has a window is updated in place (see Note#replace(NoteData)), and a note that does not exist yet is shown. Must be 
+	 * called on the EDT.
+	 */
+	public static void reload(NoteData data) {
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(data.fileName)) {
+				n.replace(data);
+				return;
+			}
+		show(data);
+	}
+	
+	/*
+	 * Closes the note with the file name fileName, whose data was deleted outside of JStickies, without deleting anything. Returns false if 
+	 * there is no such note. Must be called on the EDT.
+	 */
+	public static boolean remove(String fileName) {
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(fileName)) {
+				logger.info("Closing Note({}), since it was deleted", n.noteData.noteName);
+				JStickies.AUTO_SAVER.cancel(n); //Else a pending save would store the note again
+				n.dispose();
+				notes.remove(n);
+				return true;
+			}
+		
+		Iterator<NoteData> i = parkedNotes.iterator();
+		while(i.hasNext())
+			if(i.next().fileName.equals(fileName)) {
+				i.remove();
+				return true;
+			}
+		return false;
+	}
+	
+	/*
+	 * Returns the edits of the note with the file name fileName that since does not cover, or null if there is no such note. Must be called 
+	 * on the EDT.
+	 */
+	public static TextHistory.Delta getDelta(String fileName, VersionVector since) {
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(fileName))
+				return n.update().getDelta(since, n.noteData);
+		
+		for(NoteData d : parkedNotes)
+			if(d.fileName.equals(fileName))
+				return TextHistory.of(d).getDelta(since, d);
+		return null;
+	}
+	
+	/*
+	 * Removes the tombstones of the note with the file name fileName that every computer has seen (see TextHistory#collect(VersionVector)).
+	 * Must be called on the EDT.
+	 */
+	public static void collect(String fileName, VersionVector stable) {
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(fileName)) {
+				n.update().collect(stable);
+				return;
+			}
+		
+		for(NoteData d : parkedNotes)
+			if(d.fileName.equals(fileName)) {
+				TextHistory.of(d).collect(stable);
+				return;
+			}
+	}
+	
+	/*
+	 * Checks whether the Deltas of the history other can be merged into the note with the file name fileName (see 
+	 * TextHistory#canMerge(TextHistory)), or returns null if there is no such note. Must be called on the EDT.
+	 */
+	public static Boolean canMerge(String fileName, TextHistory other) {
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(fileName))
+				return n.update().canMerge(other);
+		
+		for(NoteData d : parkedNotes)
+			if(d.fileName.equals(fileName))
+				return TextHistory.of(d).canMerge(other);
+		return null;
+	}
+	
+	/*
+	 * Keeps the text of the note with the file name fileName as a new note before the note is replaced by a snapshot with the text text, 
+	 * whose history cannot be merged with the note's. Returns false if the note has the same text, so that nothing is lost, or null if there 
+	 * is no such note. Must be called on the EDT.
+	 */
+	public static Boolean keepConflictCopy(String fileName, String text) {
+		NoteData data = getSnapshot(fileName);
+		if(data == null)
+			return null;
+		String localText = (data.noteText == null)? "" : data.noteText;
+		if(localText.equals((text == null)? "" : text))
+			return false;
+		
+		Point location = (data.noteLocation == null)? null : new Point(data.noteLocation.x + 20, data.noteLocation.y + 20);
+		NoteData copy = new NoteData(data.noteName + " (conflict)", data.noteColor, localText, location, data.noteSize);
+		JStickies.AUTO_SAVER.save(copy.copy());
+		show(copy);
+		logger.info("Kept the text of Note({}) as Note({})", data.noteName, copy.noteName);
+		return true;
+	}
+	
+	/*
+	 * Returns a copy of the current state of the note with the file name fileName along with its history, or null if there is no such note. 
+	 * Must be called on the EDT.
+	 */
+	public static NoteData getSnapshot(String fileName) {
+		for(Note n : notes)
+			if(n.noteData.fileName.equals(fileName))
+				return n.copyData();
+		
+		for(NoteData d : parkedNotes)
+			if(d.fileName.equals(fileName)) {
+				NoteData copy = d.copy();
+				copy.history = TextHistory.of(d).copy();
+				return copy;
+			}
+		return null;
+	}
+	
+	/*
+	 * Loads all the saved notes from disk. The notes are decoded in parallel, after which the Note windows are created on the EDT in small 
+	 * batches, so that the EDT stays responsive while a large number of notes is being loaded.
 	 */
 	public static void loadSavedNotes() {
+		long start = System.nanoTime();
 		final NoteData[] noteData = NoteData.getSavedData();
 		
+		if(noteData == null) {
+			logger.info("Startup : no saved notes");
+			JStickies.SEARCH_INDEX.reconcile(new NoteData[0]);
+			loaded.countDown();
+			return;
+		}
+		
 		logger.debug("Creating Note objects on EDT");
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				if(noteData != null)
-					for(NoteData d : noteData)
-						new Note(d).setVisible(true);
-			}
-			
-		});
+		SwingUtilities.invokeLater(new NoteLoader(noteData, start, System.nanoTime()));
+		JStickies.SEARCH_INDEX.reconcile(noteData);
 	}
 	
 	/*
-	 * Saves all the notes to disk.
+	 * Waits until the notes loaded by Note#loadSavedNotes() have all been opened or parked, so that the Synchronizer can find them.
+	 */
+	public static void awaitLoaded() throws InterruptedException {
+		loaded.await();
+	}
+	
+	/*
+	 * Schedules all the changed notes to be saved. Use AutoSaver#flush() to wait until they have been written. Must be called on the EDT.
 	 */
 	public static void saveAll() {
-		logger.debug("Saving all notes to disk");
-		Iterator<Note> i = notes.iterator();
-		while(i.hasNext()) {
-			Note n = i.next();
+		Note[] dirty;
+		synchronized(dirtyNotes) {
+			dirty = dirtyNotes.toArray(new Note[dirtyNotes.size()]);
+		}
+		
+		logger.debug("Saving {} changed note(s) to disk", dirty.length);
+		for(Note n : dirty)
 			n.saveData();
+	}
+	
+	/*
+	 * Creates the Note windows for the loaded notes on the EDT. Every run creates notes for at most BATCH_TIME milliseconds and then
+	 * schedules itself again, so that other events are processed in between. Logs a startup timing report once all notes are loaded.
+	 */
+	private static class NoteLoader implements Runnable {
+		
+		private static final long BATCH_TIME = 10;
+		
+		private NoteData[] noteData;
+		private int next;
+		private long start, decoded, firstVisible;
+		
+		NoteLoader(NoteData[] noteData, long start, long decoded) {
+			this.noteData = noteData;
+			this.start = start;
+			this.decoded = decoded;
+			next = 0;
+		}
+		
+		@Override
+		public void run() {
+			long end = System.nanoTime() + BATCH_TIME * 1000000;
+			do {
+				NoteData d = noteData[next++];
+				if(JStickies.VIRTUAL_NOTES && !isOnScreen(d)) {
+					parkedNotes.add(d);
+					continue;
+				}
+				new Note(d).setVisible(true);
+				if(firstVisible == 0)
+					firstVisible = System.nanoTime();
+			}
+			while(next < noteData.length && System.nanoTime() < end);
+			
+			if(next < noteData.length) 
+				SwingUtilities.invokeLater(this);
+			else {
+				loaded.countDown();
+				long decodeTime = Math.max(1, (decoded - start) / 1000000);
+				String visible = (firstVisible == 0)? "no note visible" : "first note visible after " + (firstVisible - start) / 1000000 + "ms";
+				logger.info("Startup : {} notes decoded in {}ms ({} notes/s), {}, all notes loaded after {}ms", noteData.length, decodeTime, 
+						noteData.length * 1000 / decodeTime, visible, (System.nanoTime() - start) / 1000000);
+			}
 		}
 	}
-
 }
@@ -0,0 +1,165 @@
+/*
+ * This class creates a GUI for searching the notes using the SearchIndex. Results are updated as the query is typed, and selecting a result
+ * brings its note to the front.
+ */
+
+package com.jstickies.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jstickies.JStickies;
+import com.jstickies.data.search.SearchIndex.Result;
+
+public class SearchDialog extends JDialog {
+
+	private static final long serialVersionUID = 1L;
+	private static final int MAX_RESULTS = 50;
+	private static final Logger logger = LoggerFactory.getLogger(SearchDialog.class);
+
+	private JTextField queryField;
+	private JList<Result> resultList;
+	private DefaultListModel<Result> results;
+	private JLabel statusLabel;
+
+	/*
+	 * Creates and shows the search dialog.
+	 */
+	public SearchDialog() {
+		setTitle("Search Notes");
+		setLayout(new BorderLayout());
+		setIconImage(JStickies.loadImage(JStickies.TRAY_ICON).getImage());
+
+		queryField = new JTextField();
+		queryField.setBorder(BorderFactory.createCompoundBorder(BorderFactory.createEmptyBorder(10, 10, 5, 10), queryField.getBorder()));
+		queryField.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				search();
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				search();
+			}
+
+			public void changedUpdate(DocumentEvent e) {}
+		});
+		queryField.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if(!results.isEmpty())
+					open(results.get(Math.max(resultList.getSelectedIndex(), 0)));
+			}
+		});
+		queryField.addKeyListener(new KeyAdapter() {
+			public void keyPressed(KeyEvent e) {
+				if(e.getKeyCode() == KeyEvent.VK_DOWN && !results.isEmpty()) {
+					resultList.setSelectedIndex(Math.min(resultList.getSelectedIndex() + 1, results.size() - 1));
+					resultList.ensureIndexIsVisible(resultList.getSelectedIndex());
+				}
+				else if(e.getKeyCode() == KeyEvent.VK_UP && resultList.getSelectedIndex() > 0) {
+					resultList.setSelectedIndex(resultList.getSelectedIndex() - 1);
+					resultList.ensureIndexIsVisible(resultList.getSelectedIndex());
+				}
+				else if(e.getKeyCode() == KeyEvent.VK_ESCAPE)
+					dispose();
+			}
+		});
+		add(queryField, BorderLayout.NORTH);
+
+		results = new DefaultListModel<Result>();
+		resultList = new JList<Result>(results);
+		resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		resultList.setCellRenderer(new ResultRenderer());
+		resultList.addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				if(e.getClickCount() == 2 && resultList.getSelectedValue() != null)
+					open(resultList.getSelectedValue());
+			}
+		});
+		JScrollPane pane = new JScrollPane(resultList);
+		pane.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
+		pane.setPreferredSize(new Dimension(400, 350));
+		add(pane, BorderLayout.CENTER);
+
+		statusLabel = new JLabel(" ");
+		statusLabel.setBorder(BorderFactory.createEmptyBorder(5, 10, 10, 10));
+		add(statusLabel, BorderLayout.SOUTH);
+
+		pack();
+		setLocationRelativeTo(null);
+		setVisible(true);
+	}
+
+	/*
+	 * Searches the index for the current query and displays the results.
+	 */
+	private void search() {
+		results.clear();
+		String query = queryField.getText().trim();
+		if(query.length() == 0) {
+			statusLabel.setText(" ");
+			return;
+		}
+
+		long start = System.nanoTime();
+		Result[] found = JStickies.SEARCH_INDEX.search(query, MAX_RESULTS);
+		long time = (System.nanoTime() - start) / 1000;
+		logger.debug("Search for \"{}\" returned {} result(s) in {}us", query, found.length, time);
+
+		for(Result r : found)
+			results.addElement(r);
+		if(found.length > 0)
+			resultList.setSelectedIndex(0);
+		statusLabel.setText(found.length + ((found.length == MAX_RESULTS)? "+" : "") + " note(s) found in " + (time / 1000.0) + "ms");
+	}
+
+	/*
+	 * Brings the note of the result to the front.
+	 */
+	private void open(Result r) {
+		if(!Note.reveal(r.fileName))
+			statusLabel.setText("The note \"" + r.name + "\" no longer exists");
+	}
+
+	/*
+	 * Renders a result as the name of the note, followed by the beginning of its text.
+	 */
+	private static class ResultRenderer extends DefaultListCellRenderer {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+			Result r = (Result) value;
+			String text = "<html><b>" + escape(r.name) + "</b><br><font color='gray'>" + escape(r.snippet) + "</font></html>";
+			JLabel label = (JLabel) super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+			label.setBorder(BorderFactory.createEmptyBorder(3, 3, 3, 3));
+			return label;
+		}
+
+		private static String escape(String s) {
+			return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+		}
+	}
+}
@@ -47,7 +47,7 @@ public class SyncSettingsGUI extends JFrame implements ActionListener {
 	private Provider[] providers;
 	private List<Image> imageIcons;
 	private ImageIcon syncSettingsIcon;
-	private JTextField intervalField;
+	private JTextField intervalField, concurrencyField;
 	
 	/*
 	 * Creates a GUI displaying the SyncSettings if it was previously configured, or displays the various synchronization providers to select 
@@ -171,7 +171,20 @@ public class SyncSettingsGUI extends JFrame implements ActionListener {
 		intervalBox.add(new JLabel("minute(s)"));
 		contentPane.add(intervalBox);
 		
-		contentPane.add(Box.createRigidArea(new Dimension(1,80)));
+		contentPane.add(Box.createRigidArea(new Dimension(1,10)));
+		
+		Box concurrencyBox = Box.createHorizontalBox();
+		concurrencyBox.setAlignmentX(LEFT_ALIGNMENT);
+		concurrencyBox.add(new JLabel("Parallel Transfers : "));
+		concurrencyBox.add(Box.createRigidArea(new Dimension(10,1)));
+		concurrencyField = new JTextField(JStickies.SYNC_SETTINGS.getConcurrency() + "");
+		concurrencyField.setMaximumSize(new Dimension(40,25));
+		concurrencyBox.add(concurrencyField);
+		concurrencyBox.add(Box.createRigidArea(new Dimension(5,1)));
+		concurrencyBox.add(new JLabel("file(s)"));
+		contentPane.add(concurrencyBox);
+		
+		contentPane.add(Box.createRigidArea(new Dimension(1,45)));
 		
 		Box buttonBox = Box.createHorizontalBox();
 		buttonBox.setAlignmentX(LEFT_ALIGNMENT);
@@ -255,23 +268,28 @@ public class SyncSettingsGUI extends JFrame implements ActionListener {
 		if(SyncSettings.exists()) {
 			if(source.getText() == "Save Settings") {
 				final int interval = Integer.parseInt(intervalField.getText());
-				if(interval != 0)
-					if(interval != JStickies.SYNC_SETTINGS.getInterval()) {
+				final int concurrency = Integer.parseInt(concurrencyField.getText());
+				if(interval <= 0)
+					JOptionPane.showMessageDialog(this, "Synchronization interval must be greater than 0", "Incorrect Synchronization Interval", JOptionPane.WARNING_MESSAGE);
+				else if(concurrency <= 0)
+					JOptionPane.showMessageDialog(this, "Parallel transfers must be greater than 0", "Incorrect Parallel Transfers", JOptionPane.WARNING_MESSAGE);
+				else {
+					if(interval != JStickies.SYNC_SETTINGS.getInterval() || concurrency != JStickies.SYNC_SETTINGS.getConcurrency()) {
 						new SwingWorker<Object, Object>() {
 							@Override
 							protected Object doInBackground() throws Exception {
 								logger.info("Restarting synchronization thread");
 								JStickies.stopSynchronization();
 								JStickies.SYNC_SETTINGS.setInterval(interval);
+								JStickies.SYNC_SETTINGS.setConcurrency(concurrency);
 								JStickies.SYNC_SETTINGS.saveSettings();
 								JStickies.startSynchronization();
 								return null;
 							}
 						}.execute();
-						dispose();
 					}
-				else
-					JOptionPane.showMessageDialog(this, "Synchronization interval must be greater than 0", "Incorrect Synchronization Interval", JOptionPane.WARNING_MESSAGE);
+					dispose();
+				}
 			}
 			else {
 				new SwingWorker<Object, Object>() {
@@ -73,7 +73,7 @@ public class TitleBar extends Container {
 		logger.info("Changing note title : {}", title);
 		parent.noteData.noteName = title;
 		noteTitle.setText(title);
-		parent.changed = true;
+		parent.markChanged();
 	}
 
 }
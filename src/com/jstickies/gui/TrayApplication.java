@@ -4,6 +4,8 @@
  * The following options are available in the tray icon : 
  * 	- New Note
  * 	- Show/Hide Notes
+ * 	- Search
+ * 	- Synchronization status (shown only when synchronization is configured)
  * 	- Sync Now
  * 	- Sync Settings
  * 	- About
@@ -23,7 +25,6 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 
-import javax.swing.JFrame;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
@@ -35,6 +36,7 @@ import org.slf4j.LoggerFactory;
 
 import com.jstickies.JStickies;
 import com.jstickies.data.sync.SyncSettings;
+import com.jstickies.data.sync.Synchronizer;
 
 public class TrayApplication implements ActionListener, PopupMenuListener {
 
@@ -43,7 +45,8 @@ public class TrayApplication implements ActionListener, PopupMenuListener {
 	private SystemTray systemTray;
 	private TrayIcon trayIcon;
 	private boolean visible;
-	private static String[] menuNames = { "New Note", "Exit", "About" , "Hide Notes", "Show Notes", "Sync Now", "Sync Settings"};
+	private String tooltip;
+	private static String[] menuNames = { "New Note", "Exit", "About" , "Hide Notes", "Show Notes", "Sync Now", "Sync Settings", "Search"};
 	private static final Logger logger = LoggerFactory.getLogger(TrayApplication.class);
 	
 	/*
@@ -62,6 +65,7 @@ public class TrayApplication implements ActionListener, PopupMenuListener {
 		initPopupMenu(); //Initialize the popupmenu
 		popupMenu.addPopupMenuListener(this);
 		
+		this.tooltip = tooltip;
 		trayIcon = new TrayIcon(image,tooltip,null);
 		trayIcon.addMouseListener(new MouseAdapter() {
 			public void mousePressed(MouseEvent e) {
@@ -94,7 +98,7 @@ public class TrayApplication implements ActionListener, PopupMenuListener {
 	 */
 	private void initPopupMenu() {
 		popupMenu = new JPopupMenu();
-		menuItems = new JMenuItem[6];
+		menuItems = new JMenuItem[8];
 		
 		menuItems[0] = new JMenuItem(menuNames[0]);
 		menuItems[0].setIcon(JStickies.loadImage(JStickies.NEW_ICON));
@@ -120,9 +124,18 @@ public class TrayApplication implements ActionListener, PopupMenuListener {
 		menuItems[5].setIcon(JStickies.loadImage(JStickies.SETTINGS_ICON));
 		menuItems[5].addActionListener(this);
 		
+		menuItems[6] = new JMenuItem(menuNames[7]);
+		menuItems[6].addActionListener(this);
+		
+		menuItems[7] = new JMenuItem(); //Synchronization status
+		menuItems[7].setEnabled(false);
+		menuItems[7].setVisible(false);
+		
 		popupMenu.add(menuItems[0]);
 		popupMenu.add(menuItems[3]);
+		popupMenu.add(menuItems[6]);
 		popupMenu.addSeparator();
+		popupMenu.add(menuItems[7]);
 		popupMenu.add(menuItems[4]);
 		popupMenu.add(menuItems[5]);
 		popupMenu.addSeparator();
@@ -155,8 +168,7 @@ public class TrayApplication implements ActionListener, PopupMenuListener {
 				break;
 			case 1 :
 				//Save all notes before exit.
-				Note.saveAll();
-				System.exit(0);
+				JStickies.exit();
 				break;
 			case 2 :
 				new About();
@@ -167,23 +179,42 @@ public class TrayApplication implements ActionListener, PopupMenuListener {
 				menuItems[3].setText(menuNames[(temp)? 4 : 3]);
 				break;
 			case 4 :
-				JStickies.SYNCHRONIZER.syncNow = true;
-				JStickies.SYNCHRONIZER.t.interrupt();
+				JStickies.SYNCHRONIZER.syncNow();
 				break;
 			case 5 :
 				new SyncSettingsGUI();
 				break;
+			case 6 :
+				new SearchDialog();
+				break;
 			default:
 				break;
 		}
 		visible = false; //On clicking any item in the menu, the popup menu disappears.
 	}
 	
+	/*
+	 * Shows the state of the Synchronizer in the menu and the tooltip of the tray icon. Called on the EDT whenever the state changes.
+	 */
+	public void synchronizerChanged() {
+		Synchronizer synchronizer = JStickies.SYNCHRONIZER;
+		if(synchronizer == null) {
+			menuItems[7].setVisible(false);
+			trayIcon.setToolTip(tooltip);
+			return;
+		}
+		
+		String status = synchronizer.getStatus();
+		menuItems[7].setText(status);
+		menuItems[7].setVisible(true);
+		trayIcon.setToolTip(tooltip + " - " + status);
+	}
+	
 	/*
 	 * Displays/Hides all notes depending on the value of b
 	 */
 	private void displayNotes(boolean b) {
-		JStickies.JFRAME.setExtendedState((b)? JFrame.NORMAL : JFrame.ICONIFIED);
+		Note.showNotes(b);
 	}
 
 	@Override
@@ -195,7 +226,8 @@ public class TrayApplication implements ActionListener, PopupMenuListener {
 	@Override
 	public void popupMenuWillBecomeVisible(PopupMenuEvent arg0) {
 		menuItems[4].setEnabled(JStickies.SYNCHRONIZER != null);
-		menuItems[3].setText(menuNames[(JStickies.JFRAME.getExtendedState() == JFrame.NORMAL)? 3 : 4]);
+		synchronizerChanged(); //Updates the time until the next synchronization
+		menuItems[3].setText(menuNames[(Note.areNotesShown())? 3 : 4]);
 	}
 	
 }